@@ -0,0 +1,125 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.authentication.WebAuthenticationDetails;
+
+/**
+ * Rendering of audit messages: {@link AuditAspect#buildMessage(AuditEvent)}
+ * and {@link Auditor#audit(String)} with a sink that discards the messages,
+ * and evaluation of a template by compiled accessors versus SpEL.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class AuditBenchmark {
+
+    private static final AuditSink DISCARDING_SINK = new AuditSink() {
+        public void write(AuditEvent event, String message) {
+        }
+    };
+
+    private Object[] args;
+
+    private AuditAspect compiledAspect;
+
+    private AuditPlan compiledPlan;
+
+    private AuditEvent event;
+
+    private AuditSink previousAuditorSink;
+
+    private AuditAspect.RootObject rootObject;
+
+    private AuditAspect spelAspect;
+
+    private AuditPlan spelPlan;
+
+    @Setup
+    public void setUp() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr("10.0.0.1");
+        UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken("ze-principal", "ze-credentials");
+        authentication.setDetails(new WebAuthenticationDetails(request));
+        SecurityContextHolder.getContext().setAuthentication(authentication);
+
+        SimpleAuditedService service = new SimpleAuditedService();
+        SimpleAuditedService.Customer customer = new SimpleAuditedService.Customer();
+        customer.setName("John Smith");
+        customer.setEmail("john.smith@xebia.fr");
+        args = new Object[] { customer };
+        Method method = SimpleAuditedService.class.getMethod("save", SimpleAuditedService.Customer.class);
+
+        compiledAspect = new AuditAspect();
+        compiledAspect.setAuditSink(DISCARDING_SINK);
+        spelAspect = new AuditAspect();
+        spelAspect.setCompileTemplates(false);
+        spelAspect.setAuditSink(DISCARDING_SINK);
+
+        compiledPlan = compiledAspect.getPlan(method, null);
+        spelPlan = spelAspect.getPlan(method, null);
+        event = compiledAspect.captureEvent(method, compiledPlan.getTemplate(), service, args, customer, null, 1234567);
+        rootObject = new AuditAspect.RootObject(service, args, customer, null);
+
+        previousAuditorSink = Auditor.getAuditSink();
+        Auditor.setAuditSink(DISCARDING_SINK);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Auditor.setAuditSink(previousAuditorSink);
+        SecurityContextHolder.clearContext();
+    }
+
+    @Benchmark
+    public void auditorAudit() {
+        Auditor.audit("transfer(1234, 5678, 100.00)");
+    }
+
+    @Benchmark
+    public String buildMessageCompiled() {
+        return compiledAspect.buildMessage(event);
+    }
+
+    @Benchmark
+    public String buildMessageSpel() {
+        return spelAspect.buildMessage(event);
+    }
+
+    @Benchmark
+    public String evaluateTemplateCompiled() {
+        return compiledPlan.evaluate(rootObject, args);
+    }
+
+    @Benchmark
+    public String evaluateTemplateSpel() {
+        return spelPlan.evaluate(rootObject, args);
+    }
+}
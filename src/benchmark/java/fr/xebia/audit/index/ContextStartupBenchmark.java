@@ -0,0 +1,143 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.index;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.aop.aspectj.AspectJExpressionPointcutAdvisor;
+import org.springframework.aop.framework.autoproxy.DefaultAdvisorAutoProxyCreator;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.context.support.GenericApplicationContext;
+
+import fr.xebia.audit.AuditAspect;
+import fr.xebia.audit.SimpleAuditedService;
+
+/**
+ * Refresh of an application context holding thousands of beans, one percent
+ * of them with {@link fr.xebia.audit.Audited} methods, whose audited beans are
+ * selected by the former <code>execution(* *(..)) &amp;&amp; @annotation(..)</code>
+ * pointcut, by the narrowed <code>execution(@Audited * *(..))</code> pointcut
+ * or by the {@link IndexedAuditProxyCreator}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ContextStartupBenchmark {
+
+    private static final Class<?>[] PLAIN_BEAN_CLASSES = { ArrayDeque.class, ArrayList.class, ConcurrentHashMap.class,
+            CopyOnWriteArrayList.class, HashMap.class, HashSet.class, Hashtable.class, LinkedHashMap.class, LinkedList.class,
+            Properties.class, Random.class, TreeMap.class, TreeSet.class, Vector.class };
+
+    private static final MethodInterceptor PASS_THROUGH = new MethodInterceptor() {
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            return invocation.proceed();
+        }
+    };
+
+    private AuditAspect auditAspect;
+
+    @Param( { "1000", "5000" })
+    public int beanCount;
+
+    private GenericApplicationContext newContext() {
+        GenericApplicationContext context = new GenericApplicationContext();
+        for (int i = 0; i < beanCount; i++) {
+            Class<?> beanClass = i % 100 == 0 ? SimpleAuditedService.class : PLAIN_BEAN_CLASSES[i % PLAIN_BEAN_CLASSES.length];
+            context.registerBeanDefinition("bean" + i, new RootBeanDefinition(beanClass));
+        }
+        return context;
+    }
+
+    private int refresh(GenericApplicationContext context) {
+        context.refresh();
+        int count = context.getBeanDefinitionCount();
+        context.close();
+        return count;
+    }
+
+    private int refreshWithPointcut(String expression) {
+        GenericApplicationContext context = newContext();
+        context.registerBeanDefinition("proxyCreator", new RootBeanDefinition(DefaultAdvisorAutoProxyCreator.class));
+        RootBeanDefinition advisor = new RootBeanDefinition(AspectJExpressionPointcutAdvisor.class);
+        advisor.getPropertyValues().addPropertyValue("expression", expression);
+        advisor.getPropertyValues().addPropertyValue("advice", PASS_THROUGH);
+        context.registerBeanDefinition("advisor", advisor);
+        return refresh(context);
+    }
+
+    @Benchmark
+    public int broadPointcut() {
+        return refreshWithPointcut("execution(* *(..)) && @annotation(fr.xebia.audit.Audited)");
+    }
+
+    @Benchmark
+    public int indexedProxies() {
+        GenericApplicationContext context = newContext();
+        RootBeanDefinition proxyCreator = new RootBeanDefinition(IndexedAuditProxyCreator.class);
+        proxyCreator.getPropertyValues().addPropertyValue("auditAspect", auditAspect);
+        proxyCreator.getPropertyValues().addPropertyValue("auditedClassNames",
+                Collections.singleton(SimpleAuditedService.class.getName()));
+        context.registerBeanDefinition("proxyCreator", proxyCreator);
+        return refresh(context);
+    }
+
+    @Benchmark
+    public int narrowedPointcut() {
+        return refreshWithPointcut("execution(@fr.xebia.audit.Audited * *(..)) && @annotation(fr.xebia.audit.Audited)");
+    }
+
+    @Benchmark
+    public int noProxies() {
+        return refresh(newContext());
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        auditAspect = new AuditAspect();
+        auditAspect.afterPropertiesSet();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        auditAspect.destroy();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.providers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.util.StringUtils;
+
+import fr.xebia.springframework.security.core.userdetails.ExtendedUser;
+
+/**
+ * {@link ExtendedDaoAuthenticationProvider#matchesOneAddress(String, List)}
+ * with an allow-list of a typical corporate user: loopback, a few LAN ranges
+ * and partner addresses, written as regular expressions, as regular
+ * expressions merged in a single alternation or as CIDR networks (
+ * {@link ExtendedDaoAuthenticationProvider#matchesOneAddress(String, ExtendedUser)}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class MatchesOneAddressBenchmark {
+
+    private static final String[] ALLOWED_REMOTE_ADDRESSES = { "127\\.0\\.0\\.1", "0:0:0:0:0:0:0:1", "10\\.0\\.0\\..*",
+            "10\\.1\\.[0-9]+\\..*", "192\\.168\\.1\\..*", "192\\.168\\.2\\.1[0-9]", "172\\.16\\.4\\.12", "172\\.16\\.4\\.13",
+            "81\\.252\\.12\\..*", "2001:db8:0:1:.*" };
+
+    private static final String ALLOWED_REMOTE_NETWORKS = "127.0.0.1/32, ::1/128, 10.0.0.0/24, 10.1.0.0/16, 192.168.1.0/24, "
+            + "192.168.2.0/27, 172.16.4.12/32, 172.16.4.13/32, 81.252.12.0/24, 2001:db8:0:1::/64";
+
+    /**
+     * Matching the first pattern, a pattern in the middle, the last pattern
+     * and no pattern.
+     */
+    @Param( { "127.0.0.1", "192.168.2.15", "2001:db8:0:1:0:0:0:42", "88.12.1.4" })
+    public String remoteAddress;
+
+    private List<Pattern> allowedRemoteAddresses;
+
+    private ExtendedUser networksUser;
+
+    private ExtendedUser patternsUser;
+
+    private ExtendedDaoAuthenticationProvider provider;
+
+    @Setup
+    public void setUp() {
+        provider = new ExtendedDaoAuthenticationProvider();
+        allowedRemoteAddresses = new ArrayList<Pattern>();
+        for (String allowedRemoteAddress : ALLOWED_REMOTE_ADDRESSES) {
+            allowedRemoteAddresses.add(Pattern.compile(allowedRemoteAddress));
+        }
+        networksUser = new ExtendedUser("john", "password", true, true, true, true, Collections.<GrantedAuthority> emptyList());
+        networksUser.setAllowedRemoteAddresses(ALLOWED_REMOTE_NETWORKS);
+        patternsUser = new ExtendedUser("jane", "password", true, true, true, true, Collections.<GrantedAuthority> emptyList());
+        patternsUser.setAllowedRemoteAddresses(StringUtils.arrayToCommaDelimitedString(ALLOWED_REMOTE_ADDRESSES));
+    }
+
+    @Benchmark
+    public boolean matchesOneAddress() {
+        return provider.matchesOneAddress(remoteAddress, allowedRemoteAddresses);
+    }
+
+    @Benchmark
+    public boolean matchesOneAddressCidr() {
+        return provider.matchesOneAddress(remoteAddress, networksUser);
+    }
+
+    @Benchmark
+    public boolean matchesOneAddressMerged() {
+        return provider.matchesOneAddress(remoteAddress, patternsUser);
+    }
+}
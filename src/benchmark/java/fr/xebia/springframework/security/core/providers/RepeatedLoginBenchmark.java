@@ -0,0 +1,89 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.providers;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.dao.DataAccessException;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.web.authentication.WebAuthenticationDetails;
+
+import fr.xebia.springframework.security.core.userdetails.ExtendedUser;
+
+/**
+ * {@link ExtendedDaoAuthenticationProvider#authenticate(org.springframework.security.core.Authentication)}
+ * of a machine client sending the same HTTP Basic credentials on every
+ * request, against a BCrypt encoded password, with or without a
+ * {@link VerifiedCredentialsCache}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class RepeatedLoginBenchmark {
+
+    private UsernamePasswordAuthenticationToken authentication;
+
+    private ExtendedDaoAuthenticationProvider provider;
+
+    @Param( { "true", "false" })
+    public boolean verifiedCredentialsCached;
+
+    @Benchmark
+    public Authentication authenticate() {
+        return provider.authenticate(authentication);
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        BCryptPasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
+        final String encodedPassword = passwordEncoder.encode("password");
+        provider = new ExtendedDaoAuthenticationProvider();
+        provider.setPasswordEncoder(passwordEncoder);
+        if (verifiedCredentialsCached) {
+            provider.setVerifiedCredentialsCache(new VerifiedCredentialsCache(60000, 1024));
+        }
+        provider.setUserDetailsService(new UserDetailsService() {
+            public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException, DataAccessException {
+                ExtendedUser user = new ExtendedUser(username, encodedPassword, true, true, true, true,
+                        Collections.<GrantedAuthority> emptyList());
+                user.setAllowedRemoteAddresses("10.0.0.0/8, 192\\.168\\.1\\..*");
+                return user;
+            }
+        });
+        provider.afterPropertiesSet();
+
+        authentication = new UsernamePasswordAuthenticationToken("api-client", "password");
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr("10.0.0.1");
+        authentication.setDetails(new WebAuthenticationDetails(request));
+    }
+}
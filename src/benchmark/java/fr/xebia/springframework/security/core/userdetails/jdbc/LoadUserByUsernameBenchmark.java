@@ -0,0 +1,107 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.userdetails.jdbc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.core.userdetails.UserDetails;
+
+/**
+ * {@link ExtendedJdbcUserDetailsManager#loadUserByUsername(String)} against
+ * an in-memory H2 database of 1000 users with 2 authorities each, with the
+ * default three queries and with the single joined query.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class LoadUserByUsernameBenchmark {
+
+    /**
+     * Index of the next user to load by each thread.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    private static final int USER_COUNT = 1000;
+
+    private BasicDataSource dataSource;
+
+    private ExtendedJdbcUserDetailsManager userDetailsManager;
+
+    private ExtendedJdbcUserDetailsManager singleQueryUserDetailsManager;
+
+    private String[] usernames;
+
+    @Setup
+    public void setUp() throws Exception {
+        dataSource = new BasicDataSource();
+        dataSource.setDriverClassName("org.h2.Driver");
+        dataSource.setUrl("jdbc:h2:mem:load-user-benchmark;DB_CLOSE_DELAY=-1");
+        dataSource.setUsername("sa");
+        dataSource.setPassword("");
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("create table users(username varchar(256) primary key, password varchar(256), enabled int, "
+                + "allowedRemoteAddresses varchar(256), comments varchar(256))");
+        jdbcTemplate.execute("create table authorities(username varchar(256), authority varchar(256))");
+        jdbcTemplate.execute("create index ix_auth_username on authorities(username)");
+        usernames = new String[USER_COUNT];
+        for (int i = 0; i < USER_COUNT; i++) {
+            usernames[i] = "user-" + i;
+            jdbcTemplate.update("insert into users values(?, ?, 1, ?, ?)", usernames[i], "password-" + i, "10\\.0\\.0\\..*",
+                    "comment " + i);
+            jdbcTemplate.update("insert into authorities values(?, 'ROLE_USER')", usernames[i]);
+            jdbcTemplate.update("insert into authorities values(?, 'ROLE_ADMIN')", usernames[i]);
+        }
+
+        userDetailsManager = new ExtendedJdbcUserDetailsManager();
+        userDetailsManager.setDataSource(dataSource);
+
+        singleQueryUserDetailsManager = new ExtendedJdbcUserDetailsManager();
+        singleQueryUserDetailsManager.setDataSource(dataSource);
+        singleQueryUserDetailsManager.setLoadUserInSingleQuery(true);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        new JdbcTemplate(dataSource).execute("drop all objects");
+        dataSource.close();
+    }
+
+    @Benchmark
+    public UserDetails loadUserByUsername(Cursor cursor) {
+        String username = usernames[cursor.next++ % USER_COUNT];
+        return userDetailsManager.loadUserByUsername(username);
+    }
+
+    @Benchmark
+    public UserDetails loadUserByUsernameInSingleQuery(Cursor cursor) {
+        String username = usernames[cursor.next++ % USER_COUNT];
+        return singleQueryUserDetailsManager.loadUserByUsername(username);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.userdetails.memory;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import fr.xebia.springframework.security.core.userdetails.ExtendedUser;
+
+/**
+ * Parsing of an in-memory user definition by
+ * {@link ExtendedUserMapBuilder#buildExtendedUser(String)}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class BuildExtendedUserBenchmark {
+
+    @Param( { "bob=password,ROLE_USER", "bob=password,ROLE_USER,ROLE_ADMIN,@(127.0.0.1,192.168.1.*),enabled",
+            "bob = password  , ROLE_USER , ROLE_ADMIN ,@( 10.0.0.*, 192.168.1.*, 192.168.2.* ) , disabled" })
+    public String userAttributes;
+
+    @Benchmark
+    public ExtendedUser buildExtendedUser() {
+        return ExtendedUserMapBuilder.buildExtendedUser(userAttributes);
+    }
+}
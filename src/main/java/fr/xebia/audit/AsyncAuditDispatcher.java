@@ -0,0 +1,262 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands {@link AuditEvent}s over to a dedicated consumer thread through a
+ * bounded lock-free ring buffer so that audited methods do not pay the
+ * rendering and logging cost.
+ * <p>
+ * When the buffer is full, the {@link OverflowPolicy} decides whether the
+ * producer waits, drops the event or handles it itself. Events dispatched
+ * before {@link #start()} or after {@link #stop()} are handled on the caller
+ * thread.
+ * </p>
+ */
+public class AsyncAuditDispatcher {
+
+    /**
+     * Processes the events on the consumer thread.
+     */
+    public interface Handler {
+        void handle(AuditEvent event);
+    }
+
+    /**
+     * Behavior of {@link AsyncAuditDispatcher#dispatch(AuditEvent)} when the
+     * ring buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until the consumer frees a slot, or handle the event on the
+         * caller thread if the consumer thread has died.
+         */
+        BLOCK,
+        /**
+         * Handle the event on the caller thread.
+         */
+        CALLER_RUNS,
+        /**
+         * Discard the event and increment {@link AsyncAuditDispatcher#getDroppedCount()}.
+         */
+        DROP
+    }
+
+    private static final long CONSUMER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final AuditRingBuffer<AuditEvent> buffer;
+
+    private volatile boolean consumerWaiting;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final Handler handler;
+
+    private final Logger logger = LoggerFactory.getLogger(AsyncAuditDispatcher.class);
+
+    private final OverflowPolicy overflowPolicy;
+
+    private volatile boolean running;
+
+    private long shutdownTimeoutInMillis = 5000;
+
+    private Thread thread;
+
+    public AsyncAuditDispatcher(Handler handler, int bufferSize, OverflowPolicy overflowPolicy) {
+        super();
+        if (handler == null) {
+            throw new IllegalArgumentException("handler can not be null");
+        }
+        this.handler = handler;
+        this.buffer = new AuditRingBuffer<AuditEvent>(bufferSize);
+        this.overflowPolicy = overflowPolicy == null ? OverflowPolicy.BLOCK : overflowPolicy;
+    }
+
+    public void dispatch(AuditEvent event) {
+        if (!running || !thread.isAlive()) {
+            handleQuietly(event);
+            return;
+        }
+        if (buffer.offer(event)) {
+            if (!running) {
+                // published after stop() has drained the buffer
+                drainTerminated();
+            } else if (consumerWaiting) {
+                LockSupport.unpark(thread);
+            }
+            return;
+        }
+        switch (overflowPolicy) {
+        case DROP:
+            droppedCount.incrementAndGet();
+            break;
+        case CALLER_RUNS:
+            handleQuietly(event);
+            break;
+        case BLOCK:
+        default:
+            while (!buffer.offer(event)) {
+                if (!running || !thread.isAlive()) {
+                    handleQuietly(event);
+                    return;
+                }
+                LockSupport.unpark(thread);
+                LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+            }
+            break;
+        }
+    }
+
+    /**
+     * Handles the events left in the buffer if the consumer thread has
+     * terminated. Synchronized with {@link #stop()} so that the buffer has a
+     * single consumer.
+     */
+    private synchronized void drainTerminated() {
+        if (thread.isAlive()) {
+            return;
+        }
+        AuditEvent event;
+        while ((event = buffer.poll()) != null) {
+            handleQuietly(event);
+        }
+    }
+
+    public int getBufferSize() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Number of events discarded by the {@link OverflowPolicy#DROP} policy.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Approximate number of events waiting for the consumer thread.
+     */
+    public int getPendingCount() {
+        return buffer.size();
+    }
+
+    public long getShutdownTimeoutInMillis() {
+        return shutdownTimeoutInMillis;
+    }
+
+    private void handleQuietly(AuditEvent event) {
+        try {
+            handler.handle(event);
+        } catch (RuntimeException e) {
+            logger.warn("Exception handling audit event " + event, e);
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Drains the buffer until {@link #stop()} is invoked and the buffer is
+     * empty.
+     */
+    private void consume() {
+        while (true) {
+            AuditEvent event = buffer.poll();
+            if (event != null) {
+                try {
+                    handleQuietly(event);
+                } catch (Throwable t) {
+                    // keep draining, nothing else consumes the buffer
+                    logger.error("Error handling audit event " + event, t);
+                }
+            } else if (!running) {
+                if (buffer.isEmpty()) {
+                    return;
+                }
+                // a producer claimed a slot but did not publish it yet
+                Thread.yield();
+            } else {
+                consumerWaiting = true;
+                if (buffer.isEmpty() && running) {
+                    LockSupport.parkNanos(this, CONSUMER_PARK_NANOS);
+                }
+                consumerWaiting = false;
+            }
+        }
+    }
+
+    public void setShutdownTimeoutInMillis(long shutdownTimeoutInMillis) {
+        this.shutdownTimeoutInMillis = shutdownTimeoutInMillis;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                consume();
+            }
+        }, "audit-dispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the consumer thread after it has flushed the pending events,
+     * waiting at most {@link #getShutdownTimeoutInMillis()}. If the consumer
+     * thread has terminated, the events published by producers racing with the
+     * shutdown are handled on the calling thread, or on the producer thread if
+     * they are published after this drain. Otherwise a warning is
+     * logged and the events still in the buffer are left to the consumer
+     * thread, a daemon thread which keeps draining them: they are lost if the
+     * JVM exits first.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(shutdownTimeoutInMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            logger.warn("Audit dispatcher thread did not terminate within " + shutdownTimeoutInMillis + "ms, "
+                    + buffer.size() + " events pending");
+        } else {
+            // events published by producers racing with the shutdown
+            drainTerminated();
+        }
+    }
+}
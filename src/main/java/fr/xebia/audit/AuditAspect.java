@@ -18,23 +18,36 @@ package fr.xebia.audit;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.core.LocalVariableTableParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.core.annotation.AnnotationUtils;
 import org.springframework.expression.Expression;
 import org.springframework.expression.ExpressionParser;
 import org.springframework.expression.ParserContext;
 import org.springframework.expression.spel.standard.SpelExpressionParser;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.web.authentication.WebAuthenticationDetails;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
 
-import java.text.SimpleDateFormat;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * This Aspect audits methods surrounded by {@link fr.xebia.audit.Audited}
@@ -61,7 +74,8 @@ import java.util.concurrent.TimeUnit;
  * </p>
  * <p>
  * Using this aspect, all methods annotated with {@link fr.xebia.audit.Audited}
- * will be logged in SLF4F <code>"fr.xebia.audit"</code> logger with :
+ * will be logged (by default, see {@link #setAuditSink(AuditSink)}) in SLF4F
+ * <code>"fr.xebia.audit"</code> logger with :
  * </p>
  * <ul>
  * <li>INFO level for method calls</li>
@@ -79,22 +93,97 @@ import java.util.concurrent.TimeUnit;
  * <code>...save(John Smith, john.smith):
  * threw 'java.lang.IllegalArgumentException: incorrect email by admin coming from 192.168.1.10</code>
  * </p>
+ * <p>
+ * In {@link #setAsynchronous(boolean) asynchronous} mode, the audited method
+ * only captures an {@link AuditEvent} and hands it over to an
+ * {@link AsyncAuditDispatcher}; the message is rendered and logged by the
+ * dispatcher thread. Pending events are flushed on {@link #destroy()}.
+ * </p>
+ * <p>
+ * The message template of each audited method is parsed once and cached in
+ * an {@link AuditPlan} keyed by the method. The method parameters can be
+ * referenced by name : <code>@Audited(message = "save(#{#customer.name})")</code>
+ * (requires classes compiled with debug information).
+ * </p>
+ * <p>
+ * Frequently invoked methods can be sampled or rate limited with
+ * {@link Audited#sampleRate()} and {@link Audited#maxEventsPerSecond()},
+ * before any template evaluation; the suppressed invocations are counted per
+ * {@link AuditPlan} and in {@link #getSuppressedCount()}.
+ * </p>
+ * <p>
+ * The duration and the outcome of every invocation are recorded in the
+ * {@link AuditedMethodStatistics} of its plan; they are registered as
+ * <code>fr.xebia.audit:type=AuditedMethod</code> MBeans if
+ * {@link #setExportStatistics(boolean) exportStatistics} is enabled.
+ * </p>
+ * <p>
+ * With {@link #setCoalesceNestedCalls(boolean) coalesceNestedCalls}, the
+ * audited invocations made by an audited invocation are written in the
+ * message of the outermost one:
+ * <code>"... facade(...) with nested failure by admin in 12 ms [service(...) in 9 ms [dao(...) threw '...' in 3 ms]]"</code>.
+ * </p>
  */
 @Aspect
-public class AuditAspect {
+public class AuditAspect implements InitializingBean, DisposableBean, ApplicationListener<ContextRefreshedEvent> {
+
+    /**
+     * The audited invocations made by an audited invocation in progress: the
+     * first <code>maxNestedEvents</code> ones, the next ones are only counted.
+     */
+    private static class CallFrame {
+        final int maxNestedEvents;
+
+        List<AuditEvent> nestedEvents;
+
+        int omittedCount;
+
+        boolean omittedFailure;
+
+        CallFrame(int maxNestedEvents) {
+            this.maxNestedEvents = maxNestedEvents;
+        }
+
+        void add(AuditEvent event) {
+            if ((nestedEvents == null ? 0 : nestedEvents.size()) >= maxNestedEvents) {
+                omittedCount++;
+                omittedFailure |= event.isFailure() || event.hasNestedFailure();
+                return;
+            }
+            if (nestedEvents == null) {
+                nestedEvents = new ArrayList<AuditEvent>(4);
+            }
+            nestedEvents.add(event);
+        }
+
+        boolean isEmpty() {
+            return nestedEvents == null && omittedCount == 0;
+        }
+    }
 
     protected static class RootObject {
 
-        private final Object[] args;
+        private Object[] args;
 
-        private final Object invokedObject;
+        private Object invokedObject;
 
-        private final Object returned;
+        private Object returned;
 
-        private final Throwable throwned;
+        private Throwable throwned;
 
-        private RootObject(Object invokedObject, Object[] args, Object returned, Throwable throwned) {
+        RootObject() {
             super();
+        }
+
+        RootObject(Object invokedObject, Object[] args, Object returned, Throwable throwned) {
+            super();
+            reset(invokedObject, args, returned, throwned);
+        }
+
+        /**
+         * Reinitializes a root object reused by {@link AuditMessageBuffer}.
+         */
+        void reset(Object invokedObject, Object[] args, Object returned, Throwable throwned) {
             this.invokedObject = invokedObject;
             this.args = args;
             this.returned = returned;
@@ -134,92 +223,815 @@ public class AuditAspect {
         }
     }
 
+    /**
+     * Appends the given throwable and its causes. A cause already appended
+     * (compared by identity) ends the chain.
+     */
     protected static void appendThrowableCauses(Throwable throwable, String separator, StringBuilder toAppendTo) {
-        List<Throwable> alreadyAppendedThrowables = new ArrayList<Throwable>();
+        Throwable current = throwable;
+        while (current != null) {
+            toAppendTo.append(current.toString());
 
-        while (throwable != null) {
-            // append
-            toAppendTo.append(throwable.toString());
-            alreadyAppendedThrowables.add(throwable);
-
-            // cause
-            Throwable cause = throwable.getCause();
-            if (cause == null || alreadyAppendedThrowables.contains(cause)) {
+            Throwable cause = current.getCause();
+            if (cause == null || isInChain(cause, throwable, current)) {
                 break;
-            } else {
-                throwable = cause;
-                toAppendTo.append(separator);
+            }
+            current = cause;
+            toAppendTo.append(separator);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if <code>candidate</code> is one of the
+     * throwables of the chain from <code>first</code> to <code>last</code>.
+     * Causes chains are short, walking the chain again avoids allocating a
+     * set of the already appended throwables.
+     */
+    private static boolean isInChain(Throwable candidate, Throwable first, Throwable last) {
+        for (Throwable throwable = first;; throwable = throwable.getCause()) {
+            if (throwable == candidate) {
+                return true;
+            }
+            if (throwable == last) {
+                return false;
             }
         }
     }
 
-    private SimpleDateFormat dateFormatPrototype = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+    private boolean asynchronous;
+
+    private final ThreadLocal<CallFrame> callFrames = new ThreadLocal<CallFrame>();
+
+    private boolean coalesceNestedCalls;
+
+    private boolean auditFutures;
+
+    private AuditSink auditSink = new Slf4jAuditSink();
+
+    private int bufferSize = 1024;
+
+    private boolean compileTemplates = true;
+
+    private int deduplicationMaxEntries = 1024;
+
+    private long deduplicationWindowInMillis;
 
-    private Map<String, Expression> expressionCache = new ConcurrentHashMap<String, Expression>();
+    private volatile AuditDeduplicator deduplicator;
+
+    private boolean exportStatistics;
 
     private ExpressionParser expressionParser = new SpelExpressionParser();
 
+    private volatile AsyncAuditDispatcher dispatcher;
+
+    private final FutureCompletionNotifier futureCompletionNotifier = new FutureCompletionNotifier();
+
     private Logger logger = LoggerFactory.getLogger("fr.xebia.audit");
 
+    private int maxNestedEvents = 100;
+
+    private MBeanServer mbeanServer;
+
+    private AsyncAuditDispatcher.OverflowPolicy overflowPolicy = AsyncAuditDispatcher.OverflowPolicy.BLOCK;
+
+    private ParameterNameDiscoverer parameterNameDiscoverer = new LocalVariableTableParameterNameDiscoverer();
+
     private ParserContext parserContext = new TemplateParserContext();
 
+    private final Map<Method, AuditPlan> planCache = new ConcurrentHashMap<Method, AuditPlan>();
+
+    private boolean preScanAuditedMethods;
+
+    private final List<ObjectName> registeredObjectNames = new ArrayList<ObjectName>();
+
+    private boolean statisticsEnabled = true;
+
+    private final AtomicLong suppressedCount = new AtomicLong();
+
+    private final Map<String, AuditPlan> templatePlanCache = new ConcurrentHashMap<String, AuditPlan>();
+
+    private TimestampRenderer timestampRenderer = TimestampRenderer.getSharedInstance();
+
     protected String buildMessage(String template, Object invokedObject, Object[] args, Object returned, Throwable throwned, long durationInNanos) {
+        return buildMessage(captureEvent(template, invokedObject, args, returned, throwned, durationInNanos));
+    }
+
+    protected String buildMessage(AuditEvent event) {
+        AuditMessageBuffer buffer = AuditMessageBuffer.acquire();
         try {
-            Expression expression = expressionCache.get(template);
-            if (expression == null) {
-                expression = expressionParser.parseExpression(template, parserContext);
-                expressionCache.put(template, expression);
+            appendMessage(event, buffer);
+            return buffer.getBuilder().toString();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Renders the nested events of the given event, recursively, as
+     * <code>" [message in N ms [...], ...]"</code>.
+     */
+    private void appendNestedEvents(AuditEvent event, AuditMessageBuffer buffer, StringBuilder msg) {
+        List<AuditEvent> nestedEvents = event.getNestedEvents();
+        int omittedCount = event.getOmittedNestedEventCount();
+        if (nestedEvents.isEmpty() && omittedCount == 0) {
+            return;
+        }
+        msg.append(" [");
+        for (int i = 0; i < nestedEvents.size(); i++) {
+            AuditEvent nestedEvent = nestedEvents.get(i);
+            if (i > 0) {
+                msg.append(", ");
+            }
+            AuditPlan plan = nestedEvent.getMethod() == null ? getPlan(nestedEvent.getTemplate()) : getPlan(nestedEvent.getMethod(), null);
+            plan.appendTo(buffer.rootObject(nestedEvent), nestedEvent.getArgs(), msg);
+            if (nestedEvent.getThrowned() != null) {
+                msg.append(" threw '");
+                appendThrowableCauses(nestedEvent.getThrowned(), ", ", msg);
+                msg.append('\'');
             }
+            msg.append(" in ").append(TimeUnit.MILLISECONDS.convert(nestedEvent.getDurationInNanos(), TimeUnit.NANOSECONDS)).append(" ms");
+            appendNestedEvents(nestedEvent, buffer, msg);
+        }
+        if (omittedCount > 0) {
+            msg.append(nestedEvents.isEmpty() ? "... and " : ", ... and ").append(omittedCount).append(" more");
+        }
+        msg.append(']');
+    }
 
-            String evaluatedMessage = expression.getValue(new RootObject(invokedObject, args, returned, throwned), String.class);
+    /**
+     * Renders the message of the given event in the builder of the given
+     * buffer, without intermediate strings when the template is compiled.
+     */
+    private void appendMessage(AuditEvent event, AuditMessageBuffer buffer) {
+        StringBuilder msg = buffer.getBuilder();
+        String template = event.getTemplate();
+        try {
+            AuditPlan plan = event.getMethod() == null ? getPlan(template) : getPlan(event.getMethod(), null);
 
-            StringBuilder msg = new StringBuilder();
+            timestampRenderer.appendTo(event.getTimestampInMillis(), msg);
+            msg.append(' ');
+            int keyStart = msg.length();
+            plan.appendTo(buffer.rootObject(event), event.getArgs(), msg);
 
-            SimpleDateFormat simpleDateFormat = (SimpleDateFormat) dateFormatPrototype.clone();
-            msg.append(simpleDateFormat.format(new Date()));
+            if (event.getThrowned() != null) {
+                msg.append(" threw '");
+                appendThrowableCauses(event.getThrowned(), ", ", msg);
+                msg.append('\'');
+            } else if (event.hasNestedFailure()) {
+                msg.append(" with nested failure");
+            }
+            event.getContext().appendSuffixTo(msg);
+            buffer.markKey(keyStart, msg.length());
+            msg.append(" in ").append(TimeUnit.MILLISECONDS.convert(event.getDurationInNanos(), TimeUnit.NANOSECONDS)).append(" ms");
+            appendNestedEvents(event, buffer, msg);
+        } catch (RuntimeException e) {
+            msg.setLength(0);
+            buffer.markKey(0, -1);
+            msg.append("Exception evaluating template '").append(template).append("': ");
+            appendThrowableCauses(e, ", ", msg);
+        }
+    }
 
-            msg.append(" ").append(evaluatedMessage);
+    /**
+     * Snapshots the invocation and the audit context of the current thread.
+     */
+    protected AuditEvent captureEvent(String template, Object invokedObject, Object[] args, Object returned, Throwable throwned,
+            long durationInNanos) {
+        return captureEvent(null, template, invokedObject, args, returned, throwned, durationInNanos);
+    }
 
-            if (throwned != null) {
-                msg.append(" threw '");
-                appendThrowableCauses(throwned, ", ", msg);
-                msg.append("'");
+    /**
+     * Snapshots the invocation of the given <code>method</code> and the
+     * {@link AuditContextHolder#getContext() audit context} of the current
+     * thread.
+     */
+    protected AuditEvent captureEvent(Method method, String template, Object invokedObject, Object[] args, Object returned,
+            Throwable throwned, long durationInNanos) {
+        return new AuditEvent(method, template, invokedObject, args, returned, throwned, AuditContextHolder.getContext(),
+                timestampRenderer.getClock().currentTimeMillis(), durationInNanos);
+    }
+
+    /**
+     * Audits the invocation when the returned future completes. The principal
+     * is captured now, on the caller thread, the future completes on another
+     * thread. The invocation is never coalesced in its caller, which may have
+     * completed long before.
+     */
+    private void auditOnCompletion(Object future, final Method method, final AuditPlan plan, Object invokedObject, Object[] args,
+            final CallFrame frame, final long nanosBefore) {
+        final AuditEvent invocation = captureEvent(method, plan.getTemplate(), invokedObject, args, null, null, 0);
+        futureCompletionNotifier.notifyOnCompletion(future, new FutureCompletionNotifier.Callback() {
+            public void completed(Object value, Throwable throwable) {
+                AuditAspect.this.completed(invocation, plan, value, throwable, frame, nanosBefore, System.nanoTime());
             }
-            msg.append(" by ");
-            Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-            if (authentication == null) {
-                msg.append("anonymous");
+        });
+    }
+
+    /**
+     * Records the statistics of the completed invocation then audits it or,
+     * if nested calls are coalesced and it has an audited caller, adds it to
+     * the nested events of its caller.
+     *
+     * @param frame
+     *            the nested calls of the invocation, <code>null</code> if not
+     *            coalesced
+     * @param parentFrame
+     *            the nested calls of its caller, <code>null</code> if not
+     *            coalesced or outermost
+     */
+    private void completed(Method method, AuditPlan plan, Object invokedObject, Object[] args, Object returned, Throwable throwned,
+            CallFrame frame, CallFrame parentFrame, long nanosBefore, long nanosAfter) {
+        long durationInNanos = nanosAfter - nanosBefore;
+        boolean failure = throwned != null;
+        if (statisticsEnabled) {
+            plan.getStatistics().record(durationInNanos, failure);
+        }
+        if (parentFrame == null && !plan.shouldAudit(failure, nanosAfter)) {
+            suppressedCount.incrementAndGet();
+            return;
+        }
+        AuditEvent event = captureEvent(method, plan.getTemplate(), invokedObject, args, returned, throwned, durationInNanos);
+        if (frame != null && !frame.isEmpty()) {
+            event = new AuditEvent(method, event.getTemplate(), event.getInvokedObject(), event.getArgs(), returned, throwned,
+                    event.getContext(), frame.nestedEvents, frame.omittedCount, frame.omittedFailure, event.getTimestampInMillis(),
+                    durationInNanos);
+        }
+        if (parentFrame == null) {
+            audit(event);
+        } else {
+            parentFrame.add(event);
+        }
+    }
+
+    /**
+     * Completes the invocation of a future, whose principal has been captured
+     * in <code>invocation</code>.
+     */
+    private void completed(AuditEvent invocation, AuditPlan plan, Object returned, Throwable throwned, CallFrame frame,
+            long nanosBefore, long nanosAfter) {
+        long durationInNanos = nanosAfter - nanosBefore;
+        boolean failure = throwned != null;
+        if (statisticsEnabled) {
+            plan.getStatistics().record(durationInNanos, failure);
+        }
+        if (plan.shouldAudit(failure, nanosAfter)) {
+            audit(new AuditEvent(invocation.getMethod(), invocation.getTemplate(), invocation.getInvokedObject(), invocation.getArgs(),
+                    returned, throwned, invocation.getContext(), frame == null ? null : frame.nestedEvents, frame == null ? 0
+                            : frame.omittedCount, frame != null && frame.omittedFailure, timestampRenderer.getClock()
+                            .currentTimeMillis(), durationInNanos));
+        } else {
+            suppressedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Restores the frame of the audited caller, if nested calls are
+     * coalesced.
+     */
+    private void exitFrame(CallFrame frame, CallFrame parentFrame) {
+        if (frame != null) {
+            if (parentFrame == null) {
+                callFrames.remove();
             } else {
-                msg.append(authentication.getName());
-                if (authentication.getDetails() instanceof WebAuthenticationDetails) {
-                    WebAuthenticationDetails details = (WebAuthenticationDetails) authentication.getDetails();
-                    msg.append(" coming from " + details.getRemoteAddress());
+                callFrames.set(parentFrame);
+            }
+        }
+    }
+
+    /**
+     * Starts the deduplicator if a
+     * {@link #setDeduplicationWindowInMillis(long) deduplication window} is
+     * set and the asynchronous dispatcher if {@link #isAsynchronous()}.
+     */
+    public void afterPropertiesSet() {
+        if (deduplicationWindowInMillis > 0 && deduplicator == null) {
+            AuditDeduplicator newDeduplicator = new AuditDeduplicator(deduplicationWindowInMillis, deduplicationMaxEntries,
+                    timestampRenderer.getClock());
+            newDeduplicator.setTimestampRenderer(timestampRenderer);
+            newDeduplicator.start();
+            deduplicator = newDeduplicator;
+        }
+        if (asynchronous && dispatcher == null) {
+            AsyncAuditDispatcher newDispatcher = new AsyncAuditDispatcher(new AsyncAuditDispatcher.Handler() {
+                public void handle(AuditEvent event) {
+                    emit(event);
+                }
+            }, bufferSize, overflowPolicy);
+            newDispatcher.start();
+            dispatcher = newDispatcher;
+        }
+    }
+
+    /**
+     * Emits the event on the caller thread or hands it over to the
+     * asynchronous dispatcher.
+     */
+    protected void audit(AuditEvent event) {
+        AsyncAuditDispatcher asyncDispatcher = dispatcher;
+        if (asyncDispatcher == null) {
+            emit(event);
+        } else {
+            asyncDispatcher.dispatch(event);
+        }
+    }
+
+    /**
+     * Stops watching the returned futures, writes the summaries of the folded
+     * messages, flushes the pending events, stops the asynchronous dispatcher
+     * and unregisters the statistics MBeans.
+     */
+    public void destroy() {
+        futureCompletionNotifier.stop();
+        AuditDeduplicator auditDeduplicator = deduplicator;
+        if (auditDeduplicator != null) {
+            deduplicator = null;
+            auditDeduplicator.stop();
+        }
+        AsyncAuditDispatcher asyncDispatcher = dispatcher;
+        if (asyncDispatcher != null) {
+            dispatcher = null;
+            asyncDispatcher.stop();
+        }
+        synchronized (planCache) {
+            for (ObjectName objectName : registeredObjectNames) {
+                try {
+                    mbeanServer.unregisterMBean(objectName);
+                } catch (JMException e) {
+                    logger.debug("Exception unregistering " + objectName, e);
                 }
             }
-            msg.append(" in ") .append(TimeUnit.MILLISECONDS.convert(durationInNanos, TimeUnit.NANOSECONDS)).append(" ms");
-            return msg.toString();
+            registeredObjectNames.clear();
+        }
+    }
+
+    /**
+     * Renders the event in the buffer of the current thread and writes it in
+     * the {@link #getAuditSink()} unless the {@link #getDeduplicator()} folds
+     * it; a {@link CharSequenceAuditSink} receives the buffer itself. An
+     * exception thrown by the sink is logged, it does not fail the audited
+     * method.
+     */
+    protected void emit(AuditEvent event) {
+        AuditMessageBuffer buffer = AuditMessageBuffer.acquire();
+        try {
+            appendMessage(event, buffer);
+            AuditDeduplicator auditDeduplicator = deduplicator;
+            if (auditDeduplicator != null
+                    && !auditDeduplicator.offer(event, buffer.getBuilder(), buffer.getKeyStart(), buffer.getKeyEnd(), auditSink)) {
+                return;
+            }
+            if (auditSink instanceof CharSequenceAuditSink) {
+                ((CharSequenceAuditSink) auditSink).write(event, buffer.getBuilder());
+            } else {
+                auditSink.write(event, buffer.getBuilder().toString());
+            }
         } catch (RuntimeException e) {
-            StringBuilder msg = new StringBuilder("Exception evaluating template '" + template + "': ");
-            appendThrowableCauses(e, ", ", msg);
-            return msg.toString();
+            logger.warn("Exception writing audit event in " + auditSink, e);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    public AuditSink getAuditSink() {
+        return auditSink;
+    }
+
+    public int getDeduplicationMaxEntries() {
+        return deduplicationMaxEntries;
+    }
+
+    public long getDeduplicationWindowInMillis() {
+        return deduplicationWindowInMillis;
+    }
+
+    /**
+     * The deduplicator of the messages, <code>null</code> if the
+     * {@link #setDeduplicationWindowInMillis(long) deduplication} is
+     * disabled.
+     */
+    public AuditDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
+    /**
+     * Creates the audit plan of the given method. Invoked once per method.
+     */
+    protected AuditPlan createPlan(Method method, Audited audited, Class<?> targetClass) {
+        String template = audited.message();
+        Expression expression = null;
+        RuntimeException parseException = null;
+        try {
+            expression = expressionParser.parseExpression(template, parserContext);
+        } catch (RuntimeException e) {
+            parseException = e;
+        }
+        Method specificMethod = targetClass == null ? method : ClassUtils.getMostSpecificMethod(method, targetClass);
+        String[] parameterNames = parameterNameDiscoverer.getParameterNames(specificMethod);
+        return new AuditPlan(method, audited, template, expression, parseException, parameterNames, compileTemplates);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Number of events discarded by the
+     * {@link AsyncAuditDispatcher.OverflowPolicy#DROP} overflow policy.
+     */
+    public long getDroppedCount() {
+        AsyncAuditDispatcher asyncDispatcher = dispatcher;
+        return asyncDispatcher == null ? 0 : asyncDispatcher.getDroppedCount();
+    }
+
+    public AsyncAuditDispatcher.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Returns the audit plan of the given method, creating it on the first
+     * invocation.
+     *
+     * @param audited
+     *            the annotation of the given method, looked up if
+     *            <code>null</code>
+     */
+    protected AuditPlan getPlan(Method method, Audited audited) {
+        return getPlan(method, audited, null);
+    }
+
+    /**
+     * Returns the audit plan of the implementation of the given method in the
+     * given target class: the beans implementing the same interface have
+     * their own plan.
+     */
+    private AuditPlan getPlan(Method method, Audited audited, Class<?> targetClass) {
+        Method specificMethod = targetClass == null ? method : ClassUtils.getMostSpecificMethod(method, targetClass);
+        AuditPlan plan = planCache.get(specificMethod);
+        if (plan != null) {
+            return plan;
+        }
+        if (audited == null) {
+            audited = AnnotationUtils.findAnnotation(specificMethod, Audited.class);
+            if (audited == null) {
+                throw new IllegalArgumentException("Method " + specificMethod + " is not annotated with @Audited");
+            }
+        }
+        synchronized (planCache) {
+            plan = planCache.get(specificMethod);
+            if (plan == null) {
+                plan = createPlan(specificMethod, audited, targetClass);
+                planCache.put(specificMethod, plan);
+                if (exportStatistics && plan.getStatistics() != null) {
+                    registerStatistics(plan.getStatistics());
+                }
+            }
+            return plan;
+        }
+    }
+
+    /**
+     * Returns the audit plan of a template that is not associated with a
+     * method, creating it on the first invocation.
+     */
+    protected AuditPlan getPlan(String template) {
+        AuditPlan plan = templatePlanCache.get(template);
+        if (plan != null) {
+            return plan;
+        }
+        synchronized (templatePlanCache) {
+            plan = templatePlanCache.get(template);
+            if (plan == null) {
+                Expression expression = null;
+                RuntimeException parseException = null;
+                try {
+                    expression = expressionParser.parseExpression(template, parserContext);
+                } catch (RuntimeException e) {
+                    parseException = e;
+                }
+                plan = new AuditPlan(null, null, template, expression, parseException, null, compileTemplates);
+                templatePlanCache.put(template, plan);
+            }
+            return plan;
         }
     }
 
-    @Around(value = "execution(* *(..)) && @annotation(audited)", argNames = "pjp,audited")
+    /**
+     * Number of invocations not audited because of the
+     * {@link Audited#sampleRate()} or {@link Audited#maxEventsPerSecond()} of
+     * their method.
+     */
+    public long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+
+    public int getMaxNestedEvents() {
+        return maxNestedEvents;
+    }
+
+    public MBeanServer getMbeanServer() {
+        return mbeanServer;
+    }
+
+    public TimestampRenderer getTimestampRenderer() {
+        return timestampRenderer;
+    }
+
+    public boolean isAsynchronous() {
+        return asynchronous;
+    }
+
+    public boolean isAuditFutures() {
+        return auditFutures;
+    }
+
+    public boolean isCoalesceNestedCalls() {
+        return coalesceNestedCalls;
+    }
+
+    public boolean isCompileTemplates() {
+        return compileTemplates;
+    }
+
+    public boolean isExportStatistics() {
+        return exportStatistics;
+    }
+
+    public boolean isPreScanAuditedMethods() {
+        return preScanAuditedMethods;
+    }
+
+    public boolean isStatisticsEnabled() {
+        return statisticsEnabled;
+    }
+
+    /**
+     * Creates the audit plans of the <code>@Audited</code> methods of the
+     * beans of the refreshed context if {@link #isPreScanAuditedMethods()}.
+     */
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        if (!preScanAuditedMethods) {
+            return;
+        }
+        ApplicationContext applicationContext = event.getApplicationContext();
+        for (String beanName : applicationContext.getBeanDefinitionNames()) {
+            Class<?> beanType;
+            try {
+                beanType = applicationContext.getType(beanName);
+            } catch (RuntimeException e) {
+                logger.debug("Skip pre-scan of bean '" + beanName + "'", e);
+                continue;
+            }
+            if (beanType != null) {
+                preScan(ClassUtils.getUserClass(beanType));
+            }
+        }
+    }
+
+    /**
+     * Creates the audit plans of the <code>@Audited</code> methods of the
+     * given class and of its super classes.
+     */
+    public void preScan(final Class<?> clazz) {
+        ReflectionUtils.doWithMethods(clazz, new ReflectionUtils.MethodCallback() {
+            public void doWith(Method method) {
+                Audited audited = method.getAnnotation(Audited.class);
+                if (audited != null) {
+                    getPlan(method, audited, clazz);
+                }
+            }
+        });
+    }
+
+    /**
+     * Registers the given statistics MBean. If another aspect of the JVM has
+     * already registered an MBean of the same name, the name is suffixed with
+     * an <code>instance</code> key rather than replacing it. Invoked with the
+     * lock of the plan cache.
+     */
+    private void registerStatistics(AuditedMethodStatistics statistics) {
+        if (mbeanServer == null) {
+            mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        }
+        try {
+            ObjectName objectName = statistics.getObjectName();
+            for (int instance = 2; mbeanServer.isRegistered(objectName); instance++) {
+                objectName = new ObjectName(statistics.getObjectName() + ",instance=" + instance);
+            }
+            mbeanServer.registerMBean(statistics, objectName);
+            registeredObjectNames.add(objectName);
+        } catch (JMException e) {
+            logger.warn("Exception registering statistics MBean of " + statistics.getMethod(), e);
+        }
+    }
+
+    /**
+     * Resets the statistics of all the audited methods.
+     */
+    public void resetStatistics() {
+        for (AuditPlan plan : planCache.values()) {
+            plan.getStatistics().reset();
+        }
+    }
+
+    /**
+     * If <code>true</code>, the audit messages are rendered and logged by a
+     * dedicated thread, the audited methods only capture an
+     * {@link AuditEvent}. Default to <code>false</code>.
+     */
+    public void setAsynchronous(boolean asynchronous) {
+        this.asynchronous = asynchronous;
+    }
+
+    /**
+     * Destination of the audit events. Default to a {@link Slf4jAuditSink}
+     * writing in the <code>"fr.xebia.audit"</code> logger.
+     */
+    public void setAuditSink(AuditSink auditSink) {
+        this.auditSink = auditSink;
+    }
+
+    /**
+     * If <code>true</code>, the audited invocations made by an audited
+     * invocation on the same thread are not audited on their own but as
+     * {@link AuditEvent#getNestedEvents()} of the outermost audited
+     * invocation, which is written as a single message. Sampling and rate
+     * limiting only apply to the outermost invocations. Default to
+     * <code>false</code>.
+     */
+    public void setCoalesceNestedCalls(boolean coalesceNestedCalls) {
+        this.coalesceNestedCalls = coalesceNestedCalls;
+    }
+
+    /**
+     * If <code>true</code>, the simple templates are evaluated by compiled
+     * accessors instead of the SpEL interpreter. Default to <code>true</code>.
+     *
+     * @see AuditPlan#isCompiled()
+     */
+    public void setCompileTemplates(boolean compileTemplates) {
+        this.compileTemplates = compileTemplates;
+    }
+
+    /**
+     * Size of the ring buffer used in {@link #isAsynchronous()} mode, rounded
+     * up to a power of two. Default to 1024.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * If <code>true</code>, the methods returning a
+     * <code>CompletionStage</code> or a {@link java.util.concurrent.Future}
+     * are audited when the returned future completes, with its value or its
+     * failure and the elapsed time until its completion. The caller thread
+     * never waits for the completion. Default to <code>false</code>: the
+     * future itself is audited when the method returns.
+     */
+    public void setAuditFutures(boolean auditFutures) {
+        this.auditFutures = auditFutures;
+    }
+
+    /**
+     * Maximum number of distinct messages tracked by the
+     * {@link #setDeduplicationWindowInMillis(long) deduplication}. Default to
+     * 1024.
+     */
+    public void setDeduplicationMaxEntries(int deduplicationMaxEntries) {
+        this.deduplicationMaxEntries = deduplicationMaxEntries;
+    }
+
+    /**
+     * If positive, the identical messages (same text without the timestamp
+     * and the duration) written within this window are folded in a single
+     * summary line by an {@link AuditDeduplicator}. Default to
+     * <code>0</code>, disabled.
+     */
+    public void setDeduplicationWindowInMillis(long deduplicationWindowInMillis) {
+        this.deduplicationWindowInMillis = deduplicationWindowInMillis;
+    }
+
+    /**
+     * If <code>true</code>, the {@link AuditedMethodStatistics} of each
+     * audited method are registered in the {@link #getMbeanServer()}.
+     * Default to <code>false</code>.
+     */
+    public void setExportStatistics(boolean exportStatistics) {
+        this.exportStatistics = exportStatistics;
+    }
+
+    /**
+     * Maximum time a returned {@link java.util.concurrent.Future} that can
+     * not notify its completion is polled; it is then audited with the future
+     * itself as returned value. Default to 10 minutes.
+     */
+    public void setFutureMaxPendingAgeInMillis(long futureMaxPendingAgeInMillis) {
+        futureCompletionNotifier.setMaxPendingAgeInMillis(futureMaxPendingAgeInMillis);
+    }
+
+    /**
+     * Maximum number of returned {@link java.util.concurrent.Future}s that
+     * can not notify their completion polled at the same time; the following
+     * ones are audited immediately, with the future itself as returned value.
+     * Default to 10000.
+     */
+    public void setFutureMaxPendingCount(int futureMaxPendingCount) {
+        futureCompletionNotifier.setMaxPendingCount(futureMaxPendingCount);
+    }
+
+    /**
+     * Interval between two checks of the completion of the returned
+     * {@link java.util.concurrent.Future}s that can not notify their
+     * completion. Default to 10 ms.
+     */
+    public void setFuturePollingIntervalInMillis(long futurePollingIntervalInMillis) {
+        futureCompletionNotifier.setPollingIntervalInMillis(futurePollingIntervalInMillis);
+    }
+
+    /**
+     * Maximum number of nested events kept per audited invocation when
+     * {@link #setCoalesceNestedCalls(boolean) coalescing nested calls}: the
+     * next ones are only counted and rendered as <code>"... and N more"</code>.
+     * Default to 100.
+     */
+    public void setMaxNestedEvents(int maxNestedEvents) {
+        this.maxNestedEvents = maxNestedEvents;
+    }
+
+    /**
+     * Default to the platform MBean server.
+     */
+    public void setMbeanServer(MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+
+    /**
+     * Behavior when the ring buffer is full in {@link #isAsynchronous()} mode.
+     * Default to {@link AsyncAuditDispatcher.OverflowPolicy#BLOCK}.
+     */
+    public void setOverflowPolicy(AsyncAuditDispatcher.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * If <code>true</code>, the templates of the <code>@Audited</code>
+     * methods of the beans are parsed when the application context is
+     * refreshed instead of on the first invocation of each method. Default
+     * to <code>false</code>.
+     */
+    public void setPreScanAuditedMethods(boolean preScanAuditedMethods) {
+        this.preScanAuditedMethods = preScanAuditedMethods;
+    }
+
+    /**
+     * If <code>true</code> (default), the duration and the outcome of each
+     * invocation are recorded in the {@link AuditedMethodStatistics} of its
+     * method.
+     */
+    public void setStatisticsEnabled(boolean statisticsEnabled) {
+        this.statisticsEnabled = statisticsEnabled;
+    }
+
+    /**
+     * Renderer of the timestamps, its clock timestamps the captured events.
+     * Default to {@link TimestampRenderer#getSharedInstance()}.
+     */
+    public void setTimestampRenderer(TimestampRenderer timestampRenderer) {
+        this.timestampRenderer = timestampRenderer;
+    }
+
+    @Around(value = "execution(@fr.xebia.audit.Audited * *(..)) && @annotation(audited)", argNames = "pjp,audited")
     public Object logMessage(ProceedingJoinPoint pjp, Audited audited) throws Throwable {
 
+        Object target = pjp.getTarget();
+        AuditPlan plan = getPlan(((MethodSignature) pjp.getSignature()).getMethod(), audited,
+                target == null ? null : ClassUtils.getUserClass(target));
+        Method method = plan.getMethod();
+
+        CallFrame parentFrame = null;
+        CallFrame frame = null;
+        if (coalesceNestedCalls) {
+            parentFrame = callFrames.get();
+            frame = new CallFrame(maxNestedEvents);
+            callFrames.set(frame);
+        }
         long nanosBefore = System.nanoTime();
+        Object returned;
         try {
-            Object returned = pjp.proceed();
-            long durationInNanos = System.nanoTime() - nanosBefore;
-            String message = buildMessage(audited.message(), pjp.getThis(), pjp.getArgs(), returned, null, durationInNanos);
-            logger.info(message);
-            return returned;
+            returned = pjp.proceed();
         } catch (Throwable t) {
-            long durationInNanos = System.nanoTime() - nanosBefore;
-            String message = buildMessage(audited.message(), pjp.getThis(), pjp.getArgs(), null, t, durationInNanos);
-            logger.warn(message);
+            long nanosAfter = System.nanoTime();
+            exitFrame(frame, parentFrame);
+            completed(method, plan, pjp.getThis(), pjp.getArgs(), null, t, frame, parentFrame, nanosBefore, nanosAfter);
             throw t;
         }
+        long nanosAfter = System.nanoTime();
+        exitFrame(frame, parentFrame);
+        if (auditFutures && FutureCompletionNotifier.isFuture(returned)) {
+            auditOnCompletion(returned, method, plan, pjp.getThis(), pjp.getArgs(), frame, nanosBefore);
+        } else {
+            completed(method, plan, pjp.getThis(), pjp.getArgs(), returned, null, frame, parentFrame, nanosBefore, nanosAfter);
+        }
+        return returned;
     }
 }
\ No newline at end of file
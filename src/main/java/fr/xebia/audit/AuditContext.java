@@ -0,0 +1,141 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.web.authentication.WebAuthenticationDetails;
+
+/**
+ * Immutable identity of the author of audited invocations: the principal, its
+ * remote address and the <code>" by ${principal} coming from ${address}"</code>
+ * suffix of the audit messages.
+ *
+ * @see AuditContextHolder
+ */
+public final class AuditContext {
+
+    static final AuditContext ANONYMOUS = new AuditContext(null, null, null);
+
+    /**
+     * Returns the context of the given Spring Security authentication.
+     *
+     * @param authentication
+     *            <code>null</code> if anonymous
+     */
+    public static AuditContext of(Authentication authentication) {
+        if (authentication == null) {
+            return ANONYMOUS;
+        }
+        String remoteAddress = null;
+        if (authentication.getDetails() instanceof WebAuthenticationDetails) {
+            remoteAddress = ((WebAuthenticationDetails) authentication.getDetails()).getRemoteAddress();
+        }
+        return new AuditContext(authentication, authentication.getName(), remoteAddress);
+    }
+
+    private final Authentication authentication;
+
+    private final String principal;
+
+    private final String remoteAddress;
+
+    /**
+     * Lazily rendered, racy single-check like {@link String#hashCode()}: the
+     * suffix is immutable and equal whichever thread renders it.
+     */
+    private String suffix;
+
+    /**
+     * @param principal
+     *            <code>null</code> if anonymous
+     * @param remoteAddress
+     *            <code>null</code> if unknown
+     */
+    public AuditContext(String principal, String remoteAddress) {
+        this(null, principal, remoteAddress);
+    }
+
+    private AuditContext(Authentication authentication, String principal, String remoteAddress) {
+        this.authentication = authentication;
+        this.principal = principal;
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Appends the <code>" by ${principal} coming from ${address}"</code>
+     * suffix to the given builder, without rendering it in a string if it
+     * has not been rendered yet.
+     */
+    void appendSuffixTo(StringBuilder msg) {
+        String renderedSuffix = suffix;
+        if (renderedSuffix != null) {
+            msg.append(renderedSuffix);
+            return;
+        }
+        msg.append(" by ");
+        if (principal == null) {
+            msg.append("anonymous");
+        } else {
+            msg.append(principal);
+            if (remoteAddress != null) {
+                msg.append(" coming from ").append(remoteAddress);
+            }
+        }
+    }
+
+    /**
+     * The authentication this context has been built from, <code>null</code>
+     * if anonymous or not built from an authentication.
+     */
+    Authentication getAuthentication() {
+        return authentication;
+    }
+
+    /**
+     * Name of the authenticated user or <code>null</code> if anonymous.
+     */
+    public String getPrincipal() {
+        return principal;
+    }
+
+    /**
+     * Remote address of the authenticated user or <code>null</code> if the
+     * authentication did not hold {@link WebAuthenticationDetails}.
+     */
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Returns the <code>" by ${principal} coming from ${address}"</code>
+     * suffix of the audit messages, rendered once.
+     */
+    public String getSuffix() {
+        String renderedSuffix = suffix;
+        if (renderedSuffix == null) {
+            StringBuilder msg = new StringBuilder(32);
+            appendSuffixTo(msg);
+            renderedSuffix = msg.toString();
+            suffix = renderedSuffix;
+        }
+        return renderedSuffix;
+    }
+
+    @Override
+    public String toString() {
+        return "AuditContext[principal=" + principal + ", remoteAddress=" + remoteAddress + "]";
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Associates an {@link AuditContext} with the current thread for the duration
+ * of a request, so that the audited invocations of the request share the
+ * principal, the remote address and the rendered message suffix.
+ * <p>
+ * Within a request delimited by {@link #beginRequest()} and
+ * {@link #endRequest()} (see
+ * {@link fr.xebia.audit.web.AuditContextFilter}), the context is built on the
+ * first audited invocation and rebuilt only when the Spring Security
+ * authentication changes (e.g. login during the request). Outside of a
+ * request, {@link #getContext()} builds a new context on each invocation as
+ * no hook clears the thread at the end of the unit of work.
+ * </p>
+ */
+public final class AuditContextHolder {
+
+    /**
+     * Marks a request whose context has not been built yet.
+     */
+    private static final AuditContext UNRESOLVED = new AuditContext(null, null);
+
+    private static final ThreadLocal<AuditContext> contextHolder = new ThreadLocal<AuditContext>();
+
+    /**
+     * Starts caching the context of the current thread.
+     *
+     * @return <code>false</code> if a request was already in progress on the
+     *         current thread, the caller must then not invoke
+     *         {@link #endRequest()}
+     */
+    public static boolean beginRequest() {
+        if (contextHolder.get() != null) {
+            return false;
+        }
+        contextHolder.set(UNRESOLVED);
+        return true;
+    }
+
+    /**
+     * Stops caching the context of the current thread.
+     */
+    public static void endRequest() {
+        contextHolder.remove();
+    }
+
+    /**
+     * Returns the context of the Spring Security authentication of the
+     * current thread.
+     */
+    public static AuditContext getContext() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        AuditContext context = contextHolder.get();
+        if (context == null) {
+            return AuditContext.of(authentication);
+        }
+        if (context == UNRESOLVED || context.getAuthentication() != authentication) {
+            context = AuditContext.of(authentication);
+            // rendered once for all the invocations of the request
+            context.getSuffix();
+            contextHolder.set(context);
+        }
+        return context;
+    }
+
+    /**
+     * Returns <code>true</code> if the context of the current thread is cached
+     * until {@link #endRequest()}.
+     */
+    public static boolean isInRequest() {
+        return contextHolder.get() != null;
+    }
+
+    private AuditContextHolder() {
+    }
+}
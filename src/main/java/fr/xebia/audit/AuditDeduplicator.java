@@ -0,0 +1,379 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Folds the identical audit messages written within a time window.
+ * <p>
+ * The first occurrence of a message is written immediately. The identical
+ * messages that follow within {@link #getWindowInMillis()} are only counted;
+ * when the window closes, a single summary line is written with the number
+ * of occurrences and the timestamps of the first and the last one:
+ * <code>"${last} ${message} (occurred 1234 times from ${first} to ${last})"</code>.
+ * Messages are identical if their keys, e.g. the message without its
+ * timestamp and its duration, are equal.
+ * </p>
+ * <p>
+ * At most {@link #getMaxEntries()} distinct keys are tracked, the least
+ * recently seen ones are evicted (their summary is written). Keys are
+ * spread on {@value #STRIPE_COUNT} independently locked stripes, each a
+ * {@link LinkedHashMap} in access order, and looked up without copying the
+ * message. Closed windows are swept by a daemon thread between
+ * {@link #start()} and {@link #stop()}, otherwise on the next occurrence of
+ * their key.
+ * </p>
+ */
+public class AuditDeduplicator {
+
+    private static class Entry {
+        long count;
+
+        AuditEvent firstEvent;
+
+        long firstTimestampInMillis;
+
+        final String key;
+
+        long lastTimestampInMillis;
+
+        AuditSink sink;
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        void open(AuditEvent event, AuditSink sink) {
+            this.firstEvent = event;
+            this.sink = sink;
+            this.count = 1;
+            this.firstTimestampInMillis = event.getTimestampInMillis();
+            this.lastTimestampInMillis = event.getTimestampInMillis();
+        }
+    }
+
+    /**
+     * A range of a message, equal to the {@link String} key with the same
+     * characters, so that the stripes are looked up without copying the
+     * message.
+     */
+    private static class RangeKey {
+        private int end;
+
+        private int hash;
+
+        private CharSequence message;
+
+        private int start;
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof String)) {
+                return false;
+            }
+            String other = (String) obj;
+            if (other.length() != end - start) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                if (message.charAt(i) != other.charAt(i - start)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        void set(CharSequence message, int start, int end, int hash) {
+            this.message = message;
+            this.start = start;
+            this.end = end;
+            this.hash = hash;
+        }
+    }
+
+    private static class Stripe {
+        final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+
+        final RangeKey probe = new RangeKey();
+    }
+
+    static final int STRIPE_COUNT = 16;
+
+    /**
+     * Same hash as {@link String#hashCode()} of the range.
+     */
+    static int hash(CharSequence message, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + message.charAt(i);
+        }
+        return hash;
+    }
+
+    private final AuditClock clock;
+
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    private ScheduledExecutorService executor;
+
+    private final AtomicLong foldedCount = new AtomicLong();
+
+    private final Logger logger = LoggerFactory.getLogger(AuditDeduplicator.class);
+
+    private final int maxEntries;
+
+    private final int maxEntriesPerStripe;
+
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+    private volatile TimestampRenderer timestampRenderer = TimestampRenderer.getSharedInstance();
+
+    private final long windowInMillis;
+
+    public AuditDeduplicator(long windowInMillis, int maxEntries) {
+        this(windowInMillis, maxEntries, AuditClock.SYSTEM);
+    }
+
+    /**
+     * @param clock
+     *            clock of the sweeping thread, the windows of the messages
+     *            are measured with the timestamps of their events
+     */
+    public AuditDeduplicator(long windowInMillis, int maxEntries, AuditClock clock) {
+        super();
+        if (windowInMillis <= 0) {
+            throw new IllegalArgumentException("windowInMillis must be positive");
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.windowInMillis = windowInMillis;
+        this.maxEntries = maxEntries;
+        this.maxEntriesPerStripe = (maxEntries + STRIPE_COUNT - 1) / STRIPE_COUNT;
+        this.clock = clock;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Writes the summaries of all the folded messages and forgets them.
+     */
+    public void flush() {
+        sweep(Long.MAX_VALUE);
+    }
+
+    /**
+     * Number of distinct keys evicted to respect {@link #getMaxEntries()}.
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * Number of messages that have not been written but counted in a summary.
+     */
+    public long getFoldedCount() {
+        return foldedCount.get();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Number of distinct keys currently tracked.
+     */
+    public int getSize() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.entries.size();
+            }
+        }
+        return size;
+    }
+
+    public TimestampRenderer getTimestampRenderer() {
+        return timestampRenderer;
+    }
+
+    public long getWindowInMillis() {
+        return windowInMillis;
+    }
+
+    /**
+     * Returns <code>true</code> if the given message must be written,
+     * <code>false</code> if it is identical to a message written less than
+     * {@link #getWindowInMillis()} ago and has been counted.
+     *
+     * @param message
+     *            the rendered message, only read during the invocation
+     * @param keyStart
+     *            start of the key in the message, inclusive
+     * @param keyEnd
+     *            end of the key in the message, exclusive
+     * @param sink
+     *            destination of the summary of the window opened by this
+     *            message
+     */
+    public boolean offer(AuditEvent event, CharSequence message, int keyStart, int keyEnd, AuditSink sink) {
+        int hash = hash(message, keyStart, keyEnd);
+        Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1)];
+        long timestampInMillis = event.getTimestampInMillis();
+        Entry closed = null;
+        synchronized (stripe) {
+            stripe.probe.set(message, keyStart, keyEnd, hash);
+            Entry entry = stripe.entries.get(stripe.probe);
+            stripe.probe.set(null, 0, 0, 0);
+            if (entry != null && timestampInMillis - entry.firstTimestampInMillis < windowInMillis) {
+                entry.count++;
+                entry.lastTimestampInMillis = Math.max(entry.lastTimestampInMillis, timestampInMillis);
+                foldedCount.incrementAndGet();
+                return false;
+            }
+            if (entry == null) {
+                if (stripe.entries.size() >= maxEntriesPerStripe) {
+                    Iterator<Entry> eldest = stripe.entries.values().iterator();
+                    closed = eldest.next();
+                    eldest.remove();
+                    evictedCount.incrementAndGet();
+                }
+                entry = new Entry(message.subSequence(keyStart, keyEnd).toString());
+                stripe.entries.put(entry.key, entry);
+            } else if (entry.count > 1) {
+                // the window is closed, summarize it before opening a new one
+                closed = entry;
+                entry = new Entry(closed.key);
+                stripe.entries.put(entry.key, entry);
+            }
+            entry.open(event, sink);
+        }
+        if (closed != null && closed.count > 1) {
+            writeSummary(closed);
+        }
+        return true;
+    }
+
+    public void setTimestampRenderer(TimestampRenderer timestampRenderer) {
+        this.timestampRenderer = timestampRenderer;
+    }
+
+    /**
+     * Starts sweeping the closed windows every half window.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "audit-deduplicator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1, windowInMillis / 2);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sweep(clock.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    logger.warn("Exception sweeping the audit deduplicator", e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the sweeping thread and writes the summaries of all the folded
+     * messages.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
+        flush();
+    }
+
+    /**
+     * Forgets the windows closed at the given time and writes their
+     * summaries.
+     */
+    void sweep(long nowInMillis) {
+        List<Entry> closed = null;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Iterator<Entry> it = stripe.entries.values().iterator(); it.hasNext();) {
+                    Entry entry = it.next();
+                    if (nowInMillis == Long.MAX_VALUE || nowInMillis - entry.firstTimestampInMillis >= windowInMillis) {
+                        it.remove();
+                        if (entry.count > 1) {
+                            if (closed == null) {
+                                closed = new ArrayList<Entry>();
+                            }
+                            closed.add(entry);
+                        }
+                    }
+                }
+            }
+        }
+        if (closed != null) {
+            for (Entry entry : closed) {
+                writeSummary(entry);
+            }
+        }
+    }
+
+    private void writeSummary(Entry entry) {
+        TimestampRenderer renderer = timestampRenderer;
+        StringBuilder msg = new StringBuilder(entry.key.length() + 96);
+        renderer.appendTo(entry.lastTimestampInMillis, msg);
+        msg.append(' ').append(entry.key).append(" (occurred ").append(entry.count).append(" times from ");
+        renderer.appendTo(entry.firstTimestampInMillis, msg);
+        msg.append(" to ");
+        renderer.appendTo(entry.lastTimestampInMillis, msg);
+        msg.append(')');
+        try {
+            entry.sink.write(entry.firstEvent, msg.toString());
+        } catch (RuntimeException e) {
+            logger.warn("Exception writing the summary of " + entry.key, e);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of an audited invocation, captured on the caller thread
+ * so that it can be rendered later, possibly on another thread.
+ * <p>
+ * The <code>args</code> array is a shallow copy of the invocation arguments:
+ * the arguments themselves are not copied and are rendered in the state they
+ * have at rendering time.
+ * </p>
+ */
+public class AuditEvent {
+
+    private final Object[] args;
+
+    private final AuditContext context;
+
+    private final long durationInNanos;
+
+    private final Object invokedObject;
+
+    private final Method method;
+
+    private final List<AuditEvent> nestedEvents;
+
+    private final boolean nestedFailure;
+
+    private final int omittedNestedEventCount;
+
+    private final Object returned;
+
+    private final String template;
+
+    private final Throwable throwned;
+
+    private final long timestampInMillis;
+
+    public AuditEvent(String template, Object invokedObject, Object[] args, Object returned, Throwable throwned, String principal,
+            String remoteAddress, long timestampInMillis, long durationInNanos) {
+        this(null, template, invokedObject, args, returned, throwned, principal, remoteAddress, timestampInMillis, durationInNanos);
+    }
+
+    /**
+     * @param method
+     *            the audited method, <code>null</code> if unknown
+     */
+    public AuditEvent(Method method, String template, Object invokedObject, Object[] args, Object returned, Throwable throwned,
+            String principal, String remoteAddress, long timestampInMillis, long durationInNanos) {
+        this(method, template, invokedObject, args, returned, throwned, new AuditContext(principal, remoteAddress), timestampInMillis,
+                durationInNanos);
+    }
+
+    /**
+     * @param method
+     *            the audited method, <code>null</code> if unknown
+     * @param context
+     *            the author of the invocation
+     */
+    public AuditEvent(Method method, String template, Object invokedObject, Object[] args, Object returned, Throwable throwned,
+            AuditContext context, long timestampInMillis, long durationInNanos) {
+        this(method, template, invokedObject, args, returned, throwned, context, null, timestampInMillis, durationInNanos);
+    }
+
+    /**
+     * @param method
+     *            the audited method, <code>null</code> if unknown
+     * @param context
+     *            the author of the invocation
+     * @param nestedEvents
+     *            the audited invocations made by this invocation,
+     *            <code>null</code> if none
+     */
+    public AuditEvent(Method method, String template, Object invokedObject, Object[] args, Object returned, Throwable throwned,
+            AuditContext context, List<AuditEvent> nestedEvents, long timestampInMillis, long durationInNanos) {
+        this(method, template, invokedObject, args, returned, throwned, context, nestedEvents, 0, false, timestampInMillis,
+                durationInNanos);
+    }
+
+    /**
+     * @param method
+     *            the audited method, <code>null</code> if unknown
+     * @param context
+     *            the author of the invocation
+     * @param nestedEvents
+     *            the audited invocations made by this invocation,
+     *            <code>null</code> if none
+     * @param omittedNestedEventCount
+     *            the number of audited invocations made by this invocation
+     *            after the <code>nestedEvents</code>, not kept
+     * @param omittedNestedFailure
+     *            <code>true</code> if one of the omitted invocations failed
+     */
+    public AuditEvent(Method method, String template, Object invokedObject, Object[] args, Object returned, Throwable throwned,
+            AuditContext context, List<AuditEvent> nestedEvents, int omittedNestedEventCount, boolean omittedNestedFailure,
+            long timestampInMillis, long durationInNanos) {
+        super();
+        this.method = method;
+        this.template = template;
+        this.invokedObject = invokedObject;
+        this.args = args == null ? null : args.clone();
+        this.returned = returned;
+        this.throwned = throwned;
+        this.context = context;
+        this.omittedNestedEventCount = omittedNestedEventCount;
+        if (nestedEvents == null || nestedEvents.isEmpty()) {
+            this.nestedEvents = Collections.emptyList();
+            this.nestedFailure = omittedNestedFailure;
+        } else {
+            this.nestedEvents = Collections.unmodifiableList(nestedEvents);
+            boolean failure = omittedNestedFailure;
+            for (AuditEvent nestedEvent : nestedEvents) {
+                failure |= nestedEvent.isFailure() || nestedEvent.hasNestedFailure();
+            }
+            this.nestedFailure = failure;
+        }
+        this.timestampInMillis = timestampInMillis;
+        this.durationInNanos = durationInNanos;
+    }
+
+    public Object[] getArgs() {
+        return args;
+    }
+
+    /**
+     * The author of the invocation.
+     */
+    public AuditContext getContext() {
+        return context;
+    }
+
+    public long getDurationInNanos() {
+        return durationInNanos;
+    }
+
+    public Object getInvokedObject() {
+        return invokedObject;
+    }
+
+    /**
+     * The audited method or <code>null</code> if unknown.
+     */
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * The audited invocations made by this invocation, in their completion
+     * order, when nested calls are coalesced.
+     *
+     * @see AuditAspect#setCoalesceNestedCalls(boolean)
+     */
+    public List<AuditEvent> getNestedEvents() {
+        return nestedEvents;
+    }
+
+    /**
+     * Number of audited invocations made by this invocation beyond the
+     * {@link AuditAspect#setMaxNestedEvents(int) maximum} of
+     * {@link #getNestedEvents()}.
+     */
+    public int getOmittedNestedEventCount() {
+        return omittedNestedEventCount;
+    }
+
+    /**
+     * Name of the authenticated user or <code>null</code> if the invocation
+     * was anonymous.
+     */
+    public String getPrincipal() {
+        return context.getPrincipal();
+    }
+
+    /**
+     * Remote address of the authenticated user or <code>null</code> if the
+     * authentication did not hold
+     * {@link org.springframework.security.web.authentication.WebAuthenticationDetails}
+     * .
+     */
+    public String getRemoteAddress() {
+        return context.getRemoteAddress();
+    }
+
+    public Object getReturned() {
+        return returned;
+    }
+
+    /**
+     * The <code>@Audited</code> message template or, for the events of
+     * {@link Auditor}, the raw audit message.
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    public Throwable getThrowned() {
+        return throwned;
+    }
+
+    public long getTimestampInMillis() {
+        return timestampInMillis;
+    }
+
+    /**
+     * Returns <code>true</code> if one of the {@link #getNestedEvents()}, at
+     * any depth, or one of the omitted ones is a failure.
+     */
+    public boolean hasNestedFailure() {
+        return nestedFailure;
+    }
+
+    public boolean isFailure() {
+        return throwned != null;
+    }
+
+    @Override
+    public String toString() {
+        return "AuditEvent[template=" + template + ", principal=" + getPrincipal() + ", remoteAddress=" + getRemoteAddress() + ", failure="
+                + isFailure() + ", durationInNanos=" + durationInNanos + "]";
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+/**
+ * Reusable per-thread buffers of the audit message rendering: a
+ * {@link StringBuilder}, a {@link AuditAspect.RootObject} and the range of
+ * the deduplication key of the rendered message.
+ * <p>
+ * The buffer of a thread is handed out by {@link #acquire()} and given back
+ * by {@link #release()}. A nested acquisition on the same thread (e.g. a
+ * template or a sink that audits itself) gets a new, non-shared buffer. A
+ * builder that grew above {@value #MAX_RETAINED_CAPACITY} characters is
+ * dropped on release so that a single large message does not stay pinned by
+ * the thread.
+ * </p>
+ */
+final class AuditMessageBuffer {
+
+    static final int INITIAL_CAPACITY = 256;
+
+    static final int MAX_RETAINED_CAPACITY = 8 * 1024;
+
+    private static final ThreadLocal<AuditMessageBuffer> buffers = new ThreadLocal<AuditMessageBuffer>() {
+        @Override
+        protected AuditMessageBuffer initialValue() {
+            return new AuditMessageBuffer(true);
+        }
+    };
+
+    /**
+     * Returns the cleared buffer of the current thread.
+     */
+    static AuditMessageBuffer acquire() {
+        AuditMessageBuffer buffer = buffers.get();
+        if (buffer.inUse) {
+            return new AuditMessageBuffer(false);
+        }
+        buffer.inUse = true;
+        buffer.builder.setLength(0);
+        buffer.keyStart = 0;
+        buffer.keyEnd = -1;
+        return buffer;
+    }
+
+    private StringBuilder builder = new StringBuilder(INITIAL_CAPACITY);
+
+    private boolean inUse;
+
+    private int keyEnd = -1;
+
+    private int keyStart;
+
+    private final AuditAspect.RootObject rootObject = new AuditAspect.RootObject();
+
+    private final boolean shared;
+
+    private AuditMessageBuffer(boolean shared) {
+        super();
+        this.shared = shared;
+    }
+
+    StringBuilder getBuilder() {
+        return builder;
+    }
+
+    /**
+     * End of the deduplication key in the builder, exclusive. Default to the
+     * end of the message.
+     */
+    int getKeyEnd() {
+        return keyEnd < 0 ? builder.length() : keyEnd;
+    }
+
+    /**
+     * Start of the deduplication key in the builder, inclusive.
+     */
+    int getKeyStart() {
+        return keyStart;
+    }
+
+    /**
+     * Marks the range of the message that identifies it, e.g. without its
+     * timestamp and its duration.
+     *
+     * @see AuditDeduplicator
+     */
+    void markKey(int start, int end) {
+        keyStart = start;
+        keyEnd = end;
+    }
+
+    /**
+     * Returns the root object of the buffer, initialized with the given
+     * invocation.
+     */
+    AuditAspect.RootObject rootObject(AuditEvent event) {
+        rootObject.reset(event.getInvokedObject(), event.getArgs(), event.getReturned(), event.getThrowned());
+        return rootObject;
+    }
+
+    /**
+     * Gives the buffer back to its thread, it must not be used anymore by
+     * the caller.
+     */
+    void release() {
+        rootObject.reset(null, null, null, null);
+        if (!shared) {
+            return;
+        }
+        if (builder.capacity() > MAX_RETAINED_CAPACITY) {
+            builder = new StringBuilder(INITIAL_CAPACITY);
+        }
+        inUse = false;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import java.lang.reflect.Method;
+
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+
+/**
+ * Everything {@link AuditAspect} needs to audit an invocation of a given
+ * method, resolved once per method: the {@link Audited} attributes, the
+ * parsed message template and the names of the method parameters.
+ * <p>
+ * Parameters are exposed as SpEL variables when the template references
+ * them: <code>@Audited(message = "save(#{#customer.name})")</code>.
+ * </p>
+ * <p>
+ * Simple templates (property paths and indexes on <code>args</code>,
+ * <code>returned</code>, <code>throwned</code>, <code>invokedObject</code>
+ * and parameters) can be compiled into direct accessors that bypass the
+ * SpEL interpreter; SpEL remains the fallback for everything else.
+ * </p>
+ */
+public class AuditPlan {
+
+    private static final String[] NO_PARAMETER_NAMES = new String[0];
+
+    private final Audited audited;
+
+    private final CompiledTemplate compiledTemplate;
+
+    private final Expression expression;
+
+    private final Method method;
+
+    private final String[] parameterNames;
+
+    private final RuntimeException parseException;
+
+    private final boolean referencesParameters;
+
+    private final AuditedMethodStatistics statistics;
+
+    private final String template;
+
+    private final AuditThrottle throttle;
+
+    /**
+     * @param method
+     *            <code>null</code> for plans built from a template only
+     * @param audited
+     *            <code>null</code> for plans built from a template only
+     * @param parameterNames
+     *            <code>null</code> if unknown
+     * @param parseException
+     *            not <code>null</code> if the template could not be parsed,
+     *            it is then rethrown by {@link #evaluate(Object, Object[])}
+     */
+    public AuditPlan(Method method, Audited audited, String template, Expression expression, RuntimeException parseException,
+            String[] parameterNames) {
+        this(method, audited, template, expression, parseException, parameterNames, false);
+    }
+
+    /**
+     * @param compileTemplate
+     *            if <code>true</code> and if the template is simple enough,
+     *            it is evaluated by compiled accessors instead of SpEL
+     */
+    public AuditPlan(Method method, Audited audited, String template, Expression expression, RuntimeException parseException,
+            String[] parameterNames, boolean compileTemplate) {
+        super();
+        this.method = method;
+        this.audited = audited;
+        this.template = template;
+        this.expression = expression;
+        this.parseException = parseException;
+        this.parameterNames = parameterNames == null ? NO_PARAMETER_NAMES : parameterNames;
+        this.referencesParameters = referencesOneOf(template, this.parameterNames);
+        this.compiledTemplate = compileTemplate && parseException == null ? CompiledTemplate.compile(template, this.parameterNames) : null;
+        this.throttle = AuditThrottle.create(audited);
+        this.statistics = method == null ? null : new AuditedMethodStatistics(method);
+    }
+
+    private static boolean referencesOneOf(String template, String[] parameterNames) {
+        if (template == null) {
+            return false;
+        }
+        for (String parameterName : parameterNames) {
+            if (template.contains("#" + parameterName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates the template against the given root object.
+     *
+     * @throws RuntimeException
+     *             if the template could not be parsed or evaluated
+     */
+    public String evaluate(Object rootObject, Object[] args) {
+        if (parseException != null) {
+            throw parseException;
+        }
+        if (compiledTemplate != null && rootObject instanceof AuditAspect.RootObject) {
+            Object value = compiledTemplate.evaluate((AuditAspect.RootObject) rootObject, args);
+            if (value != CompiledTemplate.UNRESOLVED) {
+                return (String) value;
+            }
+        }
+        if (!referencesParameters || args == null) {
+            return expression.getValue(rootObject, String.class);
+        }
+        StandardEvaluationContext evaluationContext = new StandardEvaluationContext(rootObject);
+        for (int i = 0; i < parameterNames.length && i < args.length; i++) {
+            evaluationContext.setVariable(parameterNames[i], args[i]);
+        }
+        return expression.getValue(evaluationContext, String.class);
+    }
+
+    /**
+     * Appends the evaluated template to the given builder; <code>null</code>
+     * is appended as <code>"null"</code>. Compiled templates are appended
+     * without intermediate strings.
+     *
+     * @throws RuntimeException
+     *             if the template could not be parsed or evaluated
+     */
+    public void appendTo(Object rootObject, Object[] args, StringBuilder toAppendTo) {
+        if (parseException == null && compiledTemplate != null && rootObject instanceof AuditAspect.RootObject
+                && compiledTemplate.appendTo((AuditAspect.RootObject) rootObject, args, toAppendTo)) {
+            return;
+        }
+        toAppendTo.append(evaluate(rootObject, args));
+    }
+
+    public Audited getAudited() {
+        return audited;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public String[] getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * Number of invocations not audited because of the
+     * {@link Audited#maxEventsPerSecond()}.
+     */
+    public long getRateLimitedCount() {
+        return throttle == null ? 0 : throttle.getRateLimitedCount();
+    }
+
+    /**
+     * Number of invocations not audited because of the
+     * {@link Audited#sampleRate()}.
+     */
+    public long getSampledOutCount() {
+        return throttle == null ? 0 : throttle.getSampledOutCount();
+    }
+
+    /**
+     * Latency and success / failure counters of the method,
+     * <code>null</code> for plans built from a template only.
+     */
+    public AuditedMethodStatistics getStatistics() {
+        return statistics;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * Applies the {@link Audited#sampleRate()},
+     * {@link Audited#maxEventsPerSecond()} and
+     * {@link Audited#alwaysAuditFailures()} attributes to an invocation.
+     *
+     * @param nowInNanos
+     *            {@link System#nanoTime()}
+     * @return <code>false</code> if the invocation must not be audited
+     */
+    public boolean shouldAudit(boolean failure, long nowInNanos) {
+        return throttle == null || throttle.tryAcquire(failure, nowInNanos);
+    }
+
+    /**
+     * Returns <code>true</code> if the template is evaluated by compiled
+     * accessors, SpEL being only used as a fallback.
+     */
+    public boolean isCompiled() {
+        return compiledTemplate != null;
+    }
+
+    @Override
+    public String toString() {
+        return "AuditPlan[method=" + method + ", template=" + template + "]";
+    }
+}
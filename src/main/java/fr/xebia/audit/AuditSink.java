@@ -0,0 +1,39 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+/**
+ * Destination of the audit events emitted by {@link AuditAspect} and
+ * {@link Auditor}.
+ * <p>
+ * Implementations must be thread safe: in synchronous mode, they are invoked
+ * by the threads of the audited methods.
+ * </p>
+ *
+ * @see Slf4jAuditSink
+ * @see CharSequenceAuditSink
+ */
+public interface AuditSink {
+
+    /**
+     * @param event
+     *            the structured audit event
+     * @param message
+     *            the rendered audit message, including the timestamp, the
+     *            principal and the remote address
+     */
+    void write(AuditEvent event, String message);
+}
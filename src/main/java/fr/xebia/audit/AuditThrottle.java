@@ -0,0 +1,124 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free sampler and token bucket of an audited method, configured by
+ * {@link Audited#sampleRate()}, {@link Audited#maxEventsPerSecond()} and
+ * {@link Audited#alwaysAuditFailures()}.
+ * <p>
+ * Sampling is deterministic: with a rate of <code>0.1</code>, exactly one
+ * invocation out of ten is audited. The token bucket holds up to
+ * <code>max(1, maxEventsPerSecond)</code> tokens and is implemented as a
+ * single "theoretical arrival time" updated by compare-and-set.
+ * </p>
+ */
+class AuditThrottle {
+
+    private static final long NANOS_PER_SECOND = 1000L * 1000L * 1000L;
+
+    /**
+     * Returns a throttle for the given attributes or <code>null</code> if
+     * every invocation must be audited.
+     */
+    static AuditThrottle create(Audited audited) {
+        if (audited == null || (audited.sampleRate() >= 1.0 && audited.maxEventsPerSecond() <= 0)) {
+            return null;
+        }
+        return new AuditThrottle(audited.sampleRate(), audited.maxEventsPerSecond(), audited.alwaysAuditFailures());
+    }
+
+    private final boolean alwaysAuditFailures;
+
+    /**
+     * Tolerance of the bucket: how far ahead of the current time the
+     * theoretical arrival time can be.
+     */
+    private final long burstToleranceInNanos;
+
+    private final long emissionIntervalInNanos;
+
+    private final AtomicLong invocationCount = new AtomicLong();
+
+    private final AtomicLong rateLimitedCount = new AtomicLong();
+
+    private final AtomicLong sampledOutCount = new AtomicLong();
+
+    private final double sampleRate;
+
+    private final AtomicLong theoreticalArrivalTime = new AtomicLong(Long.MIN_VALUE);
+
+    AuditThrottle(double sampleRate, double maxEventsPerSecond, boolean alwaysAuditFailures) {
+        super();
+        this.sampleRate = Math.max(0.0, Math.min(1.0, sampleRate));
+        this.alwaysAuditFailures = alwaysAuditFailures;
+        if (maxEventsPerSecond > 0) {
+            this.emissionIntervalInNanos = Math.max(1L, (long) (NANOS_PER_SECOND / maxEventsPerSecond));
+            this.burstToleranceInNanos = (long) Math.max(0.0, Math.floor(maxEventsPerSecond) - 1) * emissionIntervalInNanos;
+        } else {
+            this.emissionIntervalInNanos = 0;
+            this.burstToleranceInNanos = 0;
+        }
+    }
+
+    long getRateLimitedCount() {
+        return rateLimitedCount.get();
+    }
+
+    long getSampledOutCount() {
+        return sampledOutCount.get();
+    }
+
+    /**
+     * Returns <code>true</code> if the invocation must be audited, otherwise
+     * increments the matching suppressed counter.
+     *
+     * @param nowInNanos
+     *            {@link System#nanoTime()}
+     */
+    boolean tryAcquire(boolean failure, long nowInNanos) {
+        if (failure && alwaysAuditFailures) {
+            return true;
+        }
+        if (sampleRate < 1.0) {
+            long n = invocationCount.incrementAndGet();
+            if ((long) (n * sampleRate) == (long) ((n - 1) * sampleRate)) {
+                sampledOutCount.incrementAndGet();
+                return false;
+            }
+        }
+        if (emissionIntervalInNanos > 0 && !tryConsumeToken(nowInNanos)) {
+            rateLimitedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean tryConsumeToken(long nowInNanos) {
+        while (true) {
+            long tat = theoreticalArrivalTime.get();
+            long base = tat == Long.MIN_VALUE || tat - nowInNanos < 0 ? nowInNanos : tat;
+            if (base - nowInNanos > burstToleranceInNanos) {
+                return false;
+            }
+            if (theoreticalArrivalTime.compareAndSet(tat, base + emissionIntervalInNanos)) {
+                return true;
+            }
+        }
+    }
+}
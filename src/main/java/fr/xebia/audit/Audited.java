@@ -49,4 +49,24 @@ public @interface Audited {
      * </p>
      */
     String message() default "";
+
+    /**
+     * Fraction of the invocations to audit, between <code>0.0</code> and
+     * <code>1.0</code>. Default to <code>1.0</code>, every invocation is
+     * audited. <code>0.1</code> audits one invocation out of ten.
+     */
+    double sampleRate() default 1.0;
+
+    /**
+     * Maximum number of audited invocations per second of this method, the
+     * following ones are suppressed. Default to <code>0</code>, no limit.
+     */
+    double maxEventsPerSecond() default 0;
+
+    /**
+     * If <code>true</code> (default), invocations throwing an exception are
+     * audited whatever the {@link #sampleRate()} and
+     * {@link #maxEventsPerSecond()}.
+     */
+    boolean alwaysAuditFailures() default true;
 }
\ No newline at end of file
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Latency histogram and success / failure counters of an audited method,
+ * recorded by {@link AuditAspect} for every invocation (including the ones
+ * suppressed by sampling or rate limiting) and exported as a standard MBean
+ * when {@link AuditAspect#isExportStatistics()}.
+ */
+public class AuditedMethodStatistics implements AuditedMethodStatisticsMBean {
+
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private final AtomicLong failureCount = new AtomicLong();
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    private final String method;
+
+    private final AtomicLong successCount = new AtomicLong();
+
+    public AuditedMethodStatistics(Method method) {
+        super();
+        StringBuilder signature = new StringBuilder(method.getDeclaringClass().getName()).append('.').append(method.getName()).append('(');
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i > 0) {
+                signature.append(", ");
+            }
+            String parameterType = parameterTypes[i].getCanonicalName();
+            signature.append(parameterType == null ? parameterTypes[i].getName() : parameterType);
+        }
+        this.method = signature.append(')').toString();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    public long getInvocationCount() {
+        return successCount.get() + failureCount.get();
+    }
+
+    public long getMaxInMicros() {
+        return histogram.getMax() / NANOS_PER_MICRO;
+    }
+
+    public long getMeanInMicros() {
+        return histogram.getMean() / NANOS_PER_MICRO;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Name of the MBean:
+     * <code>fr.xebia.audit:type=AuditedMethod,name="com.mycompany.MyService.save(com.mycompany.Customer)"</code>
+     */
+    public ObjectName getObjectName() throws MalformedObjectNameException {
+        return new ObjectName("fr.xebia.audit:type=AuditedMethod,name=" + ObjectName.quote(method));
+    }
+
+    public long getP50InMicros() {
+        return histogram.getPercentile(0.50) / NANOS_PER_MICRO;
+    }
+
+    public long getP90InMicros() {
+        return histogram.getPercentile(0.90) / NANOS_PER_MICRO;
+    }
+
+    public long getP99InMicros() {
+        return histogram.getPercentile(0.99) / NANOS_PER_MICRO;
+    }
+
+    public long getSuccessCount() {
+        return successCount.get();
+    }
+
+    public void record(long durationInNanos, boolean failure) {
+        histogram.record(durationInNanos);
+        if (failure) {
+            failureCount.incrementAndGet();
+        } else {
+            successCount.incrementAndGet();
+        }
+    }
+
+    public void reset() {
+        histogram.reset();
+        successCount.set(0);
+        failureCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "AuditedMethodStatistics[" + method + ", success=" + successCount + ", failure=" + failureCount + "]";
+    }
+}
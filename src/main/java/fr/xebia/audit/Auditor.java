@@ -15,12 +15,8 @@
  */
 package fr.xebia.audit;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.web.authentication.WebAuthenticationDetails;
 
@@ -31,9 +27,13 @@ import org.springframework.security.web.authentication.WebAuthenticationDetails;
  */
 public class Auditor {
 
-    private final static Logger auditLogger = LoggerFactory.getLogger("fr.xebia.audit");
+    private static volatile AuditSink auditSink = new Slf4jAuditSink();
+
+    private static volatile AuditDeduplicator deduplicator;
+
+    private static final Logger logger = LoggerFactory.getLogger(Auditor.class);
 
-    private static SimpleDateFormat dateFormatPrototype = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+    private static volatile TimestampRenderer timestampRenderer = TimestampRenderer.getSharedInstance();
 
     /**
      * <p>
@@ -53,28 +53,81 @@ public class Auditor {
      * @param message
      *            message to audit
      * @see SecurityContextHolder#getContext()
+     * @see AuditContextHolder
      */
     public static void audit(String message) {
         if (message == null) {
             message = "";
         }
-        StringBuilder msg = new StringBuilder(40 + message.length());
+        AuditContext context = AuditContextHolder.getContext();
+        TimestampRenderer renderer = timestampRenderer;
+        long timestampInMillis = renderer.getClock().currentTimeMillis();
+        AuditEvent event = new AuditEvent(null, message, null, null, null, null, context, timestampInMillis, 0);
 
-        SimpleDateFormat simpleDateFormat = (SimpleDateFormat) dateFormatPrototype.clone();
-        msg.append(simpleDateFormat.format(new Date()));
+        AuditMessageBuffer buffer = AuditMessageBuffer.acquire();
+        try {
+            StringBuilder msg = buffer.getBuilder();
 
-        msg.append(" ").append(message).append(" by ");
+            renderer.appendTo(timestampInMillis, msg);
 
-        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        if (authentication == null) {
-            msg.append("anonymous");
-        } else {
-            msg.append(authentication.getName());
-            if (authentication.getDetails() instanceof WebAuthenticationDetails) {
-                WebAuthenticationDetails details = (WebAuthenticationDetails) authentication.getDetails();
-                msg.append(" coming from " + details.getRemoteAddress());
+            msg.append(' ');
+            int keyStart = msg.length();
+            msg.append(message);
+            context.appendSuffixTo(msg);
+            AuditSink sink = auditSink;
+            AuditDeduplicator auditDeduplicator = deduplicator;
+            if (auditDeduplicator != null && !auditDeduplicator.offer(event, msg, keyStart, msg.length(), sink)) {
+                return;
             }
+            if (sink instanceof CharSequenceAuditSink) {
+                ((CharSequenceAuditSink) sink).write(event, msg);
+            } else {
+                sink.write(event, msg.toString());
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Exception writing audit event in " + auditSink, e);
+        } finally {
+            buffer.release();
         }
-        auditLogger.info(msg.toString());
+    }
+
+    public static AuditSink getAuditSink() {
+        return auditSink;
+    }
+
+    /**
+     * The deduplicator of the messages, <code>null</code> if disabled.
+     */
+    public static AuditDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
+    public static TimestampRenderer getTimestampRenderer() {
+        return timestampRenderer;
+    }
+
+    /**
+     * Destination of the audit events. Default to a {@link Slf4jAuditSink}
+     * writing in the <code>"fr.xebia.audit"</code> logger.
+     */
+    public static void setAuditSink(AuditSink auditSink) {
+        Auditor.auditSink = auditSink;
+    }
+
+    /**
+     * Folds the identical messages, <code>null</code> (default) to write all
+     * the messages. The caller is in charge of {@link AuditDeduplicator#start()}
+     * and {@link AuditDeduplicator#stop()}.
+     */
+    public static void setDeduplicator(AuditDeduplicator deduplicator) {
+        Auditor.deduplicator = deduplicator;
+    }
+
+    /**
+     * Renderer of the timestamps. Default to
+     * {@link TimestampRenderer#getSharedInstance()}.
+     */
+    public static void setTimestampRenderer(TimestampRenderer timestampRenderer) {
+        Auditor.timestampRenderer = timestampRenderer;
     }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+/**
+ * {@link AuditSink} able to consume the rendered message directly from the
+ * reusable buffer of the rendering thread, saving the copy of the message in
+ * a new {@link String}.
+ * <p>
+ * The given {@link CharSequence} is only valid during the invocation of
+ * {@link #write(AuditEvent, CharSequence)}: it is cleared and reused for the
+ * next message of the thread. Implementations that keep the message must
+ * copy it.
+ * </p>
+ */
+public interface CharSequenceAuditSink extends AuditSink {
+
+    /**
+     * @param event
+     *            the structured audit event
+     * @param message
+     *            the rendered audit message, must not be kept after this
+     *            invocation
+     */
+    void write(AuditEvent event, CharSequence message);
+}
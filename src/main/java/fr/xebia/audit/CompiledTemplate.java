@@ -0,0 +1,412 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.core.convert.TypeDescriptor;
+import org.springframework.expression.TypeConverter;
+import org.springframework.expression.spel.support.StandardTypeConverter;
+import org.springframework.util.StringUtils;
+
+/**
+ * Evaluates the simple <code>@Audited</code> templates without the SpEL
+ * interpreter: literal text and expressions made of a root
+ * (<code>args</code>, <code>invokedObject</code>, <code>returned</code>,
+ * <code>throwned</code> or a <code>#parameter</code>) followed by property
+ * accesses (<code>.name</code>, <code>?.name</code>) and integer indexes
+ * (<code>[0]</code>).
+ * <p>
+ * Getters are resolved once per runtime type and cached. Whenever the
+ * compiled accessors can not reproduce the SpEL semantics exactly (missing
+ * getter, property of <code>null</code>, index out of bounds, exception in a
+ * getter, etc), {@link #evaluate(AuditAspect.RootObject, Object[])} returns
+ * {@link #UNRESOLVED} and the caller falls back on SpEL.
+ * </p>
+ */
+class CompiledTemplate {
+
+    private static class Getter {
+        final Method method;
+
+        final Class<?> type;
+
+        Getter(Class<?> type, Method method) {
+            this.type = type;
+            this.method = method;
+        }
+    }
+
+    private static class IndexStep extends Step {
+        private final int index;
+
+        IndexStep(int index) {
+            this.index = index;
+        }
+
+        @Override
+        Object apply(Object target) {
+            if (target instanceof Object[]) {
+                Object[] array = (Object[]) target;
+                return index < array.length ? array[index] : UNRESOLVED;
+            } else if (target instanceof List<?>) {
+                List<?> list = (List<?>) target;
+                return index < list.size() ? list.get(index) : UNRESOLVED;
+            }
+            return UNRESOLVED;
+        }
+    }
+
+    private static class PropertyStep extends Step {
+
+        private volatile Getter cachedGetter;
+
+        private final String getterName;
+
+        private final String isserName;
+
+        private final boolean nullSafe;
+
+        PropertyStep(String propertyName, boolean nullSafe) {
+            this.nullSafe = nullSafe;
+            this.getterName = "get" + StringUtils.capitalize(propertyName);
+            this.isserName = "is" + StringUtils.capitalize(propertyName);
+        }
+
+        @Override
+        Object apply(Object target) {
+            if (target == null) {
+                return nullSafe ? null : UNRESOLVED;
+            }
+            if (target instanceof Class<?> || target instanceof Map<?, ?>) {
+                // SpEL has dedicated rules for static and map properties
+                return UNRESOLVED;
+            }
+            Class<?> type = target.getClass();
+            Getter getter = cachedGetter;
+            if (getter == null || getter.type != type) {
+                getter = new Getter(type, findGetter(type));
+                cachedGetter = getter;
+            }
+            if (getter.method == null) {
+                return UNRESOLVED;
+            }
+            try {
+                return getter.method.invoke(target, NO_ARGUMENTS);
+            } catch (IllegalAccessException e) {
+                return UNRESOLVED;
+            } catch (InvocationTargetException e) {
+                return UNRESOLVED;
+            }
+        }
+
+        private Method findGetter(Class<?> type) {
+            Method isser = null;
+            for (Method method : type.getMethods()) {
+                if (method.getParameterTypes().length != 0 || Modifier.isStatic(method.getModifiers())) {
+                    continue;
+                }
+                if (method.getName().equals(getterName)) {
+                    return accessible(method);
+                } else if (method.getName().equals(isserName)
+                        && (method.getReturnType() == boolean.class || method.getReturnType() == Boolean.class)) {
+                    isser = method;
+                }
+            }
+            return isser == null ? null : accessible(isser);
+        }
+
+        private Method accessible(Method method) {
+            if (!Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+                method.setAccessible(true);
+            }
+            return method;
+        }
+    }
+
+    private enum Root {
+        ARGS, INVOKED_OBJECT, RETURNED, THROWNED, VARIABLE
+    }
+
+    private static class Segment {
+
+        private final String literal;
+
+        private final Root root;
+
+        private final Step[] steps;
+
+        private final int variableIndex;
+
+        Segment(String literal) {
+            this.literal = literal;
+            this.root = null;
+            this.steps = null;
+            this.variableIndex = -1;
+        }
+
+        Segment(Root root, int variableIndex, Step[] steps) {
+            this.literal = null;
+            this.root = root;
+            this.variableIndex = variableIndex;
+            this.steps = steps;
+        }
+
+        boolean isLiteral() {
+            return root == null;
+        }
+
+        Object value(AuditAspect.RootObject rootObject, Object[] args) {
+            Object value;
+            switch (root) {
+            case ARGS:
+                value = rootObject.getArgs();
+                break;
+            case INVOKED_OBJECT:
+                value = rootObject.getInvokedObject();
+                break;
+            case RETURNED:
+                value = rootObject.getReturned();
+                break;
+            case THROWNED:
+                value = rootObject.getThrowned();
+                break;
+            case VARIABLE:
+            default:
+                if (args == null || variableIndex >= args.length) {
+                    return UNRESOLVED;
+                }
+                value = args[variableIndex];
+                break;
+            }
+            for (Step step : steps) {
+                value = step.apply(value);
+                if (value == UNRESOLVED) {
+                    return UNRESOLVED;
+                }
+            }
+            return value;
+        }
+    }
+
+    private static abstract class Step {
+        abstract Object apply(Object target);
+    }
+
+    private static final Pattern EXPRESSION_PATTERN = Pattern
+            .compile("(args|invokedObject|returned|throwned|#[A-Za-z_$][\\w$]*)((?:\\??\\.[A-Za-z_$][\\w$]*|\\[\\d{1,9}\\])*)");
+
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+
+    private static final String PREFIX = "#{";
+
+    private static final Pattern STEP_PATTERN = Pattern.compile("(\\?)?\\.([A-Za-z_$][\\w$]*)|\\[(\\d+)\\]");
+
+    private static final TypeDescriptor STRING_TYPE = TypeDescriptor.valueOf(String.class);
+
+    private static final String SUFFIX = "}";
+
+    private static final TypeConverter typeConverter = new StandardTypeConverter();
+
+    /**
+     * Returned by {@link #evaluate(AuditAspect.RootObject, Object[])} when
+     * the template must be evaluated by SpEL.
+     */
+    static final Object UNRESOLVED = new Object();
+
+    /**
+     * Returns <code>null</code> if the template is not in the supported
+     * subset.
+     *
+     * @param parameterNames
+     *            names of the parameters that can be referenced as
+     *            <code>#name</code>
+     */
+    static CompiledTemplate compile(String template, String[] parameterNames) {
+        if (template == null) {
+            return null;
+        }
+        List<Segment> segments = new ArrayList<Segment>();
+        int position = 0;
+        while (position < template.length()) {
+            int prefixIndex = template.indexOf(PREFIX, position);
+            if (prefixIndex == -1) {
+                segments.add(new Segment(template.substring(position)));
+                break;
+            }
+            if (prefixIndex > position) {
+                segments.add(new Segment(template.substring(position, prefixIndex)));
+            }
+            int suffixIndex = template.indexOf(SUFFIX, prefixIndex + PREFIX.length());
+            if (suffixIndex == -1) {
+                return null;
+            }
+            Segment segment = compileExpression(template.substring(prefixIndex + PREFIX.length(), suffixIndex).trim(), parameterNames);
+            if (segment == null) {
+                return null;
+            }
+            segments.add(segment);
+            position = suffixIndex + SUFFIX.length();
+        }
+        return new CompiledTemplate(segments.toArray(new Segment[segments.size()]));
+    }
+
+    private static Segment compileExpression(String expression, String[] parameterNames) {
+        Matcher matcher = EXPRESSION_PATTERN.matcher(expression);
+        if (!matcher.matches()) {
+            return null;
+        }
+        String rootName = matcher.group(1);
+        Root root;
+        int variableIndex = -1;
+        if ("args".equals(rootName)) {
+            root = Root.ARGS;
+        } else if ("invokedObject".equals(rootName)) {
+            root = Root.INVOKED_OBJECT;
+        } else if ("returned".equals(rootName)) {
+            root = Root.RETURNED;
+        } else if ("throwned".equals(rootName)) {
+            root = Root.THROWNED;
+        } else {
+            root = Root.VARIABLE;
+            variableIndex = parameterNames == null ? -1 : indexOf(rootName.substring(1), parameterNames);
+            if (variableIndex == -1) {
+                return null;
+            }
+        }
+
+        List<Step> steps = new ArrayList<Step>();
+        Matcher stepMatcher = STEP_PATTERN.matcher(matcher.group(2));
+        while (stepMatcher.find()) {
+            if (stepMatcher.group(2) != null) {
+                steps.add(new PropertyStep(stepMatcher.group(2), stepMatcher.group(1) != null));
+            } else {
+                steps.add(new IndexStep(Integer.parseInt(stepMatcher.group(3))));
+            }
+        }
+        return new Segment(root, variableIndex, steps.toArray(new Step[steps.size()]));
+    }
+
+    private static int indexOf(String name, String[] names) {
+        for (int i = 0; i < names.length; i++) {
+            if (name.equals(names[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private final Segment[] segments;
+
+    private CompiledTemplate(Segment[] segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * Returns the evaluated template, <code>null</code> if the template is a
+     * single expression evaluated to <code>null</code> (as SpEL does), or
+     * {@link #UNRESOLVED}.
+     */
+    Object evaluate(AuditAspect.RootObject rootObject, Object[] args) {
+        if (segments.length == 0) {
+            return "";
+        }
+        if (segments.length == 1) {
+            return segments[0].isLiteral() ? segments[0].literal : toString(segments[0].value(rootObject, args));
+        }
+        StringBuilder result = new StringBuilder();
+        for (Segment segment : segments) {
+            if (segment.isLiteral()) {
+                result.append(segment.literal);
+            } else {
+                Object value = toString(segment.value(rootObject, args));
+                if (value == UNRESOLVED) {
+                    return UNRESOLVED;
+                } else if (value != null) {
+                    result.append((String) value);
+                }
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Appends the evaluated template to the given builder, a single
+     * expression evaluated to <code>null</code> being appended as
+     * <code>"null"</code>. Strings, primitive wrappers and characters are
+     * appended without conversion.
+     *
+     * @return <code>false</code> if the template must be evaluated by SpEL,
+     *         the builder is then left unchanged
+     */
+    boolean appendTo(AuditAspect.RootObject rootObject, Object[] args, StringBuilder toAppendTo) {
+        int start = toAppendTo.length();
+        for (Segment segment : segments) {
+            if (segment.isLiteral()) {
+                toAppendTo.append(segment.literal);
+                continue;
+            }
+            Object value = segment.value(rootObject, args);
+            if (value == null) {
+                if (segments.length == 1) {
+                    toAppendTo.append((String) null);
+                }
+            } else if (value == UNRESOLVED || !appendValue(value, toAppendTo)) {
+                toAppendTo.setLength(start);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean appendValue(Object value, StringBuilder toAppendTo) {
+        if (value instanceof String) {
+            toAppendTo.append((String) value);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            toAppendTo.append(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            toAppendTo.append(((Boolean) value).booleanValue());
+        } else if (value instanceof Character) {
+            toAppendTo.append(((Character) value).charValue());
+        } else {
+            Object converted = toString(value);
+            if (converted == UNRESOLVED) {
+                return false;
+            } else if (converted != null || segments.length == 1) {
+                toAppendTo.append((String) converted);
+            }
+        }
+        return true;
+    }
+
+    private static Object toString(Object value) {
+        if (value == null || value == UNRESOLVED || value instanceof String) {
+            return value;
+        }
+        try {
+            return typeConverter.convertValue(value, TypeDescriptor.forObject(value), STRING_TYPE);
+        } catch (RuntimeException e) {
+            return UNRESOLVED;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the audit events in several {@link AuditSink}s. A failing sink does
+ * not prevent the following ones from receiving the event.
+ * <p>
+ * {@link CharSequenceAuditSink}s receive the buffer of the rendering thread,
+ * the other sinks share a single {@link String} copy of the message.
+ * </p>
+ */
+public class CompositeAuditSink implements CharSequenceAuditSink {
+
+    private final Logger logger = LoggerFactory.getLogger(CompositeAuditSink.class);
+
+    private List<AuditSink> sinks = new ArrayList<AuditSink>();
+
+    public CompositeAuditSink() {
+        super();
+    }
+
+    public CompositeAuditSink(List<AuditSink> sinks) {
+        super();
+        setSinks(sinks);
+    }
+
+    public List<AuditSink> getSinks() {
+        return sinks;
+    }
+
+    public void setSinks(List<AuditSink> sinks) {
+        this.sinks = new ArrayList<AuditSink>(sinks);
+    }
+
+    public void write(AuditEvent event, CharSequence message) {
+        String messageAsString = message instanceof String ? (String) message : null;
+        for (int i = 0; i < sinks.size(); i++) {
+            AuditSink sink = sinks.get(i);
+            try {
+                if (sink instanceof CharSequenceAuditSink) {
+                    ((CharSequenceAuditSink) sink).write(event, message);
+                } else {
+                    if (messageAsString == null) {
+                        messageAsString = message.toString();
+                    }
+                    sink.write(event, messageAsString);
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Exception writing audit event in " + sink, e);
+            }
+        }
+    }
+
+    public void write(AuditEvent event, String message) {
+        write(event, (CharSequence) message);
+    }
+
+    @Override
+    public String toString() {
+        return "CompositeAuditSink" + sinks;
+    }
+}
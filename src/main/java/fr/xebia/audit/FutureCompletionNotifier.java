@@ -0,0 +1,351 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Notifies a {@link Callback} when a value returned by an audited method
+ * completes, without blocking the caller.
+ * <p>
+ * <code>java.util.concurrent.CompletionStage</code>s (Java 8+, e.g.
+ * <code>CompletableFuture</code>) are detected reflectively, so that the
+ * library still runs on Java 6, and notified by a
+ * <code>whenComplete(...)</code> callback. Other {@link Future}s can not
+ * notify their completion: they are notified immediately if already done,
+ * otherwise they are polled by a daemon thread every
+ * {@link #getPollingIntervalInMillis()}. At most
+ * {@link #getMaxPendingCount()} futures are polled, each for at most
+ * {@link #getMaxPendingAgeInMillis()}: beyond, the callback is notified
+ * immediately with the future itself as value, as when futures were not
+ * awaited. After {@link #stop()}, the {@link Future}s are no longer polled
+ * and are notified the same way.
+ * </p>
+ */
+class FutureCompletionNotifier {
+
+    /**
+     * Receives the outcome of a completed future.
+     */
+    interface Callback {
+        /**
+         * @param value
+         *            the value of the future, <code>null</code> if it failed,
+         *            the future itself if it is not awaited
+         * @param throwable
+         *            the failure cause, the {@link CancellationException} of
+         *            a cancelled future or <code>null</code>
+         */
+        void completed(Object value, Throwable throwable);
+    }
+
+    private static class PendingFuture {
+        final Callback callback;
+
+        final Future<?> future;
+
+        final long registeredAtInNanos;
+
+        PendingFuture(Future<?> future, Callback callback, long registeredAtInNanos) {
+            this.future = future;
+            this.callback = callback;
+            this.registeredAtInNanos = registeredAtInNanos;
+        }
+    }
+
+    private static final Class<?> BI_CONSUMER_CLASS;
+
+    private static final Class<?> COMPLETION_EXCEPTION_CLASS;
+
+    private static final Class<?> COMPLETION_STAGE_CLASS;
+
+    private static final Logger logger = LoggerFactory.getLogger(FutureCompletionNotifier.class);
+
+    private static final Method WHEN_COMPLETE_METHOD;
+
+    static {
+        Class<?> completionStageClass = null;
+        Class<?> biConsumerClass = null;
+        Class<?> completionExceptionClass = null;
+        Method whenCompleteMethod = null;
+        try {
+            completionStageClass = Class.forName("java.util.concurrent.CompletionStage");
+            biConsumerClass = Class.forName("java.util.function.BiConsumer");
+            completionExceptionClass = Class.forName("java.util.concurrent.CompletionException");
+            whenCompleteMethod = completionStageClass.getMethod("whenComplete", biConsumerClass);
+        } catch (ClassNotFoundException e) {
+            // before Java 8
+            completionStageClass = null;
+        } catch (NoSuchMethodException e) {
+            completionStageClass = null;
+        }
+        COMPLETION_STAGE_CLASS = completionStageClass;
+        BI_CONSUMER_CLASS = biConsumerClass;
+        COMPLETION_EXCEPTION_CLASS = completionExceptionClass;
+        WHEN_COMPLETE_METHOD = whenCompleteMethod;
+    }
+
+    /**
+     * Returns <code>true</code> if the given object is a
+     * <code>CompletionStage</code> or a {@link Future}.
+     */
+    static boolean isFuture(Object object) {
+        return object instanceof Future<?> || (COMPLETION_STAGE_CLASS != null && COMPLETION_STAGE_CLASS.isInstance(object));
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        if (throwable != null && throwable.getCause() != null
+                && (throwable instanceof ExecutionException || (COMPLETION_EXCEPTION_CLASS != null && COMPLETION_EXCEPTION_CLASS
+                        .isInstance(throwable)))) {
+            return throwable.getCause();
+        }
+        return throwable;
+    }
+
+    private volatile long maxPendingAgeInMillis = TimeUnit.MINUTES.toMillis(10);
+
+    private volatile int maxPendingCount = 10000;
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private final Queue<PendingFuture> pendingFutures = new ConcurrentLinkedQueue<PendingFuture>();
+
+    private volatile long pollingIntervalInMillis = 10;
+
+    /**
+     * Serializes the polls of the polling thread and of the tests.
+     */
+    private final Object pollLock = new Object();
+
+    private Thread pollingThread;
+
+    private volatile boolean running;
+
+    private volatile boolean stopped;
+
+    private void complete(PendingFuture pendingFuture) {
+        Object value = null;
+        Throwable throwable = null;
+        try {
+            value = pendingFuture.future.get();
+        } catch (ExecutionException e) {
+            throwable = unwrap(e);
+        } catch (CancellationException e) {
+            throwable = e;
+        } catch (InterruptedException e) {
+            // the future is done, get() does not wait
+            Thread.currentThread().interrupt();
+            throwable = e;
+        }
+        notify(pendingFuture.callback, value, throwable);
+    }
+
+    public long getMaxPendingAgeInMillis() {
+        return maxPendingAgeInMillis;
+    }
+
+    public int getMaxPendingCount() {
+        return maxPendingCount;
+    }
+
+    /**
+     * Number of {@link Future}s waiting for their completion.
+     */
+    int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public long getPollingIntervalInMillis() {
+        return pollingIntervalInMillis;
+    }
+
+    /**
+     * Returns <code>true</code> if the polling thread is running.
+     */
+    boolean isRunning() {
+        return running;
+    }
+
+    private void notify(Callback callback, Object value, Throwable throwable) {
+        try {
+            callback.completed(value, throwable);
+        } catch (RuntimeException e) {
+            logger.warn("Exception auditing the completion of a future", e);
+        }
+    }
+
+    /**
+     * Registers the given callback on the given future.
+     *
+     * @return <code>false</code> if the given object is not a future
+     */
+    boolean notifyOnCompletion(Object future, final Callback callback) {
+        if (COMPLETION_STAGE_CLASS != null && COMPLETION_STAGE_CLASS.isInstance(future)) {
+            Object biConsumer = Proxy.newProxyInstance(FutureCompletionNotifier.class.getClassLoader(), new Class<?>[] { BI_CONSUMER_CLASS },
+                    new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if ("accept".equals(method.getName()) && args != null && args.length == 2) {
+                                FutureCompletionNotifier.this.notify(callback, args[0], unwrap((Throwable) args[1]));
+                                return null;
+                            } else if ("equals".equals(method.getName())) {
+                                return Boolean.valueOf(proxy == args[0]);
+                            } else if ("hashCode".equals(method.getName())) {
+                                return Integer.valueOf(System.identityHashCode(proxy));
+                            } else if ("toString".equals(method.getName())) {
+                                return "AuditCompletionCallback";
+                            }
+                            throw new UnsupportedOperationException(method.toString());
+                        }
+                    });
+            try {
+                WHEN_COMPLETE_METHOD.invoke(future, biConsumer);
+                return true;
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Exception registering completion callback on " + future, e);
+            } catch (InvocationTargetException e) {
+                throw new IllegalStateException("Exception registering completion callback on " + future, e.getCause());
+            }
+        } else if (future instanceof Future<?>) {
+            PendingFuture pendingFuture = new PendingFuture((Future<?>) future, callback, System.nanoTime());
+            if (pendingFuture.future.isDone()) {
+                complete(pendingFuture);
+            } else if (stopped) {
+                notify(callback, future, null);
+            } else if (pendingCount.incrementAndGet() > maxPendingCount) {
+                pendingCount.decrementAndGet();
+                notify(callback, future, null);
+            } else {
+                pendingFutures.add(pendingFuture);
+                startPollingThreadIfNeeded();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void poll() {
+        while (running) {
+            poll(System.nanoTime());
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(pollingIntervalInMillis));
+        }
+    }
+
+    /**
+     * Notifies the completed futures and the futures pending for more than
+     * {@link #getMaxPendingAgeInMillis()}.
+     */
+    void poll(long nowInNanos) {
+        long maxPendingAgeInNanos = TimeUnit.MILLISECONDS.toNanos(maxPendingAgeInMillis);
+        synchronized (pollLock) {
+            for (Iterator<PendingFuture> it = pendingFutures.iterator(); it.hasNext();) {
+                PendingFuture pendingFuture = it.next();
+                if (pendingFuture.future.isDone()) {
+                    it.remove();
+                    pendingCount.decrementAndGet();
+                    complete(pendingFuture);
+                } else if (nowInNanos - pendingFuture.registeredAtInNanos > maxPendingAgeInNanos) {
+                    it.remove();
+                    pendingCount.decrementAndGet();
+                    notify(pendingFuture.callback, pendingFuture.future, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Maximum time a {@link Future} is polled, it is then audited as not
+     * awaited. Default to 10 minutes.
+     */
+    public void setMaxPendingAgeInMillis(long maxPendingAgeInMillis) {
+        this.maxPendingAgeInMillis = maxPendingAgeInMillis;
+    }
+
+    /**
+     * Maximum number of {@link Future}s polled, the following ones are
+     * audited as not awaited. Default to 10000.
+     */
+    public void setMaxPendingCount(int maxPendingCount) {
+        this.maxPendingCount = maxPendingCount;
+    }
+
+    public void setPollingIntervalInMillis(long pollingIntervalInMillis) {
+        this.pollingIntervalInMillis = pollingIntervalInMillis;
+    }
+
+    private synchronized void startPollingThreadIfNeeded() {
+        if (stopped) {
+            // registered while stopping: not awaited
+            PendingFuture pendingFuture;
+            while ((pendingFuture = pendingFutures.poll()) != null) {
+                pendingCount.decrementAndGet();
+                notify(pendingFuture.callback, pendingFuture.future, null);
+            }
+            return;
+        }
+        if (running) {
+            return;
+        }
+        running = true;
+        pollingThread = new Thread("audit-future-poller") {
+            @Override
+            public void run() {
+                poll();
+            }
+        };
+        pollingThread.setDaemon(true);
+        pollingThread.start();
+    }
+
+    /**
+     * Stops the polling thread, the futures that are not completed yet are
+     * not audited. The polling thread is not restarted: the {@link Future}s
+     * registered afterwards are notified immediately.
+     */
+    synchronized void stop() {
+        stopped = true;
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(pollingThread);
+        try {
+            pollingThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pollingThread = null;
+        if (!pendingFutures.isEmpty()) {
+            logger.info("{} futures not completed at shutdown are not audited", Integer.valueOf(pendingFutures.size()));
+            pendingFutures.clear();
+            pendingCount.set(0);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Default {@link AuditSink}: writes the audit messages in the SLF4J
+ * <code>"fr.xebia.audit"</code> logger, at INFO level for successful
+ * invocations and WARN level for invocations that threw an exception.
+ * <p>
+ * The message is only copied into a {@link String} if the level is enabled.
+ * </p>
+ */
+public class Slf4jAuditSink implements CharSequenceAuditSink {
+
+    private final Logger logger;
+
+    public Slf4jAuditSink() {
+        this("fr.xebia.audit");
+    }
+
+    public Slf4jAuditSink(String loggerName) {
+        super();
+        this.logger = LoggerFactory.getLogger(loggerName);
+    }
+
+    public void write(AuditEvent event, CharSequence message) {
+        if (event.isFailure()) {
+            if (logger.isWarnEnabled()) {
+                logger.warn(message.toString());
+            }
+        } else if (logger.isInfoEnabled()) {
+            logger.info(message.toString());
+        }
+    }
+
+    public void write(AuditEvent event, String message) {
+        write(event, (CharSequence) message);
+    }
+
+    @Override
+    public String toString() {
+        return "Slf4jAuditSink[" + logger.getName() + "]";
+    }
+}
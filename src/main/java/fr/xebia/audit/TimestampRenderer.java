@@ -0,0 +1,121 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Thread safe renderer of the <code>yyyy-MM-dd'T'HH:mm:ss.SSSZ</code>
+ * timestamps of the audit messages.
+ * <p>
+ * The <code>yyyy-MM-dd'T'HH:mm:ss</code> prefix and the zone offset are
+ * rendered once per second and cached, only the milliseconds are rendered
+ * for each timestamp. Timestamps are appended to the caller's
+ * {@link StringBuilder} without intermediate objects.
+ * </p>
+ */
+public class TimestampRenderer {
+
+    private static class CachedSecond {
+        final char[] prefix;
+
+        final long second;
+
+        final char[] zone;
+
+        CachedSecond(long second, char[] prefix, char[] zone) {
+            this.second = second;
+            this.prefix = prefix;
+            this.zone = zone;
+        }
+    }
+
+    private static final TimestampRenderer sharedInstance = new TimestampRenderer();
+
+    /**
+     * Renderer of the system clock in the default time zone, shared by
+     * {@link Auditor} and the {@link AuditAspect}s.
+     */
+    public static TimestampRenderer getSharedInstance() {
+        return sharedInstance;
+    }
+
+    private volatile CachedSecond cachedSecond;
+
+    private final AuditClock clock;
+
+    private final SimpleDateFormat prefixFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+
+    private final SimpleDateFormat zoneFormat = new SimpleDateFormat("Z");
+
+    public TimestampRenderer() {
+        this(AuditClock.SYSTEM, TimeZone.getDefault());
+    }
+
+    public TimestampRenderer(AuditClock clock, TimeZone timeZone) {
+        super();
+        this.clock = clock;
+        prefixFormat.setTimeZone(timeZone);
+        zoneFormat.setTimeZone(timeZone);
+    }
+
+    /**
+     * Appends the current time of the {@link #getClock()}.
+     */
+    public void appendNow(StringBuilder toAppendTo) {
+        appendTo(clock.currentTimeMillis(), toAppendTo);
+    }
+
+    /**
+     * Appends the given timestamp.
+     */
+    public void appendTo(long timestampInMillis, StringBuilder toAppendTo) {
+        long second = timestampInMillis / 1000;
+        int millis = (int) (timestampInMillis % 1000);
+        if (millis < 0) {
+            second--;
+            millis += 1000;
+        }
+        CachedSecond cached = cachedSecond;
+        if (cached == null || cached.second != second) {
+            cached = renderSecond(second);
+            cachedSecond = cached;
+        }
+        toAppendTo.append(cached.prefix).append('.');
+        toAppendTo.append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10)).append((char) ('0' + millis % 10));
+        toAppendTo.append(cached.zone);
+    }
+
+    public AuditClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Returns the given timestamp as a new {@link String}.
+     */
+    public String render(long timestampInMillis) {
+        StringBuilder sb = new StringBuilder(28);
+        appendTo(timestampInMillis, sb);
+        return sb.toString();
+    }
+
+    private synchronized CachedSecond renderSecond(long second) {
+        Date date = new Date(second * 1000);
+        return new CachedSecond(second, prefixFormat.format(date).toCharArray(), zoneFormat.format(date).toCharArray());
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.archive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.ClassUtils;
+
+import fr.xebia.audit.AuditEvent;
+import fr.xebia.audit.AuditSink;
+import fr.xebia.audit.journal.AuditJournalEntry;
+import fr.xebia.audit.journal.AuditRecordCodec;
+
+/**
+ * {@link AuditSink} archiving the audit events in rolling segment files that
+ * can be queried by time range and principal with {@link AuditArchiveReader}
+ * .
+ * <p>
+ * Events are appended to an active segment. When it exceeds
+ * {@link #getSegmentSize()} bytes or spans more than
+ * {@link #getSegmentDurationInMillis()}, a new active segment is opened and
+ * the previous one is sealed by a background thread: its events are
+ * compressed in blocks of about {@link #getBlockSize()} bytes and indexed by
+ * time range and principal (see {@link AuditArchiveFormat}). Active segments
+ * left by a crash are sealed when the archive is opened again.
+ * </p>
+ * <p>
+ * Events are buffered in memory and reach the active segment when the buffer
+ * is full, on {@link #flush()} and on rollover.
+ * </p>
+ * <p>
+ * Sample configuration, next to the text logs :
+ * </p>
+ *
+ * <pre>
+ * <code>
+ *  &lt;bean id="auditArchive" class="fr.xebia.audit.archive.AuditArchive"&gt;
+ *     &lt;property name="directory" value="/var/log/myapp/audit-archive" /&gt;
+ *  &lt;/bean&gt;
+ *  &lt;bean id="auditSink" class="fr.xebia.audit.CompositeAuditSink"&gt;
+ *     &lt;constructor-arg&gt;
+ *        &lt;list&gt;
+ *           &lt;bean class="fr.xebia.audit.Slf4jAuditSink" /&gt;
+ *           &lt;ref bean="auditArchive" /&gt;
+ *        &lt;/list&gt;
+ *     &lt;/constructor-arg&gt;
+ *  &lt;/bean&gt;
+ *  &lt;security-extras:audit-aspect audit-sink-ref="auditSink" /&gt;
+ * </code>
+ * </pre>
+ */
+public class AuditArchive implements AuditSink, InitializingBean, DisposableBean {
+
+    private long activeFirstTimestampInMillis;
+
+    private long activeSegmentIndex;
+
+    private long activeSize;
+
+    private int blockSize = 64 * 1024;
+
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private File directory;
+
+    private String filePrefix = "audit-";
+
+    private final Logger logger = LoggerFactory.getLogger(AuditArchive.class);
+
+    private DataOutputStream out;
+
+    private ExecutorService sealer;
+
+    private final AtomicLong sealedCount = new AtomicLong();
+
+    private long segmentDurationInMillis = TimeUnit.HOURS.toMillis(1);
+
+    private long segmentSize = 16 * 1024 * 1024;
+
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    public void afterPropertiesSet() throws IOException {
+        open();
+    }
+
+    /**
+     * Closes the active segment and seals it, waiting for the pending
+     * sealings.
+     */
+    public void close() throws IOException {
+        ExecutorService sealerToStop;
+        synchronized (this) {
+            if (out == null) {
+                return;
+            }
+            out.close();
+            out = null;
+            sealerToStop = sealer;
+            sealer = null;
+            submitSeal(sealerToStop, activeSegmentIndex);
+        }
+        sealerToStop.shutdown();
+        try {
+            if (!sealerToStop.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warn("Timeout sealing the audit archive " + directory + ", it will be sealed when the archive is opened again");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void destroy() throws IOException {
+        close();
+    }
+
+    /**
+     * Writes the buffered events in the active segment, so that they can be
+     * queried.
+     */
+    public synchronized void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public String getFilePrefix() {
+        return filePrefix;
+    }
+
+    /**
+     * Number of segments sealed since the archive has been created.
+     */
+    public long getSealedCount() {
+        return sealedCount.get();
+    }
+
+    public long getSegmentDurationInMillis() {
+        return segmentDurationInMillis;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Opens a new active segment following the existing segments of the
+     * directory, sealing the active segments left by a previous run.
+     */
+    public synchronized void open() throws IOException {
+        if (out != null) {
+            return;
+        }
+        if (directory == null) {
+            throw new IllegalStateException("directory is not set");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        for (File temporary : AuditArchiveFormat.listSegments(directory, filePrefix, AuditArchiveFormat.TEMPORARY_SUFFIX)) {
+            temporary.delete();
+        }
+        sealer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "audit-archive-sealer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long lastSegmentIndex = 0;
+        for (File segment : AuditArchiveFormat.listSegments(directory, filePrefix, AuditArchiveFormat.SEALED_SUFFIX)) {
+            lastSegmentIndex = Math.max(lastSegmentIndex, AuditArchiveFormat.segmentIndex(segment, filePrefix, AuditArchiveFormat.SEALED_SUFFIX));
+        }
+        for (File segment : AuditArchiveFormat.listSegments(directory, filePrefix, AuditArchiveFormat.ACTIVE_SUFFIX)) {
+            long segmentIndex = AuditArchiveFormat.segmentIndex(segment, filePrefix, AuditArchiveFormat.ACTIVE_SUFFIX);
+            lastSegmentIndex = Math.max(lastSegmentIndex, segmentIndex);
+            submitSeal(sealer, segmentIndex);
+        }
+        openActiveSegment(lastSegmentIndex + 1);
+    }
+
+    private void openActiveSegment(long segmentIndex) throws IOException {
+        File file = new File(directory, AuditArchiveFormat.fileName(filePrefix, segmentIndex, AuditArchiveFormat.ACTIVE_SUFFIX));
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024));
+        activeSegmentIndex = segmentIndex;
+        activeSize = 0;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Opened audit archive segment " + file);
+        }
+    }
+
+    /**
+     * Compresses and indexes the given active segment into a sealed segment
+     * then deletes it.
+     */
+    void seal(long segmentIndex) throws IOException {
+        File active = new File(directory, AuditArchiveFormat.fileName(filePrefix, segmentIndex, AuditArchiveFormat.ACTIVE_SUFFIX));
+        File temporary = new File(directory, AuditArchiveFormat.fileName(filePrefix, segmentIndex, AuditArchiveFormat.TEMPORARY_SUFFIX));
+        File sealed = new File(directory, AuditArchiveFormat.fileName(filePrefix, segmentIndex, AuditArchiveFormat.SEALED_SUFFIX));
+        if (!active.exists()) {
+            return;
+        }
+        if (active.length() == 0 || sealed.exists()) {
+            // empty or already sealed before a crash
+            active.delete();
+            return;
+        }
+
+        SegmentIndex index = new SegmentIndex();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(active), 64 * 1024));
+        FileOutputStream fileOut = new FileOutputStream(temporary);
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            DataOutputStream sealedOut = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+            sealedOut.writeInt(AuditArchiveFormat.MAGIC);
+            sealedOut.writeInt(AuditArchiveFormat.VERSION);
+            sealedOut.writeLong(segmentIndex);
+
+            ByteArrayOutputStream block = new ByteArrayOutputStream(blockSize + 1024);
+            DataOutputStream blockOut = new DataOutputStream(block);
+            byte[] compressed = new byte[8 * 1024];
+            String[] principals = new String[64];
+            int eventCount = 0;
+            long minTimestampInMillis = Long.MAX_VALUE;
+            long maxTimestampInMillis = Long.MIN_VALUE;
+            AuditJournalEntry entry;
+            do {
+                entry = AuditArchiveFormat.readRecord(in);
+                if (entry != null) {
+                    AuditArchiveFormat.writeRecord(blockOut, entry);
+                    if (eventCount == principals.length) {
+                        String[] newPrincipals = new String[principals.length * 2];
+                        System.arraycopy(principals, 0, newPrincipals, 0, principals.length);
+                        principals = newPrincipals;
+                    }
+                    principals[eventCount++] = entry.getPrincipal();
+                    minTimestampInMillis = Math.min(minTimestampInMillis, entry.getTimestampInMillis());
+                    maxTimestampInMillis = Math.max(maxTimestampInMillis, entry.getTimestampInMillis());
+                }
+                if (eventCount > 0 && (entry == null || block.size() >= blockSize)) {
+                    long offset = sealedOut.size();
+                    deflater.reset();
+                    deflater.setInput(block.toByteArray());
+                    deflater.finish();
+                    int compressedLength = 0;
+                    while (!deflater.finished()) {
+                        int length = deflater.deflate(compressed);
+                        sealedOut.write(compressed, 0, length);
+                        compressedLength += length;
+                    }
+                    index.addBlock(new SegmentIndex.Block(offset, compressedLength, block.size(), eventCount, minTimestampInMillis,
+                            maxTimestampInMillis));
+                    for (int i = 0; i < eventCount; i++) {
+                        if (principals[i] != null) {
+                            index.addPrincipal(principals[i]);
+                        }
+                    }
+                    block.reset();
+                    eventCount = 0;
+                    minTimestampInMillis = Long.MAX_VALUE;
+                    maxTimestampInMillis = Long.MIN_VALUE;
+                }
+            } while (entry != null);
+
+            long indexOffset = sealedOut.size();
+            index.write(sealedOut);
+            sealedOut.writeLong(indexOffset);
+            sealedOut.writeInt(AuditArchiveFormat.MAGIC);
+            sealedOut.flush();
+            fileOut.getFD().sync();
+        } finally {
+            deflater.end();
+            fileOut.close();
+            in.close();
+        }
+        if (!temporary.renameTo(sealed)) {
+            throw new IOException("Could not rename " + temporary + " to " + sealed);
+        }
+        // a reader listing the directory now prefers the sealed segment
+        active.delete();
+        sealedCount.incrementAndGet();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sealed audit archive segment " + sealed + ": " + index.getEventCount() + " events in " + index.getBlocks().size()
+                    + " blocks");
+        }
+    }
+
+    /**
+     * Approximate size in bytes of the uncompressed events of a block, the
+     * unit of decompression of the queries. Default to 64KB.
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * {@link Deflater} level of the sealed segments. Default to
+     * {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    public void setFilePrefix(String filePrefix) {
+        this.filePrefix = filePrefix;
+    }
+
+    /**
+     * Maximum time span of the events of a segment. Default to one hour.
+     */
+    public void setSegmentDurationInMillis(long segmentDurationInMillis) {
+        this.segmentDurationInMillis = segmentDurationInMillis;
+    }
+
+    /**
+     * Size in bytes of the uncompressed events of a segment above which it is
+     * sealed. Default to 16MB.
+     */
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    private void submitSeal(ExecutorService executor, final long segmentIndex) {
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    seal(segmentIndex);
+                } catch (IOException e) {
+                    logger.warn("Exception sealing audit archive segment " + segmentIndex + " of " + directory, e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "AuditArchive[" + directory + "]";
+    }
+
+    public synchronized void write(AuditEvent event, String message) {
+        if (out == null) {
+            throw new IllegalStateException("Audit archive " + directory + " is not open");
+        }
+        try {
+            long timestampInMillis = event.getTimestampInMillis();
+            if (activeSize > 0
+                    && (activeSize >= segmentSize || timestampInMillis - activeFirstTimestampInMillis >= segmentDurationInMillis)) {
+                out.close();
+                submitSeal(sealer, activeSegmentIndex);
+                openActiveSegment(activeSegmentIndex + 1);
+            }
+            if (activeSize == 0) {
+                activeFirstTimestampInMillis = timestampInMillis;
+            }
+            String method = event.getMethod() == null ? null : ClassUtils.getQualifiedMethodName(event.getMethod());
+            activeSize += AuditRecordCodec.writeEvent(out, timestampInMillis, event.getDurationInNanos(), event.isFailure(), method,
+                    event.getPrincipal(), event.getRemoteAddress(), message);
+            writtenCount.incrementAndGet();
+        } catch (IOException e) {
+            throw new IllegalStateException("Exception writing in audit archive " + directory, e);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.archive;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import fr.xebia.audit.journal.AuditJournalEntry;
+
+/**
+ * Streams the events matching a query of {@link AuditArchiveReader}. Only one
+ * block is held in memory at a time.
+ */
+public class AuditArchiveCursor implements Closeable {
+
+    private Iterator<SegmentIndex.Block> blocks;
+
+    private long decompressedBlockCount;
+
+    private final long fromInMillis;
+
+    private final Inflater inflater = new Inflater();
+
+    private int nextSegment;
+
+    private final String principal;
+
+    private DataInputStream records;
+
+    private RandomAccessFile sealedFile;
+
+    private final List<AuditArchiveReader.Segment> segments;
+
+    private final long toInMillis;
+
+    AuditArchiveCursor(List<AuditArchiveReader.Segment> segments, long fromInMillis, long toInMillis, String principal) {
+        super();
+        this.segments = segments;
+        this.fromInMillis = fromInMillis;
+        this.toInMillis = toInMillis;
+        this.principal = principal;
+    }
+
+    public void close() throws IOException {
+        closeSegment();
+        nextSegment = segments.size();
+        inflater.end();
+    }
+
+    private void closeSegment() throws IOException {
+        blocks = null;
+        if (records != null) {
+            records.close();
+            records = null;
+        }
+        if (sealedFile != null) {
+            sealedFile.close();
+            sealedFile = null;
+        }
+    }
+
+    /**
+     * Number of compressed blocks read so far.
+     */
+    public long getDecompressedBlockCount() {
+        return decompressedBlockCount;
+    }
+
+    private DataInputStream inflate(SegmentIndex.Block block) throws IOException {
+        byte[] compressed = new byte[block.compressedLength];
+        sealedFile.seek(block.offset);
+        sealedFile.readFully(compressed);
+        byte[] uncompressed = new byte[block.uncompressedLength];
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            int length = 0;
+            while (length < uncompressed.length && !inflater.finished()) {
+                length += inflater.inflate(uncompressed, length, uncompressed.length - length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted block at offset " + block.offset + ": " + e.getMessage());
+        }
+        decompressedBlockCount++;
+        return new DataInputStream(new ByteArrayInputStream(uncompressed));
+    }
+
+    private boolean matches(AuditJournalEntry entry) {
+        return entry.getTimestampInMillis() >= fromInMillis && entry.getTimestampInMillis() <= toInMillis
+                && (principal == null || principal.equals(entry.getPrincipal()));
+    }
+
+    private boolean openNextSegment() throws IOException {
+        closeSegment();
+        if (nextSegment >= segments.size()) {
+            return false;
+        }
+        AuditArchiveReader.Segment segment = segments.get(nextSegment++);
+        if (segment.isSealed()) {
+            openSealedSegment(segment.file, segment.blocks);
+            return true;
+        }
+        try {
+            records = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 64 * 1024));
+        } catch (FileNotFoundException e) {
+            // sealed since the query has been planned
+            String name = segment.file.getName();
+            File sealed = new File(segment.file.getParentFile(), name.substring(0, name.length()
+                    - AuditArchiveFormat.ACTIVE_SUFFIX.length())
+                    + AuditArchiveFormat.SEALED_SUFFIX);
+            openSealedSegment(sealed, null);
+        }
+        return true;
+    }
+
+    private void openSealedSegment(File file, List<SegmentIndex.Block> selectedBlocks) throws IOException {
+        sealedFile = new RandomAccessFile(file, "r");
+        if (sealedFile.readInt() != AuditArchiveFormat.MAGIC || sealedFile.readInt() != AuditArchiveFormat.VERSION) {
+            throw new IOException("Segment " + file + " is not an audit archive segment");
+        }
+        if (selectedBlocks == null) {
+            selectedBlocks = SegmentIndex.read(sealedFile).select(fromInMillis, toInMillis, principal);
+        }
+        blocks = selectedBlocks.iterator();
+    }
+
+    /**
+     * Returns the next matching event or <code>null</code> if all the
+     * selected segments have been read.
+     */
+    public AuditJournalEntry read() throws IOException {
+        while (true) {
+            if (records != null) {
+                AuditJournalEntry entry = AuditArchiveFormat.readRecord(records);
+                if (entry == null) {
+                    records.close();
+                    records = null;
+                } else if (matches(entry)) {
+                    return entry;
+                }
+            } else if (blocks != null && blocks.hasNext()) {
+                records = inflate(blocks.next());
+            } else if (!openNextSegment()) {
+                return null;
+            }
+        }
+    }
+}
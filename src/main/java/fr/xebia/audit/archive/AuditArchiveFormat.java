@@ -0,0 +1,119 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.archive;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import fr.xebia.audit.journal.AuditJournalEntry;
+import fr.xebia.audit.journal.AuditRecordCodec;
+
+/**
+ * Layout of the archive segments.
+ * <p>
+ * Events are first appended to an <i>active</i> segment
+ * (<code>${prefix}${index}.active</code>) as a sequence of records. Each
+ * record is prefixed by the <code>int</code> length of its body, the event
+ * encoded by {@link AuditRecordCodec} with its method name.
+ * </p>
+ * <p>
+ * A full active segment is <i>sealed</i> into
+ * <code>${prefix}${index}.segment</code>: a header (<code>int</code> magic,
+ * <code>int</code> version, <code>long</code> segment index), the same
+ * records grouped in blocks compressed with {@link java.util.zip.Deflater},
+ * the {@link SegmentIndex} of the blocks and a trailer (<code>long</code>
+ * offset of the index, <code>int</code> magic).
+ * </p>
+ */
+final class AuditArchiveFormat {
+
+    static final String ACTIVE_SUFFIX = ".active";
+
+    static final int HEADER_SIZE = 16;
+
+    static final int MAGIC = 0x58415541;
+
+    static final String SEALED_SUFFIX = ".segment";
+
+    static final String TEMPORARY_SUFFIX = ".tmp";
+
+    static final int TRAILER_SIZE = 12;
+
+    static final int VERSION = 1;
+
+    static String fileName(String filePrefix, long segmentIndex, String suffix) {
+        return filePrefix + String.format("%020d", segmentIndex) + suffix;
+    }
+
+    /**
+     * Returns the files of the given directory with the given suffix, oldest
+     * segment first.
+     */
+    static File[] listSegments(File directory, final String filePrefix, final String suffix) {
+        File[] segments = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(filePrefix) && name.endsWith(suffix);
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Reads the next record, returns <code>null</code> at the end of the
+     * stream or if the last record is incomplete (active segment being
+     * written).
+     */
+    static AuditJournalEntry readRecord(DataInput in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length <= 0) {
+                return null;
+            }
+            return AuditRecordCodec.readEvent(in, null);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    static long segmentIndex(File segment, String filePrefix, String suffix) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(filePrefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes a record, returns its size in bytes.
+     */
+    static int writeRecord(DataOutput out, AuditJournalEntry entry) throws IOException {
+        return AuditRecordCodec.writeEvent(out, entry.getTimestampInMillis(), entry.getDurationInNanos(), entry.isFailure(),
+                entry.getMethod(), entry.getPrincipal(), entry.getRemoteAddress(), entry.getMessage());
+    }
+
+    private AuditArchiveFormat() {
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Queries the segments of an {@link AuditArchive} by time range and
+ * principal.
+ * <p>
+ * Only the sealed segments whose index references the principal in the
+ * time range are opened, and only their matching blocks are decompressed.
+ * The active segments, not indexed yet, are scanned. The indexes of the
+ * sealed segments are immutable and cached by the reader.
+ * </p>
+ *
+ * <pre>
+ * <code>
+ * AuditArchiveReader reader = new AuditArchiveReader(new File("/var/log/myapp/audit-archive"), "audit-");
+ * AuditArchiveCursor cursor = reader.query(from, to, "john");
+ * try {
+ *     AuditJournalEntry entry;
+ *     while ((entry = cursor.read()) != null) {
+ *         ...
+ *     }
+ * } finally {
+ *     cursor.close();
+ * }
+ * </code>
+ * </pre>
+ */
+public class AuditArchiveReader {
+
+    /**
+     * A segment to read: a sealed segment and its selected blocks or an
+     * active segment.
+     */
+    static final class Segment {
+        final List<SegmentIndex.Block> blocks;
+
+        final File file;
+
+        Segment(File file, List<SegmentIndex.Block> blocks) {
+            this.file = file;
+            this.blocks = blocks;
+        }
+
+        boolean isSealed() {
+            return blocks != null;
+        }
+    }
+
+    private final File directory;
+
+    private final String filePrefix;
+
+    private final Map<String, SegmentIndex> indexes = new ConcurrentHashMap<String, SegmentIndex>();
+
+    public AuditArchiveReader(File directory, String filePrefix) {
+        super();
+        this.directory = directory;
+        this.filePrefix = filePrefix;
+    }
+
+    private SegmentIndex getIndex(File sealed) throws IOException {
+        SegmentIndex index = indexes.get(sealed.getName());
+        if (index == null) {
+            RandomAccessFile file = new RandomAccessFile(sealed, "r");
+            try {
+                index = SegmentIndex.read(file);
+            } finally {
+                file.close();
+            }
+            indexes.put(sealed.getName(), index);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the events of all the principals in the given time range.
+     */
+    public AuditArchiveCursor query(long fromInMillis, long toInMillis) throws IOException {
+        return query(fromInMillis, toInMillis, null);
+    }
+
+    /**
+     * Returns the events of the given principal in the given time range,
+     * bounds included, oldest segment first.
+     *
+     * @param principal
+     *            <code>null</code> for all the principals
+     */
+    public AuditArchiveCursor query(long fromInMillis, long toInMillis, String principal) throws IOException {
+        TreeMap<Long, File> files = new TreeMap<Long, File>();
+        for (File active : AuditArchiveFormat.listSegments(directory, filePrefix, AuditArchiveFormat.ACTIVE_SUFFIX)) {
+            files.put(Long.valueOf(AuditArchiveFormat.segmentIndex(active, filePrefix, AuditArchiveFormat.ACTIVE_SUFFIX)), active);
+        }
+        // a segment being sealed may be listed twice, the sealed one wins
+        for (File sealed : AuditArchiveFormat.listSegments(directory, filePrefix, AuditArchiveFormat.SEALED_SUFFIX)) {
+            files.put(Long.valueOf(AuditArchiveFormat.segmentIndex(sealed, filePrefix, AuditArchiveFormat.SEALED_SUFFIX)), sealed);
+        }
+
+        List<Segment> segments = new ArrayList<Segment>();
+        for (File file : files.values()) {
+            if (file.getName().endsWith(AuditArchiveFormat.SEALED_SUFFIX)) {
+                List<SegmentIndex.Block> blocks = getIndex(file).select(fromInMillis, toInMillis, principal);
+                if (!blocks.isEmpty()) {
+                    segments.add(new Segment(file, blocks));
+                }
+            } else {
+                segments.add(new Segment(file, null));
+            }
+        }
+        return new AuditArchiveCursor(segments, fromInMillis, toInMillis, principal);
+    }
+
+    @Override
+    public String toString() {
+        return "AuditArchiveReader[" + directory + "]";
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sparse index of a sealed segment: the time range of each compressed block
+ * and, for each principal, the blocks holding its events. Written at the end
+ * of the segment and read without decompressing any block.
+ */
+final class SegmentIndex {
+
+    static final class Block {
+        final int compressedLength;
+
+        final int eventCount;
+
+        final long maxTimestampInMillis;
+
+        final long minTimestampInMillis;
+
+        final long offset;
+
+        final int uncompressedLength;
+
+        Block(long offset, int compressedLength, int uncompressedLength, int eventCount, long minTimestampInMillis,
+                long maxTimestampInMillis) {
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.uncompressedLength = uncompressedLength;
+            this.eventCount = eventCount;
+            this.minTimestampInMillis = minTimestampInMillis;
+            this.maxTimestampInMillis = maxTimestampInMillis;
+        }
+
+        boolean overlaps(long fromInMillis, long toInMillis) {
+            return minTimestampInMillis <= toInMillis && maxTimestampInMillis >= fromInMillis;
+        }
+    }
+
+    /**
+     * Reads the index at the end of the given sealed segment.
+     */
+    static SegmentIndex read(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        if (length < AuditArchiveFormat.HEADER_SIZE + AuditArchiveFormat.TRAILER_SIZE) {
+            throw new IOException("Truncated archive segment");
+        }
+        file.seek(length - AuditArchiveFormat.TRAILER_SIZE);
+        long indexOffset = file.readLong();
+        if (file.readInt() != AuditArchiveFormat.MAGIC || indexOffset < AuditArchiveFormat.HEADER_SIZE
+                || indexOffset > length - AuditArchiveFormat.TRAILER_SIZE) {
+            throw new IOException("Corrupted archive segment trailer");
+        }
+        byte[] bytes = new byte[(int) (length - AuditArchiveFormat.TRAILER_SIZE - indexOffset)];
+        file.seek(indexOffset);
+        file.readFully(bytes);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        SegmentIndex index = new SegmentIndex();
+        int blockCount = in.readInt();
+        for (int i = 0; i < blockCount; i++) {
+            index.blocks.add(new Block(in.readLong(), in.readInt(), in.readInt(), in.readInt(), in.readLong(), in.readLong()));
+        }
+        int principalCount = in.readInt();
+        for (int i = 0; i < principalCount; i++) {
+            String principal = in.readUTF();
+            int[] blockIndexes = new int[in.readInt()];
+            for (int j = 0; j < blockIndexes.length; j++) {
+                blockIndexes[j] = in.readInt();
+            }
+            index.principalBlocks.put(principal, blockIndexes);
+        }
+        return index;
+    }
+
+    private final List<Block> blocks = new ArrayList<Block>();
+
+    private final Map<String, int[]> principalBlocks = new HashMap<String, int[]>();
+
+    /**
+     * Adds a block written at the given offset, the principals of its events
+     * are added with {@link #addPrincipal(String)}.
+     */
+    void addBlock(Block block) {
+        blocks.add(block);
+    }
+
+    /**
+     * Records that the last added block holds events of the given principal.
+     */
+    void addPrincipal(String principal) {
+        int blockIndex = blocks.size() - 1;
+        int[] blockIndexes = principalBlocks.get(principal);
+        if (blockIndexes == null) {
+            principalBlocks.put(principal, new int[] { blockIndex });
+        } else if (blockIndexes[blockIndexes.length - 1] != blockIndex) {
+            int[] newBlockIndexes = new int[blockIndexes.length + 1];
+            System.arraycopy(blockIndexes, 0, newBlockIndexes, 0, blockIndexes.length);
+            newBlockIndexes[blockIndexes.length] = blockIndex;
+            principalBlocks.put(principal, newBlockIndexes);
+        }
+    }
+
+    List<Block> getBlocks() {
+        return Collections.unmodifiableList(blocks);
+    }
+
+    long getEventCount() {
+        long count = 0;
+        for (Block block : blocks) {
+            count += block.eventCount;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the blocks that may hold events of the given principal
+     * (<code>null</code> for all) in the given time range, in segment order.
+     */
+    List<Block> select(long fromInMillis, long toInMillis, String principal) {
+        List<Block> selected = new ArrayList<Block>();
+        if (principal == null) {
+            for (Block block : blocks) {
+                if (block.overlaps(fromInMillis, toInMillis)) {
+                    selected.add(block);
+                }
+            }
+        } else {
+            int[] blockIndexes = principalBlocks.get(principal);
+            if (blockIndexes != null) {
+                for (int blockIndex : blockIndexes) {
+                    Block block = blocks.get(blockIndex);
+                    if (block.overlaps(fromInMillis, toInMillis)) {
+                        selected.add(block);
+                    }
+                }
+            }
+        }
+        return selected;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(blocks.size());
+        for (Block block : blocks) {
+            out.writeLong(block.offset);
+            out.writeInt(block.compressedLength);
+            out.writeInt(block.uncompressedLength);
+            out.writeInt(block.eventCount);
+            out.writeLong(block.minTimestampInMillis);
+            out.writeLong(block.maxTimestampInMillis);
+        }
+        out.writeInt(principalBlocks.size());
+        for (Map.Entry<String, int[]> entry : principalBlocks.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().length);
+            for (int blockIndex : entry.getValue()) {
+                out.writeInt(blockIndex);
+            }
+        }
+    }
+}
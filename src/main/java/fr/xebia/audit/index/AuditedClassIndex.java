@@ -0,0 +1,104 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.index;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Names of the classes declaring {@link fr.xebia.audit.Audited} methods, as
+ * written at compile time by the {@link AuditedIndexProcessor} in the
+ * <code>META-INF/xebia-audited-classes</code> resource of each jar.
+ * <p>
+ * The resource holds one binary class name per line; blank lines and lines
+ * starting with <code>#</code> are ignored.
+ * </p>
+ */
+public final class AuditedClassIndex {
+
+    public static final String RESOURCE_LOCATION = "META-INF/xebia-audited-classes";
+
+    /**
+     * Merges the indexes of all the jars and directories visible from the
+     * given class loader.
+     */
+    public static AuditedClassIndex load(ClassLoader classLoader) throws IOException {
+        Set<String> classNames = new HashSet<String>();
+        Enumeration<URL> resources = classLoader.getResources(RESOURCE_LOCATION);
+        while (resources.hasMoreElements()) {
+            InputStream in = resources.nextElement().openStream();
+            try {
+                readClassNames(new InputStreamReader(in, "UTF-8"), classNames);
+            } finally {
+                in.close();
+            }
+        }
+        return new AuditedClassIndex(classNames);
+    }
+
+    static void readClassNames(Reader reader, Collection<String> classNames) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (line.length() > 0 && line.charAt(0) != '#') {
+                classNames.add(line);
+            }
+        }
+    }
+
+    private final Set<String> classNames;
+
+    public AuditedClassIndex(Collection<String> classNames) {
+        super();
+        this.classNames = Collections.unmodifiableSet(new HashSet<String>(classNames));
+    }
+
+    /**
+     * Returns <code>true</code> if the given class or one of its superclasses
+     * is indexed.
+     */
+    public boolean contains(Class<?> clazz) {
+        for (Class<?> current = clazz; current != null && current != Object.class; current = current.getSuperclass()) {
+            if (classNames.contains(current.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Set<String> getClassNames() {
+        return classNames;
+    }
+
+    public boolean isEmpty() {
+        return classNames.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "AuditedClassIndex[" + classNames.size() + " classes]";
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.index;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor writing the {@link AuditedClassIndex} of the classes
+ * declaring {@link fr.xebia.audit.Audited} methods.
+ * <p>
+ * It is registered in <code>META-INF/services</code> and picked up by
+ * <code>javac</code> as soon as this jar is on the compile classpath. The
+ * entries of the index left by a previous compilation are kept as long as
+ * their class still exists, so that incremental compilations of a subset
+ * of the sources do not lose them.
+ * </p>
+ */
+@SupportedAnnotationTypes("fr.xebia.audit.Audited")
+public class AuditedIndexProcessor extends AbstractProcessor {
+
+    private final Set<String> classNames = new TreeSet<String>();
+
+    private boolean written;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            if (!classNames.isEmpty() && !written) {
+                writeIndex();
+                written = true;
+            }
+            return false;
+        }
+        Elements elements = processingEnv.getElementUtils();
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() == ElementKind.METHOD) {
+                    TypeElement type = (TypeElement) element.getEnclosingElement();
+                    classNames.add(elements.getBinaryName(type).toString());
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keeps the entries of the index left by a previous compilation in the
+     * file of the given resource. It is not read with
+     * {@link javax.annotation.processing.Filer#getResource}: the Eclipse and
+     * AspectJ compilers then refuse to create the resource.
+     */
+    private void readPreviousIndex(FileObject index) {
+        File previous;
+        try {
+            previous = new File(index.toUri());
+        } catch (IllegalArgumentException e) {
+            // not in a directory
+            return;
+        }
+        if (!previous.isFile()) {
+            return;
+        }
+        List<String> previousClassNames = new ArrayList<String>();
+        try {
+            Reader reader = new InputStreamReader(new FileInputStream(previous), "UTF-8");
+            try {
+                AuditedClassIndex.readClassNames(reader, previousClassNames);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                    "Previous " + AuditedClassIndex.RESOURCE_LOCATION + " ignored: " + e);
+            return;
+        }
+        Elements elements = processingEnv.getElementUtils();
+        for (String className : previousClassNames) {
+            if (elements.getTypeElement(className.replace('$', '.')) != null) {
+                classNames.add(className);
+            }
+        }
+    }
+
+    private void writeIndex() {
+        try {
+            FileObject index = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "",
+                    AuditedClassIndex.RESOURCE_LOCATION);
+            readPreviousIndex(index);
+            Writer writer = new OutputStreamWriter(index.openOutputStream(), "UTF-8");
+            try {
+                writer.write("# Classes declaring @fr.xebia.audit.Audited methods\n");
+                for (String className : classNames) {
+                    writer.write(className);
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Failed to write " + AuditedClassIndex.RESOURCE_LOCATION + ": " + e);
+        }
+    }
+}
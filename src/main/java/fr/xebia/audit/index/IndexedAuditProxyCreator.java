@@ -0,0 +1,130 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.index;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.Advisor;
+import org.springframework.aop.ProxyMethodInvocation;
+import org.springframework.aop.TargetSource;
+import org.springframework.aop.aspectj.MethodInvocationProceedingJoinPoint;
+import org.springframework.aop.framework.autoproxy.AbstractAutoProxyCreator;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.ClassUtils;
+
+import fr.xebia.audit.AuditAspect;
+import fr.xebia.audit.Audited;
+
+/**
+ * Proxies the beans whose class is listed in the {@link AuditedClassIndex},
+ * the invocations of their {@link Audited} methods are handed over to
+ * {@link AuditAspect#logMessage(org.aspectj.lang.ProceedingJoinPoint, Audited)}.
+ * <p>
+ * Unlike <code>&lt;aop:aspectj-autoproxy /&gt;</code>, the methods of the
+ * beans that are not indexed are never matched against a pointcut: the
+ * selection of the beans to proxy is a lookup in the index built at compile
+ * time. It is meant for applications that are not compiled with the
+ * AspectJ compiler; with compile time weaving, the audited methods are
+ * already audited and must not be proxied.
+ * </p>
+ *
+ * <pre>
+ * <code>
+ * &lt;security-extras:audit-aspect indexed-proxies="true" /&gt;
+ * </code>
+ * </pre>
+ */
+public class IndexedAuditProxyCreator extends AbstractAutoProxyCreator implements InitializingBean {
+
+    private static final long serialVersionUID = 1L;
+
+    private Advisor advisor;
+
+    private AuditAspect auditAspect;
+
+    private Collection<String> auditedClassNames;
+
+    private ClassLoader beanClassLoader = ClassUtils.getDefaultClassLoader();
+
+    private AuditedClassIndex index;
+
+    public void afterPropertiesSet() throws IOException {
+        if (auditAspect == null) {
+            throw new IllegalStateException("auditAspect is required");
+        }
+        index = auditedClassNames == null ? AuditedClassIndex.load(beanClassLoader) : new AuditedClassIndex(auditedClassNames);
+        if (index.isEmpty()) {
+            logger.warn("No audited class found in " + AuditedClassIndex.RESOURCE_LOCATION
+                    + ", is the annotation processor on the compile classpath?");
+        } else {
+            logger.info("Audited classes: " + index.getClassNames());
+        }
+
+        final AuditAspect aspect = auditAspect;
+        advisor = new DefaultPointcutAdvisor(AnnotationMatchingPointcut.forMethodAnnotation(Audited.class), new MethodInterceptor() {
+            public Object invoke(MethodInvocation invocation) throws Throwable {
+                Class<?> targetClass = invocation.getThis() == null ? null : AopUtils.getTargetClass(invocation.getThis());
+                Method method = AopUtils.getMostSpecificMethod(invocation.getMethod(), targetClass);
+                Audited audited = method.getAnnotation(Audited.class);
+                if (audited == null || !(invocation instanceof ProxyMethodInvocation)) {
+                    return invocation.proceed();
+                }
+                return aspect.logMessage(new MethodInvocationProceedingJoinPoint((ProxyMethodInvocation) invocation), audited);
+            }
+        });
+    }
+
+    @Override
+    protected Object[] getAdvicesAndAdvisorsForBean(Class<?> beanClass, String beanName, TargetSource customTargetSource) {
+        if (!index.contains(beanClass) || !AopUtils.canApply(advisor, beanClass)) {
+            return DO_NOT_PROXY;
+        }
+        return new Object[] { advisor };
+    }
+
+    public AuditedClassIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * The aspect auditing the invocations.
+     */
+    public void setAuditAspect(AuditAspect auditAspect) {
+        this.auditAspect = auditAspect;
+    }
+
+    /**
+     * Names of the classes to proxy, instead of the
+     * {@link AuditedClassIndex#load(ClassLoader) index} found on the
+     * classpath.
+     */
+    public void setAuditedClassNames(Collection<String> auditedClassNames) {
+        this.auditedClassNames = auditedClassNames;
+    }
+
+    @Override
+    public void setBeanClassLoader(ClassLoader classLoader) {
+        super.setBeanClassLoader(classLoader);
+        this.beanClassLoader = classLoader;
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.jdbc;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.support.JdbcDaoSupport;
+import org.springframework.util.ClassUtils;
+
+import fr.xebia.audit.AuditEvent;
+import fr.xebia.audit.AuditSink;
+
+/**
+ * {@link AuditSink} inserting the audit events in a database table.
+ * <p>
+ * Events are buffered in memory and inserted by a background thread with
+ * {@link org.springframework.jdbc.core.JdbcTemplate#batchUpdate(String, BatchPreparedStatementSetter)}
+ * when {@link #getBatchSize()} events are pending or every
+ * {@link #getFlushIntervalInMillis()}. A failed batch is retried up to
+ * {@link #getMaxRetries()} times with an exponential backoff and is then
+ * dropped. Events are also dropped when more than
+ * {@link #getMaxPendingEvents()} are waiting and once the sink is destroyed.
+ * </p>
+ * <p>
+ * Default table :
+ * </p>
+ *
+ * <pre>
+ * <code>
+ * create table audit_events(event_timestamp timestamp, principal varchar(256), remote_address varchar(64),
+ *    method varchar(512), duration_in_nanos bigint, failure int, message varchar(4000))
+ * </code>
+ * </pre>
+ */
+public class JdbcAuditSink extends JdbcDaoSupport implements AuditSink, DisposableBean {
+
+    private static class PendingEvent {
+        final AuditEvent event;
+
+        final String message;
+
+        PendingEvent(AuditEvent event, String message) {
+            this.event = event;
+            this.message = message;
+        }
+    }
+
+    private int batchSize = 100;
+
+    private volatile boolean destroyed;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private long flushIntervalInMillis = 1000;
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final Runnable fullBatchesFlushTask = new Runnable() {
+        public void run() {
+            flushRequested.set(false);
+            flushQuietly(true);
+        }
+    };
+
+    private final Runnable periodicFlushTask = new Runnable() {
+        public void run() {
+            flushQuietly(false);
+        }
+    };
+
+    private long initialBackoffInMillis = 100;
+
+    private String insertSql = "INSERT INTO audit_events (event_timestamp, principal, remote_address, method, duration_in_nanos, failure, message) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private final Logger logger = LoggerFactory.getLogger(JdbcAuditSink.class);
+
+    private long maxBackoffInMillis = 5000;
+
+    private int maxPendingEvents = 10000;
+
+    private int maxRetries = 3;
+
+    private BlockingQueue<PendingEvent> pendingEvents;
+
+    private volatile ScheduledExecutorService scheduler;
+
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    /**
+     * Flushes the pending events and stops the background thread. The events
+     * written afterwards are dropped.
+     */
+    public void destroy() {
+        destroyed = true;
+        ScheduledExecutorService executor = scheduler;
+        if (executor == null) {
+            return;
+        }
+        scheduler = null;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(maxBackoffInMillis * (maxRetries + 1) + flushIntervalInMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Inserts all the pending events, by batches of {@link #getBatchSize()}.
+     * Invoked by the background thread, can also be invoked explicitly.
+     */
+    public void flush() {
+        flush(false);
+    }
+
+    private synchronized void flush(boolean fullBatchesOnly) {
+        List<PendingEvent> batch = new ArrayList<PendingEvent>(batchSize);
+        while ((!fullBatchesOnly || pendingEvents.size() >= batchSize) && pendingEvents.drainTo(batch, batchSize) > 0) {
+            insert(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Flushes on the background thread, whose periodic task would be
+     * cancelled by an exception.
+     */
+    private void flushQuietly(boolean fullBatchesOnly) {
+        try {
+            flush(fullBatchesOnly);
+        } catch (RuntimeException e) {
+            logger.error("Exception flushing audit events", e);
+        }
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Number of events dropped because too many events were pending or
+     * because their batch could not be inserted.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getFlushIntervalInMillis() {
+        return flushIntervalInMillis;
+    }
+
+    public long getInitialBackoffInMillis() {
+        return initialBackoffInMillis;
+    }
+
+    public String getInsertSql() {
+        return insertSql;
+    }
+
+    public long getMaxBackoffInMillis() {
+        return maxBackoffInMillis;
+    }
+
+    public int getMaxPendingEvents() {
+        return maxPendingEvents;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Number of events waiting to be inserted.
+     */
+    public int getPendingCount() {
+        return pendingEvents == null ? 0 : pendingEvents.size();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    @Override
+    protected void initDao() {
+        pendingEvents = new LinkedBlockingQueue<PendingEvent>(maxPendingEvents);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "jdbc-audit-sink");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(periodicFlushTask, flushIntervalInMillis, flushIntervalInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void insert(final List<PendingEvent> batch) {
+        long backoffInMillis = initialBackoffInMillis;
+        for (int attempt = 0;; attempt++) {
+            try {
+                getJdbcTemplate().batchUpdate(insertSql, new BatchPreparedStatementSetter() {
+                    public int getBatchSize() {
+                        return batch.size();
+                    }
+
+                    public void setValues(PreparedStatement ps, int i) throws SQLException {
+                        PendingEvent pendingEvent = batch.get(i);
+                        AuditEvent event = pendingEvent.event;
+                        ps.setTimestamp(1, new Timestamp(event.getTimestampInMillis()));
+                        ps.setString(2, event.getPrincipal());
+                        ps.setString(3, event.getRemoteAddress());
+                        if (event.getMethod() == null) {
+                            ps.setNull(4, Types.VARCHAR);
+                        } else {
+                            ps.setString(4, ClassUtils.getQualifiedMethodName(event.getMethod()));
+                        }
+                        ps.setLong(5, event.getDurationInNanos());
+                        ps.setInt(6, event.isFailure() ? 1 : 0);
+                        ps.setString(7, pendingEvent.message);
+                    }
+                });
+                writtenCount.addAndGet(batch.size());
+                return;
+            } catch (DataAccessException e) {
+                if (attempt >= maxRetries) {
+                    droppedCount.addAndGet(batch.size());
+                    logger.error("Dropped " + batch.size() + " audit events after " + (attempt + 1) + " failed attempts", e);
+                    return;
+                }
+                logger.warn("Exception inserting " + batch.size() + " audit events, retry in " + backoffInMillis + "ms", e);
+                try {
+                    Thread.sleep(backoffInMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    droppedCount.addAndGet(batch.size());
+                    return;
+                }
+                backoffInMillis = Math.min(backoffInMillis * 2, maxBackoffInMillis);
+            } catch (RuntimeException e) {
+                // not a database failure, retrying would not help
+                droppedCount.addAndGet(batch.size());
+                logger.error("Dropped " + batch.size() + " audit events", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Number of events per batch, a flush is triggered as soon as this number
+     * of events is pending. Default to 100.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Maximum delay before a pending event is inserted. Default to 1000ms.
+     */
+    public void setFlushIntervalInMillis(long flushIntervalInMillis) {
+        this.flushIntervalInMillis = flushIntervalInMillis;
+    }
+
+    /**
+     * Delay before the first retry of a failed batch, doubled for each
+     * retry. Default to 100ms.
+     */
+    public void setInitialBackoffInMillis(long initialBackoffInMillis) {
+        this.initialBackoffInMillis = initialBackoffInMillis;
+    }
+
+    /**
+     * SQL statement with the <code>timestamp, principal, remote address,
+     * method, duration in nanos, failure (0|1), message</code> parameters.
+     */
+    public void setInsertSql(String insertSql) {
+        this.insertSql = insertSql;
+    }
+
+    public void setMaxBackoffInMillis(long maxBackoffInMillis) {
+        this.maxBackoffInMillis = maxBackoffInMillis;
+    }
+
+    /**
+     * Maximum number of events waiting to be inserted, the following ones are
+     * dropped. Default to 10000.
+     */
+    public void setMaxPendingEvents(int maxPendingEvents) {
+        this.maxPendingEvents = maxPendingEvents;
+    }
+
+    /**
+     * Number of retries of a failed batch before it is dropped. Default to 3.
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public void write(AuditEvent event, String message) {
+        if (destroyed || !pendingEvents.offer(new PendingEvent(event, message))) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        ScheduledExecutorService executor = scheduler;
+        if (executor == null) {
+            if (destroyed) {
+                // written while destroying, maybe after the final flush
+                flush();
+            }
+            return;
+        }
+        if (pendingEvents.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            try {
+                executor.execute(fullBatchesFlushTask);
+            } catch (RejectedExecutionException e) {
+                // destroyed concurrently
+                flushRequested.set(false);
+                flush();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JdbcAuditSink[" + insertSql + "]";
+    }
+}
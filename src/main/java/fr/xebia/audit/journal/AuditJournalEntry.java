@@ -0,0 +1,88 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.journal;
+
+/**
+ * Audit event decoded from a journal segment by {@link AuditJournalReader}.
+ */
+public class AuditJournalEntry {
+
+    private final long durationInNanos;
+
+    private final boolean failure;
+
+    private final String message;
+
+    private final String method;
+
+    private final String principal;
+
+    private final String remoteAddress;
+
+    private final long timestampInMillis;
+
+    public AuditJournalEntry(long timestampInMillis, String principal, String remoteAddress, String method, long durationInNanos,
+            boolean failure, String message) {
+        super();
+        this.timestampInMillis = timestampInMillis;
+        this.principal = principal;
+        this.remoteAddress = remoteAddress;
+        this.method = method;
+        this.durationInNanos = durationInNanos;
+        this.failure = failure;
+        this.message = message;
+    }
+
+    public long getDurationInNanos() {
+        return durationInNanos;
+    }
+
+    /**
+     * The rendered audit message.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Qualified name of the audited method, <code>null</code> for the events
+     * of {@link fr.xebia.audit.Auditor}.
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPrincipal() {
+        return principal;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public long getTimestampInMillis() {
+        return timestampInMillis;
+    }
+
+    public boolean isFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return message;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.journal;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+
+/**
+ * Binary layout of the journal segments.
+ * <p>
+ * A segment starts with a header (<code>int</code> magic, <code>int</code>
+ * version, <code>long</code> segment index) followed by records. Each record
+ * is prefixed by the <code>int</code> length of its body; a zero length marks
+ * the end of the records of the segment (segments are pre-allocated with
+ * zeros). The body starts with a <code>byte</code> record type:
+ * </p>
+ * <ul>
+ * <li>{@link #METHOD_RECORD}: <code>int</code> method id, string qualified
+ * method name. Method ids are scoped to the segment.</li>
+ * <li>{@link #EVENT_RECORD}: the event encoded by {@link AuditRecordCodec}
+ * with its method id ({@link #NO_METHOD} if none).</li>
+ * </ul>
+ * <p>
+ * Strings are encoded as by {@link AuditRecordCodec}.
+ * </p>
+ */
+final class AuditJournalFormat {
+
+    static final byte EVENT_RECORD = 1;
+
+    static final String FILE_SUFFIX = ".journal";
+
+    static final int HEADER_SIZE = 16;
+
+    static final int MAGIC = 0x58415544;
+
+    static final byte METHOD_RECORD = 2;
+
+    static final int NO_METHOD = -1;
+
+    static final int VERSION = 1;
+
+    static String fileName(String filePrefix, long segmentIndex) {
+        return filePrefix + String.format("%020d", segmentIndex) + FILE_SUFFIX;
+    }
+
+    /**
+     * Returns the segments of the given directory, oldest first.
+     */
+    static File[] listSegments(File directory, final String filePrefix) {
+        File[] segments = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(filePrefix) && name.endsWith(FILE_SUFFIX);
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    static long segmentIndex(File segment, String filePrefix) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(filePrefix.length(), name.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private AuditJournalFormat() {
+    }
+}
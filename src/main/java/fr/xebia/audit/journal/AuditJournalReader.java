@@ -0,0 +1,135 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.journal;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streams the events of journal segments written by
+ * {@link MappedAuditJournal}, oldest segment first. Only one record is held
+ * in memory at a time.
+ *
+ * <pre>
+ * <code>
+ * AuditJournalReader reader = new AuditJournalReader(new File("/var/log/myapp/audit"), "audit-");
+ * try {
+ *     AuditJournalEntry entry;
+ *     while ((entry = reader.read()) != null) {
+ *         ...
+ *     }
+ * } finally {
+ *     reader.close();
+ * }
+ * </code>
+ * </pre>
+ */
+public class AuditJournalReader implements Closeable {
+
+    private DataInputStream in;
+
+    private final Map<Integer, String> methods = new HashMap<Integer, String>();
+
+    private int nextSegment;
+
+    private final File[] segments;
+
+    /**
+     * Reads all the segments of the given directory.
+     */
+    public AuditJournalReader(File directory, String filePrefix) {
+        this(AuditJournalFormat.listSegments(directory, filePrefix));
+    }
+
+    /**
+     * Reads the given segments in the given order.
+     */
+    public AuditJournalReader(File... segments) {
+        super();
+        this.segments = segments.clone();
+    }
+
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+        nextSegment = segments.length;
+    }
+
+    private boolean openNextSegment() throws IOException {
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+        methods.clear();
+        if (nextSegment >= segments.length) {
+            return false;
+        }
+        File segment = segments[nextSegment++];
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 64 * 1024));
+        int magic = in.readInt();
+        int version = in.readInt();
+        if (magic != AuditJournalFormat.MAGIC || version != AuditJournalFormat.VERSION) {
+            throw new IOException("Segment " + segment + " is not an audit journal segment (magic=" + Integer.toHexString(magic)
+                    + ", version=" + version + ")");
+        }
+        in.readLong(); // segment index
+        return true;
+    }
+
+    /**
+     * Returns the next event or <code>null</code> if all the segments have
+     * been read.
+     */
+    public AuditJournalEntry read() throws IOException {
+        while (true) {
+            if (in == null && !openNextSegment()) {
+                return null;
+            }
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                length = 0;
+            }
+            if (length == 0) {
+                // end of the records of this segment
+                if (!openNextSegment()) {
+                    return null;
+                }
+                continue;
+            }
+            byte type = in.readByte();
+            if (type == AuditJournalFormat.METHOD_RECORD) {
+                int id = in.readInt();
+                methods.put(Integer.valueOf(id), AuditRecordCodec.readString(in));
+            } else if (type == AuditJournalFormat.EVENT_RECORD) {
+                return AuditRecordCodec.readEvent(in, methods);
+            } else {
+                // unknown record type, skip its body
+                in.skipBytes(length - 1);
+            }
+        }
+    }
+}
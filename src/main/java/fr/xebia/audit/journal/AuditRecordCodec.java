@@ -0,0 +1,120 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.journal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Encoding of the audit events shared by the journal segments of
+ * {@link MappedAuditJournal} and the archive segments of
+ * {@link fr.xebia.audit.archive.AuditArchive}, so that both formats decode
+ * the same {@link AuditJournalEntry}.
+ * <p>
+ * An event is encoded as: <code>long</code> timestamp in millis,
+ * <code>long</code> duration in nanos, <code>byte</code> outcome (0 success,
+ * 1 failure), the method, then the strings principal, remote address and
+ * rendered message. The method is an <code>int</code> id scoped to the
+ * segment in the journal ({@link AuditJournalFormat#NO_METHOD} if none) and
+ * a string in the archive. Strings are encoded as an <code>int</code> byte
+ * length (-1 for <code>null</code>) followed by the UTF-8 bytes.
+ * </p>
+ */
+public final class AuditRecordCodec {
+
+    public static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(CHARSET);
+    }
+
+    /**
+     * Reads an event.
+     *
+     * @param methods
+     *            the names of the methods by id if the method is encoded as
+     *            an id, <code>null</code> if it is encoded as a string
+     */
+    public static AuditJournalEntry readEvent(DataInput in, Map<Integer, String> methods) throws IOException {
+        long timestampInMillis = in.readLong();
+        long durationInNanos = in.readLong();
+        boolean failure = in.readByte() != 0;
+        String method;
+        if (methods == null) {
+            method = readString(in);
+        } else {
+            int methodId = in.readInt();
+            method = methodId == AuditJournalFormat.NO_METHOD ? null : methods.get(Integer.valueOf(methodId));
+        }
+        String principal = readString(in);
+        String remoteAddress = readString(in);
+        String message = readString(in);
+        return new AuditJournalEntry(timestampInMillis, principal, remoteAddress, method, durationInNanos, failure, message);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    private static int stringSize(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    /**
+     * Writes an event whose method is encoded as a string, prefixed by the
+     * <code>int</code> length of its encoding. Returns the number of bytes
+     * written.
+     */
+    public static int writeEvent(DataOutput out, long timestampInMillis, long durationInNanos, boolean failure, String method,
+            String principal, String remoteAddress, String message) throws IOException {
+        byte[] methodBytes = encode(method);
+        byte[] principalBytes = encode(principal);
+        byte[] remoteAddressBytes = encode(remoteAddress);
+        byte[] messageBytes = encode(message);
+        int length = 8 + 8 + 1 + stringSize(methodBytes) + stringSize(principalBytes) + stringSize(remoteAddressBytes)
+                + stringSize(messageBytes);
+        out.writeInt(length);
+        out.writeLong(timestampInMillis);
+        out.writeLong(durationInNanos);
+        out.writeByte(failure ? 1 : 0);
+        writeString(out, methodBytes);
+        writeString(out, principalBytes);
+        writeString(out, remoteAddressBytes);
+        writeString(out, messageBytes);
+        return 4 + length;
+    }
+
+    private static void writeString(DataOutput out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private AuditRecordCodec() {
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.ClassUtils;
+
+import fr.xebia.audit.AuditEvent;
+import fr.xebia.audit.AuditSink;
+import fr.xebia.audit.CharSequenceAuditSink;
+
+/**
+ * {@link AuditSink} appending the audit events to a journal of pre-allocated,
+ * memory-mapped segment files, using the compact binary records described in
+ * {@link AuditJournalFormat}. The segments can be decoded with
+ * {@link AuditJournalReader}.
+ * <p>
+ * Strings are UTF-8 encoded directly in the mapped segment, without
+ * intermediate byte arrays.
+ * </p>
+ * <p>
+ * A new segment is created each time the journal is opened and when the
+ * current segment is full. Old segments are never deleted by the journal.
+ * </p>
+ * <p>
+ * Sample configuration :
+ * </p>
+ *
+ * <pre>
+ * <code>
+ *  &lt;bean id="auditJournal" class="fr.xebia.audit.journal.MappedAuditJournal"&gt;
+ *     &lt;property name="directory" value="/var/log/myapp/audit" /&gt;
+ *     &lt;property name="forcePolicy" value="INTERVAL" /&gt;
+ *  &lt;/bean&gt;
+ *  &lt;security-extras:audit-aspect audit-sink-ref="auditJournal" /&gt;
+ * </code>
+ * </pre>
+ */
+public class MappedAuditJournal implements CharSequenceAuditSink, InitializingBean, DisposableBean {
+
+    /**
+     * When the written records are forced to the storage device.
+     */
+    public enum ForcePolicy {
+        /**
+         * After each record.
+         */
+        EVERY_WRITE,
+        /**
+         * After a record if the previous force is older than
+         * {@link MappedAuditJournal#getForceIntervalInMillis()}.
+         */
+        INTERVAL,
+        /**
+         * Never, the operating system flushes the pages when it decides to.
+         */
+        NEVER,
+        /**
+         * When a segment is full and when the journal is closed.
+         */
+        ON_ROLLOVER
+    }
+
+    private MappedByteBuffer buffer;
+
+    private FileChannel channel;
+
+    private File directory;
+
+    private String filePrefix = "audit-";
+
+    private long forceIntervalInMillis = 1000;
+
+    private ForcePolicy forcePolicy = ForcePolicy.ON_ROLLOVER;
+
+    private long lastForceInMillis;
+
+    private final Logger logger = LoggerFactory.getLogger(MappedAuditJournal.class);
+
+    private final Map<Method, Integer> methodIds = new HashMap<Method, Integer>();
+
+    private RandomAccessFile randomAccessFile;
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private long segmentIndex;
+
+    private int segmentSize = 64 * 1024 * 1024;
+
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    private static int methodRecordSize(String methodName) {
+        return methodName == null ? 0 : 4 + 1 + 4 + stringSize(methodName);
+    }
+
+    private static int stringSize(CharSequence chars) {
+        return 4 + (chars == null ? 0 : utf8Length(chars));
+    }
+
+    /**
+     * Length of the given chars encoded in UTF-8, unpaired surrogates being
+     * replaced by <code>'?'</code> as {@link String#getBytes(java.nio.charset.Charset)} does.
+     */
+    private static int utf8Length(CharSequence chars) {
+        int length = 0;
+        for (int i = 0, count = chars.length(); i < count; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    public void afterPropertiesSet() throws IOException {
+        open();
+    }
+
+    /**
+     * Forces the pending records according to the {@link ForcePolicy} and
+     * closes the current segment.
+     */
+    public synchronized void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        if (forcePolicy != ForcePolicy.NEVER) {
+            buffer.force();
+        }
+        // the mapping itself is released when the buffer is garbage collected
+        buffer = null;
+        channel.close();
+        randomAccessFile.close();
+    }
+
+    public void destroy() throws IOException {
+        close();
+    }
+
+    private boolean ensureCapacity(int size) throws IOException {
+        if (size + 4 > segmentSize - AuditJournalFormat.HEADER_SIZE) {
+            return false;
+        }
+        if (buffer.remaining() < size + 4) {
+            if (forcePolicy == ForcePolicy.ON_ROLLOVER) {
+                buffer.force();
+            }
+            buffer = null;
+            channel.close();
+            randomAccessFile.close();
+            openSegment(segmentIndex + 1);
+        }
+        return true;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public String getFilePrefix() {
+        return filePrefix;
+    }
+
+    public long getForceIntervalInMillis() {
+        return forceIntervalInMillis;
+    }
+
+    public ForcePolicy getForcePolicy() {
+        return forcePolicy;
+    }
+
+    /**
+     * Number of events too large to fit in a segment, they are not written.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public synchronized long getSegmentIndex() {
+        return segmentIndex;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Opens a new segment following the existing segments of the directory.
+     */
+    public synchronized void open() throws IOException {
+        if (buffer != null) {
+            return;
+        }
+        if (directory == null) {
+            throw new IllegalStateException("directory is not set");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        long lastSegmentIndex = 0;
+        for (File segment : AuditJournalFormat.listSegments(directory, filePrefix)) {
+            lastSegmentIndex = Math.max(lastSegmentIndex, AuditJournalFormat.segmentIndex(segment, filePrefix));
+        }
+        openSegment(lastSegmentIndex + 1);
+    }
+
+    private void openSegment(long newSegmentIndex) throws IOException {
+        File file = new File(directory, AuditJournalFormat.fileName(filePrefix, newSegmentIndex));
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(segmentSize);
+        channel = randomAccessFile.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        buffer.putInt(AuditJournalFormat.MAGIC);
+        buffer.putInt(AuditJournalFormat.VERSION);
+        buffer.putLong(newSegmentIndex);
+        segmentIndex = newSegmentIndex;
+        methodIds.clear();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Opened audit journal segment " + file);
+        }
+    }
+
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    public void setFilePrefix(String filePrefix) {
+        this.filePrefix = filePrefix;
+    }
+
+    public void setForceIntervalInMillis(long forceIntervalInMillis) {
+        this.forceIntervalInMillis = forceIntervalInMillis;
+    }
+
+    /**
+     * Default to {@link ForcePolicy#ON_ROLLOVER}.
+     */
+    public void setForcePolicy(ForcePolicy forcePolicy) {
+        this.forcePolicy = forcePolicy;
+    }
+
+    /**
+     * Size in bytes of the pre-allocated segment files. Default to 64MB.
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public void write(AuditEvent event, String message) {
+        write(event, (CharSequence) message);
+    }
+
+    public synchronized void write(AuditEvent event, CharSequence message) {
+        if (buffer == null) {
+            throw new IllegalStateException("Audit journal " + directory + " is not open");
+        }
+        String principal = event.getPrincipal();
+        String remoteAddress = event.getRemoteAddress();
+        int eventSize = 1 + 8 + 8 + 1 + 4 + stringSize(principal) + stringSize(remoteAddress) + stringSize(message);
+        try {
+            Method method = event.getMethod();
+            Integer id = method == null ? null : methodIds.get(method);
+            // the name of a method is only needed for its first event in the segment
+            String methodName = method == null || id != null ? null : ClassUtils.getQualifiedMethodName(method);
+            long previousSegmentIndex = segmentIndex;
+            boolean fits = ensureCapacity(eventSize + methodRecordSize(methodName));
+            if (fits && id != null && segmentIndex != previousSegmentIndex) {
+                // rollover: the method ids of the new segment start again from scratch
+                id = null;
+                methodName = ClassUtils.getQualifiedMethodName(method);
+                fits = ensureCapacity(eventSize + methodRecordSize(methodName));
+            }
+            if (!fits) {
+                rejectedCount.incrementAndGet();
+                logger.warn("Audit event of " + eventSize + " bytes does not fit in a segment of " + segmentSize + " bytes: " + message);
+                return;
+            }
+
+            int methodId = AuditJournalFormat.NO_METHOD;
+            if (method != null) {
+                if (id == null) {
+                    id = Integer.valueOf(methodIds.size());
+                    methodIds.put(method, id);
+                    int start = buffer.position();
+                    buffer.position(start + 4);
+                    buffer.put(AuditJournalFormat.METHOD_RECORD);
+                    buffer.putInt(id.intValue());
+                    writeString(methodName);
+                    buffer.putInt(start, buffer.position() - start - 4);
+                }
+                methodId = id.intValue();
+            }
+
+            // the length is written last so that a reader never sees a partial record
+            int start = buffer.position();
+            buffer.position(start + 4);
+            buffer.put(AuditJournalFormat.EVENT_RECORD);
+            // encoded as decoded by AuditRecordCodec.readEvent(), with the method id
+            buffer.putLong(event.getTimestampInMillis());
+            buffer.putLong(event.getDurationInNanos());
+            buffer.put(event.isFailure() ? (byte) 1 : (byte) 0);
+            buffer.putInt(methodId);
+            writeString(principal);
+            writeString(remoteAddress);
+            writeString(message);
+            buffer.putInt(start, buffer.position() - start - 4);
+            writtenCount.incrementAndGet();
+
+            if (forcePolicy == ForcePolicy.EVERY_WRITE) {
+                buffer.force();
+            } else if (forcePolicy == ForcePolicy.INTERVAL) {
+                long now = System.currentTimeMillis();
+                if (now - lastForceInMillis >= forceIntervalInMillis) {
+                    buffer.force();
+                    lastForceInMillis = now;
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Exception writing in audit journal " + directory, e);
+        }
+    }
+
+    /**
+     * Writes the given chars as {@link AuditRecordCodec} encodes strings,
+     * without intermediate byte array.
+     */
+    private void writeString(CharSequence chars) {
+        if (chars == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        buffer.putInt(utf8Length(chars));
+        for (int i = 0, count = chars.length(); i < count; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedAuditJournal[" + directory + "]";
+    }
+}
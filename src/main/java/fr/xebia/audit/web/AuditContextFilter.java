@@ -0,0 +1,71 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.web;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import fr.xebia.audit.AuditContextHolder;
+
+/**
+ * <p>
+ * Shares the {@link fr.xebia.audit.AuditContext} (principal, remote address
+ * and <code>" by ... coming from ..."</code> message suffix) between all the
+ * audited invocations of a request instead of rebuilding it on each
+ * invocation.
+ * </p>
+ * <p>
+ * The context is built lazily on the first audited invocation, the filter
+ * can thus be declared anywhere in the chain, for example:
+ * </p>
+ * <code><pre>
+ * &lt;sec:http ...&gt;
+ *    ...
+ *    &lt;sec:custom-filter ref="auditContextFilter" after="SECURITY_CONTEXT_FILTER" /&gt;
+ * &lt;/sec:http&gt;
+ * &lt;bean id="auditContextFilter" class="fr.xebia.audit.web.AuditContextFilter" /&gt;
+ * </pre></code>
+ *
+ * @see AuditContextHolder
+ */
+public class AuditContextFilter implements Filter {
+
+    @Override
+    public void destroy() {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        boolean outermost = AuditContextHolder.beginRequest();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            if (outermost) {
+                AuditContextHolder.endRequest();
+            }
+        }
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+}
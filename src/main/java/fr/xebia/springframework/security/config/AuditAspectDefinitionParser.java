@@ -16,14 +16,18 @@
 package fr.xebia.springframework.security.config;
 
 import org.springframework.beans.factory.BeanDefinitionStoreException;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.RuntimeBeanReference;
 import org.springframework.beans.factory.support.AbstractBeanDefinition;
 import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.beans.factory.support.RootBeanDefinition;
 import org.springframework.beans.factory.xml.AbstractSimpleBeanDefinitionParser;
 import org.springframework.beans.factory.xml.ParserContext;
 import org.springframework.util.StringUtils;
 import org.w3c.dom.Element;
 
 import fr.xebia.audit.AuditAspect;
+import fr.xebia.audit.index.IndexedAuditProxyCreator;
 
 /**
  * Parser of the &lt;security-extras:audit-aspect /&gt; configuration element.
@@ -32,6 +36,27 @@ import fr.xebia.audit.AuditAspect;
  */
 public class AuditAspectDefinitionParser extends AbstractSimpleBeanDefinitionParser {
 
+    private static final String AUDIT_SINK_REF_ATTRIBUTE = "audit-sink-ref";
+
+    private static final String INDEXED_PROXIES_ATTRIBUTE = "indexed-proxies";
+
+    private static final String PROXY_CREATOR_BEAN_NAME = "fr.xebia.audit.index.internalIndexedAuditProxyCreator";
+
+    @Override
+    protected void doParse(Element element, ParserContext parserContext, BeanDefinitionBuilder builder) {
+        super.doParse(element, parserContext, builder);
+
+        if (Boolean.valueOf(element.getAttribute(INDEXED_PROXIES_ATTRIBUTE))) {
+            String id = element.getAttribute(ID_ATTRIBUTE);
+            RootBeanDefinition proxyCreator = new RootBeanDefinition(IndexedAuditProxyCreator.class);
+            proxyCreator.setSource(parserContext.extractSource(element));
+            proxyCreator.setRole(BeanDefinition.ROLE_INFRASTRUCTURE);
+            proxyCreator.getPropertyValues().addPropertyValue("auditAspect",
+                    new RuntimeBeanReference(StringUtils.hasText(id) ? id : "auditAspect"));
+            parserContext.getRegistry().registerBeanDefinition(PROXY_CREATOR_BEAN_NAME, proxyCreator);
+        }
+    }
+
     @Override
     protected Class<?> getBeanClass(Element element) {
         return AuditAspect.class;
@@ -48,8 +73,19 @@ public class AuditAspectDefinitionParser extends AbstractSimpleBeanDefinitionPar
         return id;
     }
 
+    @Override
+    protected boolean isEligibleAttribute(String attributeName) {
+        return super.isEligibleAttribute(attributeName) && !AUDIT_SINK_REF_ATTRIBUTE.equals(attributeName)
+                && !INDEXED_PROXIES_ATTRIBUTE.equals(attributeName);
+    }
+
     protected void postProcess(BeanDefinitionBuilder beanDefinition, Element element) {
         // see http://static.springsource.org/spring/docs/3.1.x/spring-framework-reference/html/aop.html#aop-aj-configure
         beanDefinition.setFactoryMethod("aspectOf");
+
+        String auditSinkRef = element.getAttribute(AUDIT_SINK_REF_ATTRIBUTE);
+        if (StringUtils.hasText(auditSinkRef)) {
+            beanDefinition.addPropertyReference("auditSink", auditSinkRef);
+        }
     }
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.providers;
+
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.userdetails.UserDetails;
+
+/**
+ * Check of an authentication request that does not need the password, run by
+ * {@link ExtendedDaoAuthenticationProvider} before the password verification
+ * to reject a login without computing any hash.
+ *
+ * @see ExtendedDaoAuthenticationProvider#setChecksBeforePassword(java.util.List)
+ */
+public interface AuthenticationCheck {
+
+    /**
+     * @throws AuthenticationException
+     *             to reject the authentication request
+     */
+    void check(UserDetails userDetails, UsernamePasswordAuthenticationToken authentication) throws AuthenticationException;
+}
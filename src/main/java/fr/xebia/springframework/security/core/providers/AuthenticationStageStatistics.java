@@ -0,0 +1,83 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.providers;
+
+import fr.xebia.audit.LatencyHistogram;
+
+/**
+ * Latency histogram of a stage of the authentication, recorded by
+ * {@link ExtendedDaoAuthenticationProvider} and
+ * {@link fr.xebia.springframework.security.core.userdetails.jdbc.ExtendedJdbcUserDetailsManager}
+ * when their {@link AuthenticationStatistics} are enabled.
+ */
+public class AuthenticationStageStatistics implements AuthenticationStageStatisticsMBean {
+
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    private final AuthenticationStatistics.Stage stage;
+
+    AuthenticationStageStatistics(AuthenticationStatistics.Stage stage) {
+        super();
+        this.stage = stage;
+    }
+
+    public long getCount() {
+        return histogram.getCount();
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    public long getMaxInMicros() {
+        return histogram.getMax() / NANOS_PER_MICRO;
+    }
+
+    public long getMeanInMicros() {
+        return histogram.getMean() / NANOS_PER_MICRO;
+    }
+
+    public long getP50InMicros() {
+        return histogram.getPercentile(0.50) / NANOS_PER_MICRO;
+    }
+
+    public long getP90InMicros() {
+        return histogram.getPercentile(0.90) / NANOS_PER_MICRO;
+    }
+
+    public long getP99InMicros() {
+        return histogram.getPercentile(0.99) / NANOS_PER_MICRO;
+    }
+
+    public String getStage() {
+        return stage.getName();
+    }
+
+    public void record(long durationInNanos) {
+        histogram.record(durationInNanos);
+    }
+
+    public void reset() {
+        histogram.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "AuthenticationStageStatistics[" + getStage() + ", count=" + histogram.getCount() + "]";
+    }
+}
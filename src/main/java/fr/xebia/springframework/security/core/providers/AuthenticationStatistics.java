@@ -0,0 +1,289 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.providers;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+
+/**
+ * Per-stage latency histograms and outcome counters of the logins handled by
+ * an {@link ExtendedDaoAuthenticationProvider}, to tell whether a slow login
+ * waits for the user load, the extra columns query of
+ * {@link fr.xebia.springframework.security.core.userdetails.jdbc.ExtendedJdbcUserDetailsManager},
+ * the remote address check or the password verification.
+ * <p>
+ * The statistics can be switched on and off at runtime with
+ * {@link #setEnabled(boolean)}, also exposed over JMX: when disabled, an
+ * authentication only pays a volatile read per stage. When used as a Spring
+ * bean, the statistics are registered in the {@link #setMbeanServer(MBeanServer)
+ * MBean server} as
+ * <code>fr.xebia.springframework.security:type=Authentication,name="default"</code>
+ * and one
+ * <code>fr.xebia.springframework.security:type=AuthenticationStage,authentication="default",name=...</code>
+ * MBean per {@link Stage}.
+ * </p>
+ */
+public class AuthenticationStatistics implements AuthenticationStatisticsMBean, InitializingBean, DisposableBean {
+
+    /**
+     * Outcome of an authentication.
+     */
+    public enum Outcome {
+        BAD_CREDENTIALS, OTHER_FAILURE, REMOTE_ADDRESS_DENIED, SUCCESS, THROTTLED, USER_NOT_FOUND;
+
+        /**
+         * Returns the outcome of an authentication which threw the given
+         * exception, when the stage that threw it is not known.
+         */
+        public static Outcome of(AuthenticationException e) {
+            if (e instanceof LoginThrottledException) {
+                return THROTTLED;
+            } else if (e instanceof UsernameNotFoundException) {
+                return USER_NOT_FOUND;
+            } else if (e instanceof BadCredentialsException) {
+                return BAD_CREDENTIALS;
+            } else {
+                return OTHER_FAILURE;
+            }
+        }
+    }
+
+    /**
+     * Timed stage of an authentication.
+     */
+    public enum Stage {
+        EXTRA_COLUMNS_QUERY("extraColumnsQuery"), PASSWORD_VERIFICATION("passwordVerification"), REMOTE_ADDRESS_CHECK(
+                "remoteAddressCheck"), TOTAL("total"), USER_LOAD("userLoad");
+
+        private final String name;
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private volatile boolean enabled = true;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private MBeanServer mbeanServer;
+
+    private String name = "default";
+
+    private final AtomicLongArray outcomeCounts = new AtomicLongArray(Outcome.values().length);
+
+    private final List<ObjectName> registeredObjectNames = new ArrayList<ObjectName>();
+
+    private final AuthenticationStageStatistics[] stages = new AuthenticationStageStatistics[Stage.values().length];
+
+    public AuthenticationStatistics() {
+        super();
+        for (Stage stage : Stage.values()) {
+            stages[stage.ordinal()] = new AuthenticationStageStatistics(stage);
+        }
+    }
+
+    /**
+     * Registers the statistics and the statistics of each stage in the MBean
+     * server. If other statistics have already registered MBeans of the same
+     * name, the names are suffixed with an <code>instance</code> key rather
+     * than replacing them.
+     */
+    public void afterPropertiesSet() {
+        if (mbeanServer == null) {
+            mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        }
+        synchronized (registeredObjectNames) {
+            try {
+                String instance = "";
+                for (int i = 2; mbeanServer.isRegistered(new ObjectName(getObjectName() + instance)); i++) {
+                    instance = ",instance=" + i;
+                }
+                register(this, new ObjectName(getObjectName() + instance));
+                for (Stage stage : Stage.values()) {
+                    register(getStage(stage), new ObjectName(getObjectName(stage) + instance));
+                }
+            } catch (JMException e) {
+                log.warn("Exception registering the authentication statistics MBeans of " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Unregisters the MBeans.
+     */
+    public void destroy() {
+        synchronized (registeredObjectNames) {
+            for (ObjectName objectName : registeredObjectNames) {
+                try {
+                    mbeanServer.unregisterMBean(objectName);
+                } catch (JMException e) {
+                    log.debug("Exception unregistering " + objectName, e);
+                }
+            }
+            registeredObjectNames.clear();
+        }
+    }
+
+    public long getBadCredentialsCount() {
+        return getOutcomeCount(Outcome.BAD_CREDENTIALS);
+    }
+
+    public MBeanServer getMbeanServer() {
+        return mbeanServer;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Name of the MBean:
+     * <code>fr.xebia.springframework.security:type=Authentication,name="default"</code>
+     */
+    public ObjectName getObjectName() throws MalformedObjectNameException {
+        return new ObjectName("fr.xebia.springframework.security:type=Authentication,name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * Name of the MBean of the given stage:
+     * <code>fr.xebia.springframework.security:type=AuthenticationStage,authentication="default",name=passwordVerification</code>
+     */
+    public ObjectName getObjectName(Stage stage) throws MalformedObjectNameException {
+        return new ObjectName("fr.xebia.springframework.security:type=AuthenticationStage,authentication=" + ObjectName.quote(name)
+                + ",name=" + stage.getName());
+    }
+
+    /**
+     * Number of failures other than the ones counted by the other outcomes,
+     * e.g. locked or disabled accounts.
+     */
+    public long getOtherFailureCount() {
+        return getOutcomeCount(Outcome.OTHER_FAILURE);
+    }
+
+    public long getOutcomeCount(Outcome outcome) {
+        return outcomeCounts.get(outcome.ordinal());
+    }
+
+    public long getRemoteAddressDeniedCount() {
+        return getOutcomeCount(Outcome.REMOTE_ADDRESS_DENIED);
+    }
+
+    public AuthenticationStageStatistics getStage(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    public long getSuccessCount() {
+        return getOutcomeCount(Outcome.SUCCESS);
+    }
+
+    public long getThrottledCount() {
+        return getOutcomeCount(Outcome.THROTTLED);
+    }
+
+    /**
+     * Number of logins of unknown usernames, whether or not the provider hides
+     * them behind a bad credentials failure.
+     */
+    public long getUserNotFoundCount() {
+        return getOutcomeCount(Outcome.USER_NOT_FOUND);
+    }
+
+    /**
+     * <code>true</code> (default) if the stages and the outcomes are recorded.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void record(Outcome outcome) {
+        outcomeCounts.incrementAndGet(outcome.ordinal());
+    }
+
+    public void record(Stage stage, long durationInNanos) {
+        stages[stage.ordinal()].record(durationInNanos);
+    }
+
+    /**
+     * Registers the given MBean, {@link #destroy()} only unregisters the
+     * MBeans registered by this method. Invoked with the lock of the
+     * registered object names.
+     */
+    private void register(Object mbean, ObjectName objectName) throws JMException {
+        mbeanServer.registerMBean(mbean, objectName);
+        registeredObjectNames.add(objectName);
+    }
+
+    /**
+     * Resets the outcome counters and the histograms of all the stages.
+     */
+    public void reset() {
+        for (int i = 0; i < outcomeCounts.length(); i++) {
+            outcomeCounts.set(i, 0);
+        }
+        for (AuthenticationStageStatistics stage : stages) {
+            stage.reset();
+        }
+    }
+
+    /**
+     * Switches the recording on or off at runtime, the recorded statistics
+     * are kept.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Default to the platform MBean server.
+     */
+    public void setMbeanServer(MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+
+    /**
+     * Name of the MBeans, to tell apart the statistics of several
+     * authentication providers. Default to <code>default</code>.
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return "AuthenticationStatistics[" + name + ", enabled=" + enabled + ", success=" + getSuccessCount() + "]";
+    }
+}
@@ -15,16 +15,25 @@
  */
 package fr.xebia.springframework.security.core.providers;
 
+import fr.xebia.springframework.security.core.providers.AuthenticationStatistics.Outcome;
+import fr.xebia.springframework.security.core.providers.AuthenticationStatistics.Stage;
+import fr.xebia.springframework.security.core.userdetails.AllowedRemoteAddresses;
+import fr.xebia.springframework.security.core.userdetails.CidrTrie;
 import fr.xebia.springframework.security.core.userdetails.ExtendedUser;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.security.web.authentication.WebAuthenticationDetails;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -39,8 +48,114 @@ import java.util.regex.Pattern;
  */
 public class ExtendedDaoAuthenticationProvider extends DaoAuthenticationProvider {
 
+    /**
+     * Records the duration of the user loads and the unknown usernames.
+     */
+    private class TimedUserDetailsService implements UserDetailsService {
+        private final UserDetailsService delegate;
+
+        private final AuthenticationStatistics statistics;
+
+        TimedUserDetailsService(UserDetailsService delegate, AuthenticationStatistics statistics) {
+            this.delegate = delegate;
+            this.statistics = statistics;
+        }
+
+        public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException, DataAccessException {
+            long startInNanos = System.nanoTime();
+            try {
+                return delegate.loadUserByUsername(username);
+            } catch (UsernameNotFoundException e) {
+                failureOutcome.set(Outcome.USER_NOT_FOUND);
+                throw e;
+            } finally {
+                statistics.record(Stage.USER_LOAD, System.nanoTime() - startInNanos);
+            }
+        }
+    }
+
+    private List<AuthenticationCheck> checksBeforePassword = Collections.emptyList();
+
+    private RemoteAddressDecisionCache decisionCache;
+
+    /**
+     * Outcome of the current authentication when it is known better by the
+     * stage that failed than by the thrown exception, e.g. an unknown username
+     * hidden behind a bad credentials failure. Only set when the statistics
+     * are enabled.
+     */
+    private final ThreadLocal<Outcome> failureOutcome = new ThreadLocal<Outcome>();
+
     protected final Log log = LogFactory.getLog(getClass());
 
+    private LoginThrottle loginThrottle;
+
+    /**
+     * <code>true</code> if a subclass overrides
+     * {@link #matchesOneAddress(String, List)}, which must then see every
+     * pattern match.
+     */
+    private final boolean patternMatchingOverridden = isPatternMatchingOverridden(getClass());
+
+    private boolean remoteAddressCheckedBeforePassword = true;
+
+    private AuthenticationStatistics statistics;
+
+    private VerifiedCredentialsCache verifiedCredentialsCache;
+
+    /**
+     * If a {@link #setLoginThrottle(LoginThrottle) login throttle} is
+     * configured, rejects the login attempts of the remote addresses and of the
+     * usernames with too many recent failures before loading the user, and
+     * counts the failures caused by bad credentials or unknown usernames. If
+     * {@link #setStatistics(AuthenticationStatistics) statistics} are enabled,
+     * records the duration and the outcome of the authentication.
+     */
+    @Override
+    public Authentication authenticate(Authentication authentication) throws AuthenticationException {
+        AuthenticationStatistics stats = enabledStatistics();
+        if (stats == null) {
+            return throttledAuthenticate(authentication);
+        }
+        failureOutcome.remove();
+        long startInNanos = System.nanoTime();
+        try {
+            Authentication result = throttledAuthenticate(authentication);
+            stats.record(Outcome.SUCCESS);
+            return result;
+        } catch (AuthenticationException e) {
+            Outcome outcome = failureOutcome.get();
+            stats.record(outcome == null ? Outcome.of(e) : outcome);
+            throw e;
+        } finally {
+            failureOutcome.remove();
+            stats.record(Stage.TOTAL, System.nanoTime() - startInNanos);
+        }
+    }
+
+    private Authentication throttledAuthenticate(Authentication authentication) throws AuthenticationException {
+        LoginThrottle throttle = loginThrottle;
+        if (throttle == null) {
+            return super.authenticate(authentication);
+        }
+        String username = authentication.getPrincipal() == null ? "NONE_PROVIDED" : authentication.getName();
+        String remoteAddress = authentication.getDetails() instanceof WebAuthenticationDetails ? ((WebAuthenticationDetails) authentication
+                .getDetails()).getRemoteAddress() : null;
+        throttle.checkAllowed(username, remoteAddress);
+        Authentication result;
+        try {
+            result = super.authenticate(authentication);
+        } catch (BadCredentialsException e) {
+            throttle.recordFailure(username, remoteAddress);
+            throw e;
+        } catch (UsernameNotFoundException e) {
+            throttle.recordFailure(username, remoteAddress);
+            throw e;
+        }
+        throttle.recordSuccess(username);
+        return result;
+    }
+
     /**
      * Checks that the {@link org.springframework.security.web.authentication.WebAuthenticationDetails#getRemoteAddress()}
      * matches one of the {@link ExtendedUser#getAllowedRemoteAddresses()}. If
@@ -48,13 +163,52 @@ public class ExtendedDaoAuthenticationProvider extends DaoAuthenticationProvider
      * the given <code>authentication.details</code> is not a
      * {@link org.springframework.security.web.authentication.WebAuthenticationDetails}, then the ip address check is silently
      * by passed.
+     * <p>
+     * The cheap checks run first: the remote address check, unless
+     * {@link #setRemoteAddressCheckedBeforePassword(boolean)} is
+     * <code>false</code>, then the {@link #setChecksBeforePassword(List)}.
+     * The password, whose verification computes a hash, is only verified if
+     * they all pass.
+     * </p>
      */
     @Override
     protected void additionalAuthenticationChecks(UserDetails userDetails, UsernamePasswordAuthenticationToken authentication)
             throws AuthenticationException {
 
-        super.additionalAuthenticationChecks(userDetails, authentication);
+        if (remoteAddressCheckedBeforePassword) {
+            timedCheckRemoteAddress(userDetails, authentication, false);
+        }
+        for (AuthenticationCheck check : checksBeforePassword) {
+            check.check(userDetails, authentication);
+        }
+
+        AuthenticationStatistics stats = enabledStatistics();
+        if (stats == null) {
+            verifyPassword(userDetails, authentication);
+        } else {
+            long startInNanos = System.nanoTime();
+            try {
+                verifyPassword(userDetails, authentication);
+            } finally {
+                stats.record(Stage.PASSWORD_VERIFICATION, System.nanoTime() - startInNanos);
+            }
+        }
+
+        if (!remoteAddressCheckedBeforePassword) {
+            timedCheckRemoteAddress(userDetails, authentication, true);
+        }
+    }
 
+    /**
+     * Throws a {@link BadCredentialsException} if the remote address of the
+     * given <code>authentication</code> does not match one of the allowed
+     * remote addresses of the given <code>userDetails</code>. As long as the
+     * password has not been verified, the message is the same as for a wrong
+     * password so that an unauthenticated caller cannot tell that the account
+     * exists and is restricted to some addresses.
+     */
+    protected void checkRemoteAddress(UserDetails userDetails, UsernamePasswordAuthenticationToken authentication,
+            boolean passwordVerified) throws AuthenticationException {
         if (!(userDetails instanceof ExtendedUser)) {
             if (log.isDebugEnabled()) {
                 log.debug("Given userDetails '" + userDetails + "' is not an ExtendedUser, skip ipAddress verification");
@@ -78,12 +232,143 @@ public class ExtendedDaoAuthenticationProvider extends DaoAuthenticationProvider
             log.debug("Evaluate permission for '" + extendedUser + "' to authenticate from ip address " + remoteIpAddress);
         }
 
-        List<Pattern> allowedRemoteAddressesPatterns = extendedUser.getAllowedRemoteAddressesPatterns();
-        if (!matchesOneAddress(remoteIpAddress, allowedRemoteAddressesPatterns)) {
-            throw new BadCredentialsException("Access denied from IP : " + remoteIpAddress);
+        if (!matchesOneAddress(remoteIpAddress, extendedUser)) {
+            if (passwordVerified) {
+                throw new BadCredentialsException("Access denied from IP : " + remoteIpAddress);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Access denied to '" + extendedUser.getUsername() + "' from IP : " + remoteIpAddress);
+            }
+            throw new BadCredentialsException(messages.getMessage("AbstractUserDetailsAuthenticationProvider.badCredentials",
+                    "Bad credentials"));
         }
     }
 
+    /**
+     * Returns the {@link #setStatistics(AuthenticationStatistics) statistics}
+     * if they are enabled, <code>null</code> otherwise.
+     */
+    private AuthenticationStatistics enabledStatistics() {
+        AuthenticationStatistics stats = statistics;
+        return stats == null || !stats.isEnabled() ? null : stats;
+    }
+
+    /**
+     * Cheap checks run before the password verification.
+     */
+    public List<AuthenticationCheck> getChecksBeforePassword() {
+        return checksBeforePassword;
+    }
+
+    /**
+     * Optional cache of the decisions of
+     * {@link #matchesOneAddress(String, ExtendedUser)}, <code>null</code> by
+     * default.
+     */
+    public RemoteAddressDecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+
+    /**
+     * Optional brute force protection, <code>null</code> by default.
+     */
+    public LoginThrottle getLoginThrottle() {
+        return loginThrottle;
+    }
+
+    /**
+     * Optional per-stage timings and outcome counters, <code>null</code> by
+     * default.
+     */
+    public AuthenticationStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Decorates the user details service to record the duration of the user
+     * load when the {@link #setStatistics(AuthenticationStatistics) statistics}
+     * are enabled.
+     */
+    @Override
+    protected UserDetailsService getUserDetailsService() {
+        UserDetailsService userDetailsService = super.getUserDetailsService();
+        AuthenticationStatistics stats = enabledStatistics();
+        if (stats == null || userDetailsService == null) {
+            return userDetailsService;
+        }
+        return new TimedUserDetailsService(userDetailsService, stats);
+    }
+
+    /**
+     * Optional cache of the recently verified credentials, <code>null</code>
+     * by default.
+     */
+    public VerifiedCredentialsCache getVerifiedCredentialsCache() {
+        return verifiedCredentialsCache;
+    }
+
+    /**
+     * Returns <code>true</code> if the given provider class or one of its
+     * superclasses below this class declares
+     * {@link #matchesOneAddress(String, List)}.
+     */
+    static boolean isPatternMatchingOverridden(Class<?> providerClass) {
+        for (Class<?> clazz = providerClass; clazz != ExtendedDaoAuthenticationProvider.class; clazz = clazz.getSuperclass()) {
+            try {
+                clazz.getDeclaredMethod("matchesOneAddress", String.class, List.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // look in the superclass
+            }
+        }
+        return false;
+    }
+
+    /**
+     * <code>true</code> (default) if the remote address is checked before the
+     * password.
+     */
+    public boolean isRemoteAddressCheckedBeforePassword() {
+        return remoteAddressCheckedBeforePassword;
+    }
+
+    /**
+     * Returns <code>true</code> if the given <code>ipAddress</code> belongs to
+     * one of the {@link ExtendedUser#getAllowedRemoteNetworks()} or matches one
+     * of the {@link ExtendedUser#getAllowedRemoteAddressesPatterns()}, or if
+     * the user has no allowed remote address at all. The network lookup, in a
+     * prefix trie, is done first: the regular expressions are only evaluated
+     * if the address is in none of the networks, merged in a single
+     * alternation by {@link AllowedRemoteAddresses#allows(String)} unless the
+     * patterns of the user have been replaced since its allow-list was set
+     * or a subclass overrides {@link #matchesOneAddress(String, List)}, which
+     * is then invoked with the patterns of the user as before. If a
+     * {@link #setDecisionCache(RemoteAddressDecisionCache) decision cache} is
+     * configured, the decisions taken with an interned allow-list are cached.
+     */
+    protected boolean matchesOneAddress(String ipAddress, ExtendedUser extendedUser) {
+        AllowedRemoteAddresses compiled = extendedUser.getCompiledAllowedRemoteAddresses();
+        List<Pattern> allowedIpAddresses = extendedUser.getAllowedRemoteAddressesPatterns();
+        if (!patternMatchingOverridden && compiled.getPatterns() == allowedIpAddresses) {
+            RemoteAddressDecisionCache cache = decisionCache;
+            if (cache == null || compiled.getVersion() == 0 || ipAddress == null) {
+                return compiled.allows(ipAddress);
+            }
+            Boolean decision = cache.get(extendedUser.getUsername(), compiled.getVersion(), ipAddress);
+            if (decision == null) {
+                decision = Boolean.valueOf(compiled.allows(ipAddress));
+                cache.put(extendedUser.getUsername(), compiled.getVersion(), ipAddress, decision.booleanValue());
+            }
+            return decision.booleanValue();
+        }
+        CidrTrie allowedNetworks = compiled.getNetworks();
+        if (allowedNetworks.isEmpty()) {
+            return matchesOneAddress(ipAddress, allowedIpAddresses);
+        }
+        return allowedNetworks.matches(ipAddress) || !allowedIpAddresses.isEmpty()
+                && matchesOneAddress(ipAddress, allowedIpAddresses);
+    }
+
     /**
      * Returns <code>true</code> if the given <code>ipAddress</code> matches one
      * of the given <code>allowedIpAddresses</code> or if the given
@@ -101,4 +386,86 @@ public class ExtendedDaoAuthenticationProvider extends DaoAuthenticationProvider
         return false;
     }
 
-}
\ No newline at end of file
+    /**
+     * Cheap checks, e.g. lookups in memory, run after the remote address check
+     * and before the password verification. Empty by default.
+     */
+    public void setChecksBeforePassword(List<AuthenticationCheck> checksBeforePassword) {
+        this.checksBeforePassword = checksBeforePassword;
+    }
+
+    public void setDecisionCache(RemoteAddressDecisionCache decisionCache) {
+        this.decisionCache = decisionCache;
+    }
+
+    public void setLoginThrottle(LoginThrottle loginThrottle) {
+        this.loginThrottle = loginThrottle;
+    }
+
+    /**
+     * <code>false</code> to check the remote address after the password, as
+     * before: the logins from a forbidden address then cost a password
+     * verification, but get an &quot;Access denied from IP&quot; message
+     * rather than the message of a wrong password. Defaults to
+     * <code>true</code>.
+     */
+    public void setRemoteAddressCheckedBeforePassword(boolean remoteAddressCheckedBeforePassword) {
+        this.remoteAddressCheckedBeforePassword = remoteAddressCheckedBeforePassword;
+    }
+
+    /**
+     * Opt-in per-stage timings and outcome counters of the authentications,
+     * switchable at runtime with {@link AuthenticationStatistics#setEnabled(boolean)}.
+     */
+    public void setStatistics(AuthenticationStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Opt-in cache of the recently verified credentials, for the clients
+     * sending their credentials on every request.
+     */
+    public void setVerifiedCredentialsCache(VerifiedCredentialsCache verifiedCredentialsCache) {
+        this.verifiedCredentialsCache = verifiedCredentialsCache;
+    }
+
+    private void timedCheckRemoteAddress(UserDetails userDetails, UsernamePasswordAuthenticationToken authentication,
+            boolean passwordVerified) throws AuthenticationException {
+        AuthenticationStatistics stats = enabledStatistics();
+        if (stats == null) {
+            checkRemoteAddress(userDetails, authentication, passwordVerified);
+            return;
+        }
+        long startInNanos = System.nanoTime();
+        try {
+            checkRemoteAddress(userDetails, authentication, passwordVerified);
+        } catch (AuthenticationException e) {
+            failureOutcome.set(Outcome.REMOTE_ADDRESS_DENIED);
+            throw e;
+        } finally {
+            stats.record(Stage.REMOTE_ADDRESS_CHECK, System.nanoTime() - startInNanos);
+        }
+    }
+
+    /**
+     * Verifies the presented password with the password encoder, unless the
+     * same password has recently been verified against the same encoded
+     * password of the user according to the
+     * {@link #setVerifiedCredentialsCache(VerifiedCredentialsCache) verified
+     * credentials cache}.
+     */
+    protected void verifyPassword(UserDetails userDetails, UsernamePasswordAuthenticationToken authentication)
+            throws AuthenticationException {
+        VerifiedCredentialsCache cache = verifiedCredentialsCache;
+        if (cache == null || authentication.getCredentials() == null) {
+            super.additionalAuthenticationChecks(userDetails, authentication);
+            return;
+        }
+        String presentedPassword = authentication.getCredentials().toString();
+        if (cache.contains(userDetails.getUsername(), userDetails.getPassword(), presentedPassword)) {
+            return;
+        }
+        super.additionalAuthenticationChecks(userDetails, authentication);
+        cache.put(userDetails.getUsername(), userDetails.getPassword(), presentedPassword);
+    }
+}
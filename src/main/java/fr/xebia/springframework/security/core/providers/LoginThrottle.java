@@ -0,0 +1,172 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.providers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Brute force protection of {@link ExtendedDaoAuthenticationProvider}: counts
+ * the failed logins per remote address and per username over a sliding
+ * window and rejects the login attempts of an address or a username with too
+ * many recent failures with a {@link LoginThrottledException}, before the user
+ * is loaded and its password verified.
+ * <p>
+ * The counters are lock-free and their number is bounded by
+ * <code>maxEntries</code> per key type: under an address spraying attack,
+ * the least failing keys are evicted first. A successful login resets the
+ * failures of its username but not of its address, which may be shared by
+ * many users behind a proxy.
+ * </p>
+ */
+public class LoginThrottle {
+
+    private final SlidingWindowCounters addressFailures;
+
+    private final int maxFailuresPerAddress;
+
+    private final int maxFailuresPerUsername;
+
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    private final SlidingWindowCounters usernameFailures;
+
+    private final long windowInMillis;
+
+    /**
+     * @param windowInMillis
+     *            length of the sliding window
+     * @param maxFailuresPerAddress
+     *            number of failed logins from a remote address within the
+     *            window after which its login attempts are rejected
+     * @param maxFailuresPerUsername
+     *            number of failed logins of a username within the window
+     *            after which its login attempts are rejected
+     * @param maxEntries
+     *            maximum number of remote addresses and of usernames tracked
+     */
+    public LoginThrottle(long windowInMillis, int maxFailuresPerAddress, int maxFailuresPerUsername, int maxEntries) {
+        super();
+        if (windowInMillis <= 0) {
+            throw new IllegalArgumentException("windowInMillis must be positive");
+        }
+        if (maxFailuresPerAddress <= 0 || maxFailuresPerUsername <= 0) {
+            throw new IllegalArgumentException("maxFailuresPerAddress and maxFailuresPerUsername must be positive");
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.windowInMillis = windowInMillis;
+        this.maxFailuresPerAddress = maxFailuresPerAddress;
+        this.maxFailuresPerUsername = maxFailuresPerUsername;
+        this.addressFailures = new SlidingWindowCounters(maxEntries, windowInMillis);
+        this.usernameFailures = new SlidingWindowCounters(maxEntries, windowInMillis);
+    }
+
+    /**
+     * Throws a {@link LoginThrottledException} if the given remote address or
+     * username has failed too many logins within the window.
+     *
+     * @param remoteAddress
+     *            <code>null</code> if unknown
+     */
+    public void checkAllowed(String username, String remoteAddress) throws LoginThrottledException {
+        checkAllowed(username, remoteAddress, System.currentTimeMillis());
+    }
+
+    void checkAllowed(String username, String remoteAddress, long nowInMillis) throws LoginThrottledException {
+        if (remoteAddress != null && addressFailures.count(remoteAddress, nowInMillis) >= maxFailuresPerAddress) {
+            throttledCount.incrementAndGet();
+            throw new LoginThrottledException("Too many failed logins from IP : " + remoteAddress);
+        }
+        if (usernameFailures.count(username, nowInMillis) >= maxFailuresPerUsername) {
+            throttledCount.incrementAndGet();
+            throw new LoginThrottledException("Too many failed logins, try again later");
+        }
+    }
+
+    /**
+     * Number of remote address counters evicted while still counting
+     * failures.
+     */
+    public long getEvictedAddressCount() {
+        return addressFailures.getEvictedCount();
+    }
+
+    /**
+     * Number of username counters evicted while still counting failures.
+     */
+    public long getEvictedUsernameCount() {
+        return usernameFailures.getEvictedCount();
+    }
+
+    public int getMaxFailuresPerAddress() {
+        return maxFailuresPerAddress;
+    }
+
+    public int getMaxFailuresPerUsername() {
+        return maxFailuresPerUsername;
+    }
+
+    /**
+     * Number of login attempts rejected by {@link #checkAllowed(String, String)}.
+     */
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    /**
+     * Number of remote addresses currently tracked.
+     */
+    public int getTrackedAddressCount() {
+        return addressFailures.getSize();
+    }
+
+    /**
+     * Number of usernames currently tracked.
+     */
+    public int getTrackedUsernameCount() {
+        return usernameFailures.getSize();
+    }
+
+    public long getWindowInMillis() {
+        return windowInMillis;
+    }
+
+    /**
+     * Counts a failed login of the given username from the given remote
+     * address.
+     *
+     * @param remoteAddress
+     *            <code>null</code> if unknown
+     */
+    public void recordFailure(String username, String remoteAddress) {
+        recordFailure(username, remoteAddress, System.currentTimeMillis());
+    }
+
+    void recordFailure(String username, String remoteAddress, long nowInMillis) {
+        if (remoteAddress != null) {
+            addressFailures.increment(remoteAddress, nowInMillis);
+        }
+        usernameFailures.increment(username, nowInMillis);
+    }
+
+    /**
+     * Forgets the failed logins of the given username.
+     */
+    public void recordSuccess(String username) {
+        usernameFailures.reset(username);
+    }
+}
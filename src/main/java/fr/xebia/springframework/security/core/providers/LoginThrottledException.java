@@ -0,0 +1,39 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.providers;
+
+import org.springframework.security.authentication.AccountStatusException;
+
+/**
+ * Thrown by {@link ExtendedDaoAuthenticationProvider} when a
+ * {@link LoginThrottle} rejects a login attempt, before the user is loaded
+ * and its password verified. As an {@link AccountStatusException}, like a
+ * {@link org.springframework.security.authentication.LockedException}, it
+ * stops the {@link org.springframework.security.authentication.ProviderManager}:
+ * the following providers do not load the user nor verify its password.
+ */
+public class LoginThrottledException extends AccountStatusException {
+
+    private static final long serialVersionUID = 1L;
+
+    public LoginThrottledException(String msg) {
+        super(msg);
+    }
+
+    public LoginThrottledException(String msg, Throwable t) {
+        super(msg, t);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.providers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.xebia.springframework.security.core.userdetails.AllowedRemoteAddresses;
+
+/**
+ * Bounded cache of the allow/deny decisions of
+ * {@link ExtendedDaoAuthenticationProvider} keyed by username,
+ * {@link AllowedRemoteAddresses#getVersion() allow-list version} and remote
+ * address.
+ * <p>
+ * As the version changes as soon as the allowed remote addresses of a user
+ * change, the decisions taken with the previous allow-list are never hit
+ * again: they are evicted as the least recently used entries. At most
+ * {@link #getMaxEntries()} decisions are kept, spread on
+ * {@value #STRIPE_COUNT} independently locked stripes, each a
+ * {@link LinkedHashMap} in access order.
+ * </p>
+ */
+public class RemoteAddressDecisionCache {
+
+    private static class Key {
+        private final int hash;
+
+        private final String remoteAddress;
+
+        private final String username;
+
+        private final long version;
+
+        Key(String username, long version, String remoteAddress) {
+            this.username = username;
+            this.version = version;
+            this.remoteAddress = remoteAddress;
+            this.hash = 31 * (31 * username.hashCode() + (int) (version ^ (version >>> 32))) + remoteAddress.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && version == other.version && username.equals(other.username)
+                    && remoteAddress.equals(other.remoteAddress);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    static final int STRIPE_COUNT = 16;
+
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final int maxEntries;
+
+    private final int maxEntriesPerStripe;
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final LinkedHashMap<Key, Boolean>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    public RemoteAddressDecisionCache(int maxEntries) {
+        super();
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxEntriesPerStripe = (maxEntries + STRIPE_COUNT - 1) / STRIPE_COUNT;
+        this.stripes = new LinkedHashMap[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new LinkedHashMap<Key, Boolean>(16, 0.75f, true);
+        }
+    }
+
+    /**
+     * Forgets all the decisions, the counters are not reset.
+     */
+    public void clear() {
+        for (LinkedHashMap<Key, Boolean> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the cached decision, <code>null</code> if none.
+     */
+    public Boolean get(String username, long version, String remoteAddress) {
+        Key key = new Key(username, version, remoteAddress);
+        LinkedHashMap<Key, Boolean> stripe = stripe(key);
+        Boolean decision;
+        synchronized (stripe) {
+            decision = stripe.get(key);
+        }
+        (decision == null ? missCount : hitCount).incrementAndGet();
+        return decision;
+    }
+
+    /**
+     * Number of decisions evicted to respect {@link #getMaxEntries()}.
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * Number of lookups which found a decision.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Number of lookups which found no decision.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Number of decisions currently cached.
+     */
+    public int getSize() {
+        int size = 0;
+        for (LinkedHashMap<Key, Boolean> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public void put(String username, long version, String remoteAddress, boolean decision) {
+        Key key = new Key(username, version, remoteAddress);
+        LinkedHashMap<Key, Boolean> stripe = stripe(key);
+        synchronized (stripe) {
+            if (stripe.put(key, Boolean.valueOf(decision)) == null && stripe.size() > maxEntriesPerStripe) {
+                Iterator<Key> eldest = stripe.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+                evictedCount.incrementAndGet();
+            }
+        }
+    }
+
+    private LinkedHashMap<Key, Boolean> stripe(Key key) {
+        return stripes[(key.hash ^ (key.hash >>> 16)) & (STRIPE_COUNT - 1)];
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[size=" + getSize() + ", maxEntries=" + maxEntries + ", hits=" + getHitCount()
+                + ", misses=" + getMissCount() + ", evictions=" + getEvictedCount() + "]";
+    }
+}
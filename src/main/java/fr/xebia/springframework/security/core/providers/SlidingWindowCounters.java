@@ -0,0 +1,226 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.providers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded table of lock-free sliding window counters, keyed by strings.
+ * <p>
+ * Each counter holds the number of events of the current and of the previous
+ * fixed window, packed in a single <code>long</code> updated by
+ * compare-and-set; the sliding count is the count of the current window plus
+ * the count of the previous window weighted by the part of the sliding window
+ * that overlaps it.
+ * </p>
+ * <p>
+ * The counters are stored in an open addressed array of slots, each slot
+ * replaced by compare-and-set: a key is looked up in {@value #PROBE_COUNT}
+ * consecutive slots. When they are all taken, a new key evicts the counter
+ * with the lowest sliding count, so that spraying many keys only evicts the
+ * counters of the keys seen as rarely; the memory never exceeds the number
+ * of slots. Two threads inserting the same key at the same time may create
+ * two counters, each of them getting part of the count.
+ * </p>
+ */
+class SlidingWindowCounters {
+
+    private static class Counter {
+        final String key;
+
+        /**
+         * Window index (32 bits), count of the current window (16 bits) and
+         * count of the previous window (16 bits).
+         */
+        final AtomicLong state;
+
+        Counter(String key, long window) {
+            this.key = key;
+            this.state = new AtomicLong(pack(window, 0, 0));
+        }
+    }
+
+    private static final int MAX_COUNT = 0xFFFF;
+
+    static final int PROBE_COUNT = 4;
+
+    private static int current(long state) {
+        return (int) (state >>> 16) & MAX_COUNT;
+    }
+
+    private static long pack(long window, int current, int previous) {
+        return (window << 32) | ((long) current << 16) | previous;
+    }
+
+    private static int previous(long state) {
+        return (int) state & MAX_COUNT;
+    }
+
+    /**
+     * Returns the state moved to the given window.
+     */
+    private static long roll(long state, long window) {
+        long stateWindow = state >>> 32;
+        if (stateWindow == window) {
+            return state;
+        }
+        return pack(window, 0, stateWindow + 1 == window ? current(state) : 0);
+    }
+
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    private final int mask;
+
+    private final AtomicReferenceArray<Counter> slots;
+
+    private final long windowInMillis;
+
+    /**
+     * @param maxEntries
+     *            maximum number of counters, rounded up to a power of two
+     */
+    SlidingWindowCounters(int maxEntries, long windowInMillis) {
+        super();
+        int capacity = Integer.highestOneBit(Math.max(PROBE_COUNT, maxEntries) - 1) << 1;
+        this.slots = new AtomicReferenceArray<Counter>(capacity);
+        this.mask = capacity - 1;
+        this.windowInMillis = windowInMillis;
+    }
+
+    /**
+     * Returns the sliding count of the given key at the given time, 0 if it
+     * has no counter.
+     */
+    int count(String key, long nowInMillis) {
+        Counter counter = find(key);
+        return counter == null ? 0 : count(counter, nowInMillis);
+    }
+
+    private int count(Counter counter, long nowInMillis) {
+        long state = roll(counter.state.get(), window(nowInMillis));
+        long elapsedInWindow = nowInMillis % windowInMillis;
+        return current(state) + (int) (previous(state) * (windowInMillis - elapsedInWindow) / windowInMillis);
+    }
+
+    private Counter find(String key) {
+        int hash = key.hashCode();
+        int first = (hash ^ (hash >>> 16)) & mask;
+        for (int i = 0; i < PROBE_COUNT; i++) {
+            Counter counter = slots.get((first + i) & mask);
+            if (counter != null && counter.key.equals(key)) {
+                return counter;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Number of counters of keys still counted that have been evicted by new
+     * keys.
+     */
+    long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * Number of slots, the maximum number of counters.
+     */
+    int getCapacity() {
+        return slots.length();
+    }
+
+    /**
+     * Number of counters currently allocated.
+     */
+    int getSize() {
+        int size = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Counts an event of the given key and returns its new sliding count.
+     */
+    int increment(String key, long nowInMillis) {
+        Counter counter = findOrInsert(key, nowInMillis);
+        long window = window(nowInMillis);
+        while (true) {
+            long state = counter.state.get();
+            long rolled = roll(state, window);
+            int current = current(rolled);
+            long next = current == MAX_COUNT ? rolled : pack(window, current + 1, previous(rolled));
+            if (counter.state.compareAndSet(state, next)) {
+                return count(counter, nowInMillis);
+            }
+        }
+    }
+
+    private Counter findOrInsert(String key, long nowInMillis) {
+        int hash = key.hashCode();
+        int first = (hash ^ (hash >>> 16)) & mask;
+        while (true) {
+            int victimSlot = -1;
+            Counter victim = null;
+            int victimCount = Integer.MAX_VALUE;
+            for (int i = 0; i < PROBE_COUNT; i++) {
+                int slot = (first + i) & mask;
+                Counter counter = slots.get(slot);
+                if (counter == null) {
+                    if (victimCount > -1) {
+                        victimSlot = slot;
+                        victim = null;
+                        victimCount = -1;
+                    }
+                } else if (counter.key.equals(key)) {
+                    return counter;
+                } else {
+                    int count = count(counter, nowInMillis);
+                    if (count < victimCount) {
+                        victimSlot = slot;
+                        victim = counter;
+                        victimCount = count;
+                    }
+                }
+            }
+            Counter counter = new Counter(key, window(nowInMillis));
+            if (slots.compareAndSet(victimSlot, victim, counter)) {
+                if (victimCount > 0) {
+                    evictedCount.incrementAndGet();
+                }
+                return counter;
+            }
+        }
+    }
+
+    /**
+     * Forgets the count of the given key.
+     */
+    void reset(String key) {
+        Counter counter = find(key);
+        if (counter != null) {
+            counter.state.set(pack(counter.state.get() >>> 32, 0, 0));
+        }
+    }
+
+    private long window(long nowInMillis) {
+        return (nowInMillis / windowInMillis) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.providers;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Short-lived cache of the credentials recently verified by
+ * {@link ExtendedDaoAuthenticationProvider}, so that the clients sending
+ * their credentials on every request (HTTP Basic) do not pay a password
+ * verification each time.
+ * <p>
+ * The presented password is never stored: an entry holds, per username, an
+ * HMAC-SHA256 of the username, of the encoded password of the user and of
+ * the presented password, with a random key generated by each cache. As the
+ * encoded password is part of the digest, a password changed elsewhere
+ * invalidates the entry as soon as the user is reloaded;
+ * {@link fr.xebia.springframework.security.core.userdetails.jdbc.ExtendedJdbcUserDetailsManager}
+ * also {@link #invalidate(String) invalidates} the entry of a user when it is
+ * updated or deleted or when its password is changed.
+ * </p>
+ * <p>
+ * The entries expire <code>ttlInMillis</code> after the verification. At
+ * most {@link #getMaxEntries()} entries are kept, spread on
+ * {@value #STRIPE_COUNT} independently locked stripes, each a
+ * {@link LinkedHashMap} in access order.
+ * </p>
+ */
+public class VerifiedCredentialsCache {
+
+    private static class Entry {
+        final byte[] digest;
+
+        final long expiresAtInNanos;
+
+        Entry(byte[] digest, long expiresAtInNanos) {
+            this.digest = digest;
+            this.expiresAtInNanos = expiresAtInNanos;
+        }
+    }
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    static final int STRIPE_COUNT = 16;
+
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final ThreadLocal<Mac> macs;
+
+    private final int maxEntries;
+
+    private final int maxEntriesPerStripe;
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final LinkedHashMap<String, Entry>[] stripes;
+
+    private final long ttlInNanos;
+
+    @SuppressWarnings("unchecked")
+    public VerifiedCredentialsCache(long ttlInMillis, int maxEntries) {
+        super();
+        if (ttlInMillis <= 0) {
+            throw new IllegalArgumentException("ttlInMillis must be positive");
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.ttlInNanos = TimeUnit.MILLISECONDS.toNanos(ttlInMillis);
+        this.maxEntries = maxEntries;
+        this.maxEntriesPerStripe = (maxEntries + STRIPE_COUNT - 1) / STRIPE_COUNT;
+        this.stripes = new LinkedHashMap[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        }
+
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        final SecretKeySpec secretKey = new SecretKeySpec(key, ALGORITHM);
+        this.macs = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                try {
+                    Mac mac = Mac.getInstance(ALGORITHM);
+                    mac.init(secretKey);
+                    return mac;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("Exception initializing " + ALGORITHM, e);
+                }
+            }
+        };
+        // fail fast if the algorithm is not available
+        macs.get();
+    }
+
+    /**
+     * Forgets all the verified credentials, the counters are not reset.
+     */
+    public void clear() {
+        for (LinkedHashMap<String, Entry> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the given presented password has been
+     * verified against the given encoded password of the given user less than
+     * <code>ttlInMillis</code> ago.
+     */
+    public boolean contains(String username, String encodedPassword, String presentedPassword) {
+        return contains(username, encodedPassword, presentedPassword, System.nanoTime());
+    }
+
+    boolean contains(String username, String encodedPassword, String presentedPassword, long nowInNanos) {
+        LinkedHashMap<String, Entry> stripe = stripe(username);
+        Entry entry;
+        synchronized (stripe) {
+            entry = stripe.get(username);
+            if (entry != null && entry.expiresAtInNanos - nowInNanos <= 0) {
+                stripe.remove(username);
+                entry = null;
+            }
+        }
+        boolean verified = entry != null && MessageDigest.isEqual(entry.digest, digest(username, encodedPassword, presentedPassword));
+        (verified ? hitCount : missCount).incrementAndGet();
+        return verified;
+    }
+
+    private byte[] digest(String username, String encodedPassword, String presentedPassword) {
+        Mac mac = macs.get();
+        try {
+            mac.update(username.getBytes("UTF-8"));
+            mac.update((byte) 0);
+            mac.update(String.valueOf(encodedPassword).getBytes("UTF-8"));
+            mac.update((byte) 0);
+            return mac.doFinal(presentedPassword.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Number of entries evicted to respect {@link #getMaxEntries()}.
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * Number of lookups which found verified credentials.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Number of lookups which found no verified credentials, expired ones or
+     * different ones.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Number of entries currently cached, including the expired ones not yet
+     * looked up.
+     */
+    public int getSize() {
+        int size = 0;
+        for (LinkedHashMap<String, Entry> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public long getTtlInMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ttlInNanos);
+    }
+
+    /**
+     * Forgets the verified credentials of the given user.
+     */
+    public void invalidate(String username) {
+        LinkedHashMap<String, Entry> stripe = stripe(username);
+        synchronized (stripe) {
+            stripe.remove(username);
+        }
+    }
+
+    /**
+     * Records that the given presented password has just been verified
+     * against the given encoded password of the given user.
+     */
+    public void put(String username, String encodedPassword, String presentedPassword) {
+        put(username, encodedPassword, presentedPassword, System.nanoTime());
+    }
+
+    void put(String username, String encodedPassword, String presentedPassword, long nowInNanos) {
+        Entry entry = new Entry(digest(username, encodedPassword, presentedPassword), nowInNanos + ttlInNanos);
+        LinkedHashMap<String, Entry> stripe = stripe(username);
+        synchronized (stripe) {
+            if (stripe.put(username, entry) == null && stripe.size() > maxEntriesPerStripe) {
+                Iterator<String> eldest = stripe.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+                evictedCount.incrementAndGet();
+            }
+        }
+    }
+
+    private LinkedHashMap<String, Entry> stripe(String username) {
+        int hash = username.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1)];
+    }
+}
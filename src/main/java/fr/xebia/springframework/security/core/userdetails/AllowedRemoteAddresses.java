@@ -0,0 +1,340 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.userdetails;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.springframework.util.StringUtils;
+
+/**
+ * Compiled allow-list of remote addresses of an {@link ExtendedUser}: the
+ * networks in CIDR notation and the regular expressions.
+ * <p>
+ * The allow-lists compiled by {@link #compile(String)} are immutable and
+ * interned: all the users with the same allow-list share the same instance,
+ * and the users whose allow-lists have entries in common share the same
+ * {@link Pattern}s. Reloading a user does not compile anything. The intern
+ * tables only hold weak references, an allow-list no longer referenced by
+ * any user is garbage collected.
+ * </p>
+ */
+public final class AllowedRemoteAddresses implements Serializable {
+
+    /**
+     * No allowed remote address: all the remote addresses are allowed.
+     */
+    public static final AllowedRemoteAddresses NONE = new AllowedRemoteAddresses(null, "", Collections.<Pattern> emptyList(),
+            CidrTrie.EMPTY, false);
+
+    private static final AtomicLong compiledCount = new AtomicLong();
+
+    private static final Map<String, WeakReference<AllowedRemoteAddresses>> internedAllowLists = new WeakHashMap<String, WeakReference<AllowedRemoteAddresses>>();
+
+    private static final Map<String, WeakReference<Pattern>> internedPatterns = new WeakHashMap<String, WeakReference<Pattern>>();
+
+    private static final long serialVersionUID = 1L;
+
+    private static final AtomicLong versionSequence = new AtomicLong();
+
+    /**
+     * Returns the interned compiled form of the given comma or semicolon
+     * separated allowed remote addresses.
+     *
+     * @throws PatternSyntaxException
+     *             if an entry is neither a network in CIDR notation nor a
+     *             valid regular expression
+     */
+    public static AllowedRemoteAddresses compile(String allowedRemoteAddresses) throws PatternSyntaxException {
+        if (!StringUtils.hasLength(allowedRemoteAddresses)) {
+            return NONE;
+        }
+        synchronized (internedAllowLists) {
+            WeakReference<AllowedRemoteAddresses> reference = internedAllowLists.get(allowedRemoteAddresses);
+            AllowedRemoteAddresses interned = reference == null ? null : reference.get();
+            if (interned != null) {
+                return interned;
+            }
+        }
+
+        String[] entries = StringUtils.commaDelimitedListToStringArray(StringUtils.replace(allowedRemoteAddresses, ";", ","));
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = StringUtils.trimWhitespace(entries[i]);
+        }
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        List<String> cidrs = new ArrayList<String>();
+        for (String entry : entries) {
+            if (CidrTrie.isCidr(entry)) {
+                cidrs.add(entry);
+            } else {
+                patterns.add(internPattern(entry));
+            }
+        }
+        AllowedRemoteAddresses compiled = new AllowedRemoteAddresses(allowedRemoteAddresses,
+                StringUtils.arrayToCommaDelimitedString(entries), Collections.unmodifiableList(patterns), CidrTrie.compile(cidrs), true);
+
+        synchronized (internedAllowLists) {
+            // another thread may have compiled the same allow-list meanwhile
+            WeakReference<AllowedRemoteAddresses> reference = internedAllowLists.get(allowedRemoteAddresses);
+            AllowedRemoteAddresses interned = reference == null ? null : reference.get();
+            if (interned != null) {
+                return interned;
+            }
+            compiledCount.incrementAndGet();
+            internedAllowLists.put(compiled.source, new WeakReference<AllowedRemoteAddresses>(compiled));
+            return compiled;
+        }
+    }
+
+    /**
+     * Number of allow-lists compiled since startup, the interned ones are not
+     * counted again.
+     */
+    public static long getCompiledCount() {
+        return compiledCount.get();
+    }
+
+    /**
+     * Number of allow-lists currently interned.
+     */
+    public static int getInternedCount() {
+        synchronized (internedAllowLists) {
+            int count = 0;
+            for (WeakReference<AllowedRemoteAddresses> reference : internedAllowLists.values()) {
+                if (reference.get() != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private static Pattern internPattern(String regex) throws PatternSyntaxException {
+        synchronized (internedPatterns) {
+            WeakReference<Pattern> reference = internedPatterns.get(regex);
+            Pattern pattern = reference == null ? null : reference.get();
+            if (pattern == null) {
+                pattern = Pattern.compile(regex);
+                // the pattern holds its regex, the key of the entry
+                internedPatterns.put(pattern.pattern(), new WeakReference<Pattern>(pattern));
+            }
+            return pattern;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the given pattern can be an alternative of
+     * a merged pattern with the same semantics: no flag, no quotation that
+     * could swallow the next alternatives, no back reference or named group
+     * whose numbering or name could clash, no comments mode.
+     */
+    static boolean isMergeable(Pattern pattern) {
+        String regex = pattern.pattern();
+        if (pattern.flags() != 0 && Pattern.compile(regex).flags() != pattern.flags()) {
+            // compiled with flags, the leading embedded flags are also reported
+            return false;
+        }
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length()) {
+                char escaped = regex.charAt(++i);
+                if (escaped == 'Q' || escaped == 'k' || escaped >= '0' && escaped <= '9') {
+                    return false;
+                }
+            } else if (c == '(' && i + 2 < regex.length() && regex.charAt(i + 1) == '?') {
+                char next = regex.charAt(i + 2);
+                if (next == '<' && i + 3 < regex.length() && Character.isLetter(regex.charAt(i + 3))) {
+                    // named group
+                    return false;
+                }
+                for (int j = i + 2; j < regex.length() && (Character.isLetter(regex.charAt(j)) || regex.charAt(j) == '-'); j++) {
+                    if (regex.charAt(j) == 'x') {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merges the mergeable patterns in a single alternation, the other ones
+     * are added to <code>unmerged</code>. Returns <code>null</code> if there
+     * are less than two mergeable patterns.
+     */
+    static Pattern merge(List<Pattern> patterns, List<Pattern> unmerged) {
+        List<Pattern> mergeable = new ArrayList<Pattern>();
+        for (Pattern pattern : patterns) {
+            (isMergeable(pattern) ? mergeable : unmerged).add(pattern);
+        }
+        if (mergeable.size() < 2) {
+            unmerged.addAll(mergeable);
+            return null;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (Pattern pattern : mergeable) {
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append("(?:").append(pattern.pattern()).append(')');
+        }
+        try {
+            return Pattern.compile(regex.toString());
+        } catch (PatternSyntaxException e) {
+            unmerged.addAll(mergeable);
+            return null;
+        }
+    }
+
+    /**
+     * Returns a non interned allow-list of the given regular expressions. The
+     * given list is not copied: its patterns are evaluated one after the
+     * other.
+     */
+    public static AllowedRemoteAddresses of(List<Pattern> patterns) {
+        return new AllowedRemoteAddresses(null, StringUtils.collectionToCommaDelimitedString(patterns), patterns, CidrTrie.EMPTY,
+                false);
+    }
+
+    private final String entries;
+
+    /**
+     * Alternation of the mergeable patterns, <code>null</code> if not merged.
+     */
+    private final Pattern mergedPattern;
+
+    private final CidrTrie networks;
+
+    private final List<Pattern> patterns;
+
+    /**
+     * The string given to {@link #compile(String)}, key of the intern table;
+     * <code>null</code> if not interned.
+     */
+    private final String source;
+
+    /**
+     * The patterns evaluated one after the other.
+     */
+    private final List<Pattern> unmergedPatterns;
+
+    /**
+     * Unique version of an interned allow-list, 0 if not interned.
+     */
+    private final long version;
+
+    private AllowedRemoteAddresses(String source, String entries, List<Pattern> patterns, CidrTrie networks, boolean merge) {
+        super();
+        this.source = source;
+        this.entries = entries;
+        this.patterns = patterns;
+        this.networks = networks;
+        this.version = merge ? versionSequence.incrementAndGet() : 0;
+        if (merge) {
+            List<Pattern> unmerged = new ArrayList<Pattern>();
+            this.mergedPattern = merge(patterns, unmerged);
+            this.unmergedPatterns = unmerged.isEmpty() ? Collections.<Pattern> emptyList() : unmerged;
+        } else {
+            this.mergedPattern = null;
+            this.unmergedPatterns = patterns;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the given remote address belongs to one of
+     * the networks or matches one of the regular expressions, or if the
+     * allow-list is empty. The regular expressions of an interned allow-list
+     * are merged in a single alternation <code>(?:p1)|(?:p2)|...</code>
+     * evaluated in one call, with the same result as evaluating them one
+     * after the other.
+     */
+    public boolean allows(String remoteAddress) {
+        if (isEmpty()) {
+            return true;
+        }
+        if (networks.matches(remoteAddress)) {
+            return true;
+        }
+        if (mergedPattern != null && mergedPattern.matcher(remoteAddress).matches()) {
+            return true;
+        }
+        for (Pattern pattern : unmergedPatterns) {
+            if (pattern.matcher(remoteAddress).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The entries in CIDR notation.
+     */
+    public CidrTrie getNetworks() {
+        return networks;
+    }
+
+    /**
+     * The entries compiled as regular expressions.
+     */
+    public List<Pattern> getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * Unique version of this allow-list, distinct from the version of any
+     * other allow-list compiled by this JVM; 0 if not interned, that is to
+     * say if the patterns of this allow-list may be changed. As interned
+     * allow-lists are immutable, a decision taken for an address and a
+     * version remains valid for as long as this version is used.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns <code>true</code> if there is no allowed remote address, that is
+     * to say if all the remote addresses are allowed.
+     */
+    public boolean isEmpty() {
+        return patterns.isEmpty() && networks.isEmpty();
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+        if (source == null) {
+            return isEmpty() && entries.length() == 0 ? NONE : this;
+        }
+        return compile(source);
+    }
+
+    /**
+     * The comma separated entries, in their original order. The patterns of
+     * an allow-list that is not interned are read on each invocation as their
+     * list may have been changed.
+     */
+    @Override
+    public String toString() {
+        return source == null ? StringUtils.collectionToCommaDelimitedString(patterns) : entries;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.userdetails;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Binary prefix trie of IPv4 and IPv6 networks in CIDR notation (
+ * <code>10.0.0.0/8</code>, <code>2001:db8::/32</code>). An address is matched
+ * in at most 32 or 128 steps whatever the number of networks, without any
+ * DNS lookup: only address literals are parsed. IPv4-mapped IPv6 addresses (
+ * <code>::ffff:10.0.0.1</code>) also match the IPv4 networks.
+ * <p>
+ * Immutable and thread safe.
+ * </p>
+ */
+public final class CidrTrie implements Serializable {
+
+    /**
+     * Nodes of one address family: the children of the node <code>n</code>
+     * are at <code>2n</code> (bit 0) and <code>2n + 1</code> (bit 1), 0 for
+     * none as the root is never a child.
+     */
+    private static final class Nodes implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        int[] children = new int[2];
+
+        int count = 1;
+
+        boolean[] terminals = new boolean[1];
+
+        void add(byte[] address, int prefixLength) {
+            int node = 0;
+            for (int bit = 0; bit < prefixLength; bit++) {
+                if (terminals[node]) {
+                    // already covered by a shorter prefix
+                    return;
+                }
+                int slot = 2 * node + bitAt(address, bit);
+                if (children[slot] == 0) {
+                    if (count == terminals.length) {
+                        terminals = Arrays.copyOf(terminals, count * 2);
+                        children = Arrays.copyOf(children, count * 4);
+                    }
+                    children[slot] = count++;
+                }
+                node = children[slot];
+            }
+            terminals[node] = true;
+        }
+
+        boolean matches(byte[] address, int offset, int bitCount) {
+            int node = 0;
+            for (int bit = 0; bit < bitCount; bit++) {
+                if (terminals[node]) {
+                    return true;
+                }
+                node = children[2 * node + bitAt(address, offset * 8 + bit)];
+                if (node == 0) {
+                    return false;
+                }
+            }
+            return terminals[node];
+        }
+
+        void trim() {
+            terminals = Arrays.copyOf(terminals, count);
+            children = Arrays.copyOf(children, count * 2);
+        }
+    }
+
+    public static final CidrTrie EMPTY = new CidrTrie(Collections.<String> emptyList(), new Nodes(), new Nodes());
+
+    private static final long serialVersionUID = 1L;
+
+    private static int bitAt(byte[] address, int bit) {
+        return (address[bit >>> 3] >>> (7 - (bit & 7))) & 1;
+    }
+
+    /**
+     * Compiles the given networks.
+     *
+     * @throws IllegalArgumentException
+     *             if one of the networks is not in CIDR notation
+     */
+    public static CidrTrie compile(Collection<String> cidrs) throws IllegalArgumentException {
+        if (cidrs.isEmpty()) {
+            return EMPTY;
+        }
+        Nodes ipv4 = new Nodes();
+        Nodes ipv6 = new Nodes();
+        for (String cidr : cidrs) {
+            int slash = cidr.indexOf('/');
+            byte[] address = slash == -1 ? null : parseAddress(cidr.substring(0, slash));
+            int prefixLength = address == null ? -1 : parsePrefixLength(cidr.substring(slash + 1), address.length * 8);
+            if (prefixLength == -1) {
+                throw new IllegalArgumentException("Invalid CIDR network '" + cidr + "'");
+            }
+            (address.length == 4 ? ipv4 : ipv6).add(address, prefixLength);
+        }
+        ipv4.trim();
+        ipv6.trim();
+        return new CidrTrie(new ArrayList<String>(cidrs), ipv4, ipv6);
+    }
+
+    /**
+     * Returns <code>true</code> if the given allowed address is a valid
+     * network in CIDR notation rather than a regular expression.
+     */
+    public static boolean isCidr(String allowedRemoteAddress) {
+        int slash = allowedRemoteAddress.indexOf('/');
+        if (slash == -1) {
+            return false;
+        }
+        byte[] address = parseAddress(allowedRemoteAddress.substring(0, slash));
+        return address != null && parsePrefixLength(allowedRemoteAddress.substring(slash + 1), address.length * 8) != -1;
+    }
+
+    /**
+     * Parses an IPv4 or IPv6 address literal, returns <code>null</code> if the
+     * given string is not an address literal.
+     */
+    static byte[] parseAddress(String address) {
+        if (address.indexOf(':') == -1) {
+            byte[] bytes = new byte[4];
+            return parseIpv4(address, 0, address.length(), bytes, 0) ? bytes : null;
+        }
+        int end = address.indexOf('%');
+        return parseIpv6(address, end == -1 ? address.length() : end);
+    }
+
+    private static int parsePrefixLength(String prefixLength, int maxPrefixLength) {
+        if (prefixLength.length() == 0 || prefixLength.length() > 3) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < prefixLength.length(); i++) {
+            char c = prefixLength.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value <= maxPrefixLength ? value : -1;
+    }
+
+    private static boolean parseIpv4(String address, int start, int end, byte[] bytes, int offset) {
+        int part = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = start; i <= end; i++) {
+            char c = i == end ? '.' : address.charAt(i);
+            if (c == '.') {
+                if (digits == 0 || part == 4) {
+                    return false;
+                }
+                bytes[offset + part++] = (byte) value;
+                value = 0;
+                digits = 0;
+            } else if (c >= '0' && c <= '9' && digits < 3) {
+                value = value * 10 + (c - '0');
+                digits++;
+                if (value > 255) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        return part == 4;
+    }
+
+    private static byte[] parseIpv6(String address, int end) {
+        byte[] bytes = new byte[16];
+        int length = 0;
+        int compression = -1;
+        int i = 0;
+        if (address.startsWith("::")) {
+            compression = 0;
+            i = 2;
+            if (i == end) {
+                return bytes;
+            }
+        }
+        while (i < end) {
+            int groupEnd = address.indexOf(':', i);
+            if (groupEnd == -1 || groupEnd > end) {
+                groupEnd = end;
+            }
+            if (groupEnd == end && address.indexOf('.', i) != -1 && address.indexOf('.', i) < end) {
+                // embedded IPv4 address
+                if (length > 12 || !parseIpv4(address, i, end, bytes, length)) {
+                    return null;
+                }
+                length += 4;
+                break;
+            }
+            int digits = groupEnd - i;
+            if (digits == 0 || digits > 4 || length == 16) {
+                return null;
+            }
+            int value = 0;
+            for (int j = i; j < groupEnd; j++) {
+                int digit = Character.digit(address.charAt(j), 16);
+                if (digit == -1) {
+                    return null;
+                }
+                value = (value << 4) | digit;
+            }
+            bytes[length++] = (byte) (value >>> 8);
+            bytes[length++] = (byte) value;
+            if (groupEnd == end) {
+                break;
+            }
+            i = groupEnd + 1;
+            if (i < end && address.charAt(i) == ':') {
+                if (compression != -1) {
+                    return null;
+                }
+                compression = length;
+                i++;
+                if (i == end) {
+                    break;
+                }
+            } else if (i == end) {
+                // trailing single colon
+                return null;
+            }
+        }
+        if (compression == -1) {
+            return length == 16 ? bytes : null;
+        }
+        if (length == 16) {
+            return null;
+        }
+        int shift = 16 - length;
+        System.arraycopy(bytes, compression, bytes, compression + shift, length - compression);
+        Arrays.fill(bytes, compression, compression + shift, (byte) 0);
+        return bytes;
+    }
+
+    private final List<String> cidrs;
+
+    private final Nodes ipv4;
+
+    private final Nodes ipv6;
+
+    private CidrTrie(List<String> cidrs, Nodes ipv4, Nodes ipv6) {
+        super();
+        this.cidrs = Collections.unmodifiableList(cidrs);
+        this.ipv4 = ipv4;
+        this.ipv6 = ipv6;
+    }
+
+    /**
+     * The compiled networks, as written.
+     */
+    public List<String> getCidrs() {
+        return cidrs;
+    }
+
+    public boolean isEmpty() {
+        return cidrs.isEmpty();
+    }
+
+    /**
+     * Returns <code>true</code> if the given address (4 or 16 bytes) belongs
+     * to one of the networks.
+     */
+    public boolean matches(byte[] address) {
+        if (address.length == 4) {
+            return ipv4.matches(address, 0, 32);
+        }
+        if (ipv6.matches(address, 0, 128)) {
+            return true;
+        }
+        // IPv4-mapped IPv6 address
+        for (int i = 0; i < 10; i++) {
+            if (address[i] != 0) {
+                return false;
+            }
+        }
+        return address[10] == (byte) 0xff && address[11] == (byte) 0xff && ipv4.matches(address, 12, 32);
+    }
+
+    /**
+     * Returns <code>true</code> if the given address literal belongs to one of
+     * the networks, <code>false</code> if it does not or if it is not an
+     * address literal.
+     */
+    public boolean matches(String address) {
+        if (isEmpty() || address == null) {
+            return false;
+        }
+        byte[] bytes = parseAddress(address);
+        return bytes != null && matches(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return cidrs.toString();
+    }
+}
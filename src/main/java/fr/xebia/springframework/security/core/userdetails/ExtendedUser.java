@@ -20,6 +20,8 @@ import org.springframework.security.core.userdetails.User;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.util.StringUtils;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -28,6 +30,12 @@ import java.util.regex.PatternSyntaxException;
 
 /**
  * Extension of {@link org.springframework.security.core.userdetails.User} to add a list of allowed remote ip adresses.
+ * <p>
+ * The allowed remote addresses are either networks in CIDR notation (<code>10.0.0.0/8</code>, <code>2001:db8::/32</code>),
+ * compiled in a {@link CidrTrie}, or regular expressions matched against the whole remote address
+ * (<code>10\.0\..*</code>). They are compiled once and shared by all the users with the same allow-list, see
+ * {@link AllowedRemoteAddresses}.
+ * </p>
  *
  * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
  */
@@ -39,6 +47,8 @@ public class ExtendedUser extends User implements UserDetails {
 
     protected String comments;
 
+    protected AllowedRemoteAddresses compiledAllowedRemoteAddresses = AllowedRemoteAddresses.NONE;
+
     public ExtendedUser(String username, String password, boolean enabled, boolean accountNonExpired, boolean credentialsNonExpired,
             boolean accountNonLocked, Collection<GrantedAuthority> authorities) throws IllegalArgumentException {
         super(username, password, enabled, accountNonExpired, credentialsNonExpired, accountNonLocked, authorities);
@@ -58,17 +68,50 @@ public class ExtendedUser extends User implements UserDetails {
     }
 
     public String getAllowedRemoteAddresses() {
-        return StringUtils.collectionToCommaDelimitedString(allowedRemoteAddresses);
+        if (allowedRemoteAddresses == compiledAllowedRemoteAddresses.getPatterns()) {
+            return compiledAllowedRemoteAddresses.toString();
+        }
+        // the patterns have been replaced or added since the allow-list was compiled
+        List<Object> all = new ArrayList<Object>(compiledAllowedRemoteAddresses.getNetworks().getCidrs());
+        all.addAll(allowedRemoteAddresses);
+        return StringUtils.collectionToCommaDelimitedString(all);
     }
 
+    /**
+     * The allowed remote addresses given as regular expressions.
+     * <p>
+     * After {@link #setAllowedRemoteAddresses(String)}, this list is shared
+     * with the other users with the same allow-list and is read only: unlike
+     * in the previous versions, {@link List#add(Object)} throws an
+     * {@link UnsupportedOperationException}. To add patterns, give a mutable
+     * copy to {@link #setAllowedRemoteAddresses(List)}. The lists of the users
+     * created with a constructor and the lists given to
+     * {@link #setAllowedRemoteAddresses(List)} remain mutable.
+     * </p>
+     */
     public List<Pattern> getAllowedRemoteAddressesPatterns() {
         return allowedRemoteAddresses;
     }
 
+    /**
+     * The allowed remote addresses given in CIDR notation.
+     */
+    public CidrTrie getAllowedRemoteNetworks() {
+        return compiledAllowedRemoteAddresses.getNetworks();
+    }
+
     public String getComments() {
         return comments;
     }
 
+    /**
+     * The compiled allowed remote addresses, the same instance for all the
+     * users with the same allow-list.
+     */
+    public AllowedRemoteAddresses getCompiledAllowedRemoteAddresses() {
+        return compiledAllowedRemoteAddresses;
+    }
+
     /**
      * Override for FindBugs EQ_DOESNT_OVERRIDE_EQUALS
      */
@@ -77,27 +120,40 @@ public class ExtendedUser extends User implements UserDetails {
         return super.hashCode();
     }
 
+    /**
+     * Compiles the allowed remote addresses of users serialized without them.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (compiledAllowedRemoteAddresses == null) {
+            // serialized before the allowed remote addresses were compiled
+            compiledAllowedRemoteAddresses = AllowedRemoteAddresses.of(allowedRemoteAddresses);
+        }
+        // the compiled allow-list has been resolved to the interned one
+        allowedRemoteAddresses = compiledAllowedRemoteAddresses.getPatterns();
+    }
+
+    /**
+     * Replaces the allowed remote addresses by the given regular expressions.
+     */
     public void setAllowedRemoteAddresses(List<Pattern> allowedRemoteAddresses) {
+        this.compiledAllowedRemoteAddresses = AllowedRemoteAddresses.of(allowedRemoteAddresses);
         this.allowedRemoteAddresses = allowedRemoteAddresses;
     }
 
+    /**
+     * Compiles the given comma or semicolon separated allowed remote
+     * addresses, or reuses their compiled form if another user has the same
+     * allow-list.
+     */
     public void setAllowedRemoteAddresses(String allowedRemoteAddresses) {
-        allowedRemoteAddresses = StringUtils.replace(allowedRemoteAddresses, ";", ",");
-
-        String[] allowedRemoteAddressesAsArray = StringUtils.commaDelimitedListToStringArray(allowedRemoteAddresses);
-
-        List<Pattern> newAllowedRemoteAddresses = new ArrayList<Pattern>();
-        for (String allowedRemoteAddress : allowedRemoteAddressesAsArray) {
-            allowedRemoteAddress = StringUtils.trimWhitespace(allowedRemoteAddress);
-            try {
-                newAllowedRemoteAddresses.add(Pattern.compile(allowedRemoteAddress));
-            } catch (PatternSyntaxException e) {
-                throw new RuntimeException("Exception parsing allowedRemoteAddress '" + allowedRemoteAddress + "' for user '"
-                        + this.getUsername() + "'", e);
-            }
+        try {
+            this.compiledAllowedRemoteAddresses = AllowedRemoteAddresses.compile(allowedRemoteAddresses);
+        } catch (PatternSyntaxException e) {
+            throw new RuntimeException("Exception parsing allowedRemoteAddress '" + e.getPattern() + "' for user '"
+                    + this.getUsername() + "'", e);
         }
-
-        this.allowedRemoteAddresses = newAllowedRemoteAddresses;
+        this.allowedRemoteAddresses = compiledAllowedRemoteAddresses.getPatterns();
     }
 
     public void setComments(String comments) {
@@ -106,6 +162,6 @@ public class ExtendedUser extends User implements UserDetails {
 
     @Override
     public String toString() {
-        return super.toString() + "; allowedRemoteAddresses: " + this.allowedRemoteAddresses;
+        return super.toString() + "; allowedRemoteAddresses: " + this.compiledAllowedRemoteAddresses;
     }
-}
\ No newline at end of file
+}
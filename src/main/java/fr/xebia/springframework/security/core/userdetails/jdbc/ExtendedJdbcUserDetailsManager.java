@@ -15,12 +15,19 @@
  */
 package fr.xebia.springframework.security.core.userdetails.jdbc;
 
+import fr.xebia.springframework.security.core.providers.AuthenticationStatistics;
+import fr.xebia.springframework.security.core.providers.VerifiedCredentialsCache;
 import fr.xebia.springframework.security.core.userdetails.ExtendedUser;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.core.userdetails.User;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
@@ -30,24 +37,110 @@ import org.springframework.security.provisioning.UserDetailsManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Extension of the {@link org.springframework.security.provisioning.JdbcUserDetailsManager} to add the '
  * <code>allowedRemoteAddresses</code>' (<code>varchar</code>) and '
  * <code>comments</code>' (<code>varchar</code>) columns in the '
  * <code>users</code>' table.
+ * <p>
+ * By default, a user is loaded as by the {@link org.springframework.security.core.userdetails.jdbc.JdbcDaoImpl}
+ * followed by the query of the extra columns: three round trips to the
+ * database, four with the groups. With {@link #setLoadUserInSingleQuery(boolean)},
+ * the user, its extra columns and its authorities are loaded by the single
+ * {@link #setSelectUserWithAuthoritiesAndExtraColumns(String)} query; only the
+ * group authorities, if enabled, still need a query of their own.
+ * </p>
  *
  * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
  */
 public class ExtendedJdbcUserDetailsManager extends JdbcUserDetailsManager implements UserDetailsManager {
 
+    /**
+     * User loaded by the {@link #setSelectUserWithAuthoritiesAndExtraColumns(String)}
+     * query, before its group and custom authorities are added.
+     */
+    private static class UserWithAuthorities {
+        String allowedRemoteAddresses;
+
+        final Set<GrantedAuthority> authorities = new HashSet<GrantedAuthority>();
+
+        String comments;
+
+        boolean enabled;
+
+        String password;
+
+        String username;
+    }
+
+    /**
+     * Reads the core columns, the extra columns and the authority of the rows
+     * of the {@link #setSelectUserWithAuthoritiesAndExtraColumns(String)}
+     * query. No other query runs while the result set is open.
+     */
+    private class UserWithAuthoritiesExtractor implements ResultSetExtractor<UserWithAuthorities> {
+
+        public UserWithAuthorities extractData(ResultSet rs) throws SQLException, DataAccessException {
+            if (!rs.next()) {
+                return null;
+            }
+            UserWithAuthorities user = new UserWithAuthorities();
+            user.username = rs.getString(1);
+            user.password = rs.getString(2);
+            user.enabled = rs.getBoolean(3);
+            user.allowedRemoteAddresses = rs.getString(4);
+            user.comments = rs.getString(5);
+
+            boolean enableAuthorities = getEnableAuthorities();
+            String rolePrefix = getRolePrefix();
+            do {
+                String authority = rs.getString(6);
+                if (enableAuthorities && authority != null) {
+                    user.authorities.add(new SimpleGrantedAuthority(rolePrefix + authority));
+                }
+            } while (rs.next());
+            return user;
+        }
+    }
+
+    private boolean loadUserInSingleQuery;
+
     protected final Log log = LogFactory.getLog(getClass());
 
     private String selectUserExtraColumns = "SELECT allowedRemoteAddresses, comments FROM users WHERE username = ?";
 
+    private String selectUserWithAuthoritiesAndExtraColumns = "SELECT u.username, u.password, u.enabled, "
+            + "u.allowedRemoteAddresses, u.comments, a.authority "
+            + "FROM users u LEFT OUTER JOIN authorities a ON a.username = u.username WHERE u.username = ?";
+
+    private AuthenticationStatistics statistics;
+
     private String updateUserExtraColumns = "UPDATE users set allowedRemoteAddresses= ?, comments= ? WHERE username = ?";
 
+    private VerifiedCredentialsCache verifiedCredentialsCache;
+
+    /**
+     * Invalidates the verified credentials of the current user in addition to
+     * the behavior of
+     * {@link org.springframework.security.provisioning.JdbcUserDetailsManager#changePassword(String, String)}.
+     */
+    @Override
+    public void changePassword(String oldPassword, String newPassword) {
+        Authentication currentUser = SecurityContextHolder.getContext().getAuthentication();
+        try {
+            super.changePassword(oldPassword, newPassword);
+        } finally {
+            if (currentUser != null) {
+                invalidateVerifiedCredentials(currentUser.getName());
+            }
+        }
+    }
+
     /**
      * Update {@link fr.xebia.springframework.security.core.userdetails.ExtendedUser} extra columns in addition to the behavior of
      * {@link org.springframework.security.provisioning.JdbcUserDetailsManager#createUser(org.springframework.security.core.userdetails.UserDetails).}
@@ -58,8 +151,26 @@ public class ExtendedJdbcUserDetailsManager extends JdbcUserDetailsManager imple
         updateUserExtraColumns(user);
     }
 
+    /**
+     * Loads the extra columns of the user, recording the duration of the query
+     * if the {@link #setStatistics(AuthenticationStatistics) statistics} are
+     * enabled.
+     */
     @Override
     protected UserDetails createUserDetails(String username, UserDetails userFromUserQuery, List<GrantedAuthority> combinedAuthorities) {
+        AuthenticationStatistics stats = statistics;
+        if (stats == null || !stats.isEnabled()) {
+            return createExtendedUser(username, userFromUserQuery, combinedAuthorities);
+        }
+        long startInNanos = System.nanoTime();
+        try {
+            return createExtendedUser(username, userFromUserQuery, combinedAuthorities);
+        } finally {
+            stats.record(AuthenticationStatistics.Stage.EXTRA_COLUMNS_QUERY, System.nanoTime() - startInNanos);
+        }
+    }
+
+    private UserDetails createExtendedUser(String username, UserDetails userFromUserQuery, List<GrantedAuthority> combinedAuthorities) {
         final User user = (User) super.createUserDetails(username, userFromUserQuery, combinedAuthorities);
         List<UserDetails> users = getJdbcTemplate().query(selectUserExtraColumns, new String[] { username }, new RowMapper<UserDetails>() {
             public UserDetails mapRow(ResultSet rs, int rowNum) throws SQLException {
@@ -78,30 +189,157 @@ public class ExtendedJdbcUserDetailsManager extends JdbcUserDetailsManager imple
         return users.get(0);
     }
 
+    /**
+     * Invalidates the verified credentials of the user in addition to the
+     * behavior of
+     * {@link org.springframework.security.provisioning.JdbcUserDetailsManager#deleteUser(String)}.
+     */
+    @Override
+    public void deleteUser(String username) {
+        try {
+            super.deleteUser(username);
+        } finally {
+            invalidateVerifiedCredentials(username);
+        }
+    }
+
     public String getSelectUserExtraColumns() {
         return selectUserExtraColumns;
     }
 
+    public String getSelectUserWithAuthoritiesAndExtraColumns() {
+        return selectUserWithAuthoritiesAndExtraColumns;
+    }
+
+    public AuthenticationStatistics getStatistics() {
+        return statistics;
+    }
+
     public String getUpdateUserExtraColumns() {
         return updateUserExtraColumns;
     }
 
+    public VerifiedCredentialsCache getVerifiedCredentialsCache() {
+        return verifiedCredentialsCache;
+    }
+
+    protected void invalidateVerifiedCredentials(String username) {
+        VerifiedCredentialsCache cache = verifiedCredentialsCache;
+        if (cache != null) {
+            cache.invalidate(username);
+        }
+    }
+
+    public boolean isLoadUserInSingleQuery() {
+        return loadUserInSingleQuery;
+    }
+
+    /**
+     * Loads the user with the single
+     * {@link #setSelectUserWithAuthoritiesAndExtraColumns(String)} query if
+     * {@link #isLoadUserInSingleQuery()}, as the
+     * {@link org.springframework.security.core.userdetails.jdbc.JdbcDaoImpl}
+     * otherwise.
+     */
+    @Override
+    public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException, DataAccessException {
+        if (!loadUserInSingleQuery) {
+            return super.loadUserByUsername(username);
+        }
+        UserWithAuthorities user = getJdbcTemplate().query(selectUserWithAuthoritiesAndExtraColumns, new String[] { username },
+                new UserWithAuthoritiesExtractor());
+        if (user == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Query returned no results for user '" + username + "'");
+            }
+            throw new UsernameNotFoundException(messages.getMessage("JdbcDaoImpl.notFound", new Object[] { username },
+                    "Username {0} not found"), username);
+        }
+
+        if (getEnableGroups()) {
+            user.authorities.addAll(loadGroupAuthorities(user.username));
+        }
+        List<GrantedAuthority> dbAuthorities = new ArrayList<GrantedAuthority>(user.authorities);
+        addCustomAuthorities(user.username, dbAuthorities);
+        if (dbAuthorities.size() == 0) {
+            if (log.isDebugEnabled()) {
+                log.debug("User '" + username + "' has no authorities and will be treated as 'not found'");
+            }
+            throw new UsernameNotFoundException(messages.getMessage("JdbcDaoImpl.noAuthority", new Object[] { username },
+                    "User {0} has no GrantedAuthority"), username);
+        }
+
+        String returnUsername = isUsernameBasedPrimaryKey() ? user.username : username;
+        ExtendedUser extendedUser = new ExtendedUser(returnUsername, user.password, user.enabled, true, true, true, dbAuthorities);
+        extendedUser.setAllowedRemoteAddresses(user.allowedRemoteAddresses);
+        extendedUser.setComments(user.comments);
+        return extendedUser;
+    }
+
+    /**
+     * <code>true</code> to load the user, its extra columns and its
+     * authorities with the single
+     * {@link #setSelectUserWithAuthoritiesAndExtraColumns(String)} query
+     * instead of the {@link #setUsersByUsernameQuery(String)}, the
+     * {@link #setAuthoritiesByUsernameQuery(String)} and the
+     * {@link #setSelectUserExtraColumns(String)} queries. Default to
+     * <code>false</code>.
+     */
+    public void setLoadUserInSingleQuery(boolean loadUserInSingleQuery) {
+        this.loadUserInSingleQuery = loadUserInSingleQuery;
+    }
+
     public void setSelectUserExtraColumns(String selectUserExtraColumns) {
         this.selectUserExtraColumns = selectUserExtraColumns;
     }
 
+    /**
+     * Query of the {@link #setLoadUserInSingleQuery(boolean)} mode, returning
+     * one row per authority of the user with the columns
+     * <code>username</code>, <code>password</code>, <code>enabled</code>,
+     * <code>allowedRemoteAddresses</code>, <code>comments</code> and
+     * <code>authority</code> in this order; <code>authority</code> is
+     * <code>null</code> in the single row of a user without authority.
+     * Default to an outer join of the <code>users</code> and
+     * <code>authorities</code> tables.
+     */
+    public void setSelectUserWithAuthoritiesAndExtraColumns(String selectUserWithAuthoritiesAndExtraColumns) {
+        this.selectUserWithAuthoritiesAndExtraColumns = selectUserWithAuthoritiesAndExtraColumns;
+    }
+
+    /**
+     * Statistics of the {@link fr.xebia.springframework.security.core.providers.ExtendedDaoAuthenticationProvider}
+     * in which the duration of the extra columns query is recorded.
+     */
+    public void setStatistics(AuthenticationStatistics statistics) {
+        this.statistics = statistics;
+    }
+
     public void setUpdateUserExtraColumns(String updateUserExtraColumns) {
         this.updateUserExtraColumns = updateUserExtraColumns;
     }
 
+    /**
+     * Cache of the {@link fr.xebia.springframework.security.core.providers.ExtendedDaoAuthenticationProvider}
+     * whose entries must be invalidated when a user is modified.
+     */
+    public void setVerifiedCredentialsCache(VerifiedCredentialsCache verifiedCredentialsCache) {
+        this.verifiedCredentialsCache = verifiedCredentialsCache;
+    }
+
     /**
      * Update {@link fr.xebia.springframework.security.core.userdetails.ExtendedUser} extra columns in addition to the behavior of
      * {@link org.springframework.security.provisioning.JdbcUserDetailsManager#updateUser(org.springframework.security.core.userdetails.UserDetails).}
+     * Invalidates the verified credentials of the user.
      */
     @Override
     public void updateUser(UserDetails user) {
-        super.updateUser(user);
-        updateUserExtraColumns(user);
+        try {
+            super.updateUser(user);
+            updateUserExtraColumns(user);
+        } finally {
+            invalidateVerifiedCredentials(user.getUsername());
+        }
     }
 
     /**
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class AsyncAuditDispatcherTest {
+
+    private static AuditEvent newEvent(String template) {
+        return new AuditEvent(template, null, new Object[0], null, null, "ze-principal", null, System.currentTimeMillis(), 0);
+    }
+
+    @Test
+    public void testStopFlushesPendingEventsFromConcurrentProducers() throws Exception {
+        final Set<String> handledTemplates = Collections.synchronizedSet(new HashSet<String>());
+        final AsyncAuditDispatcher dispatcher = new AsyncAuditDispatcher(new AsyncAuditDispatcher.Handler() {
+            public void handle(AuditEvent event) {
+                handledTemplates.add(event.getTemplate());
+            }
+        }, 16, AsyncAuditDispatcher.OverflowPolicy.BLOCK);
+        dispatcher.start();
+
+        int producers = 4;
+        final int eventsPerProducer = 1000;
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            final int producer = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < eventsPerProducer; j++) {
+                        dispatcher.dispatch(newEvent(producer + "-" + j));
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        dispatcher.stop();
+
+        assertEquals(producers * eventsPerProducer, handledTemplates.size());
+        assertEquals(0, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void testDropPolicyCountsDiscardedEvents() throws Exception {
+        final CountDownLatch consumerBlocked = new CountDownLatch(1);
+        final CountDownLatch releaseConsumer = new CountDownLatch(1);
+        final AtomicInteger handledCount = new AtomicInteger();
+        AsyncAuditDispatcher dispatcher = new AsyncAuditDispatcher(new AsyncAuditDispatcher.Handler() {
+            public void handle(AuditEvent event) {
+                consumerBlocked.countDown();
+                try {
+                    releaseConsumer.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                handledCount.incrementAndGet();
+            }
+        }, 4, AsyncAuditDispatcher.OverflowPolicy.DROP);
+        dispatcher.start();
+
+        dispatcher.dispatch(newEvent("first"));
+        consumerBlocked.await();
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch(newEvent("event-" + i));
+        }
+        releaseConsumer.countDown();
+        dispatcher.stop();
+
+        assertEquals(6, dispatcher.getDroppedCount());
+        assertEquals(5, handledCount.get());
+    }
+
+    @Test
+    public void testCallerRunsPolicyHandlesOverflowOnCallerThread() throws Exception {
+        final CountDownLatch consumerBlocked = new CountDownLatch(1);
+        final CountDownLatch releaseConsumer = new CountDownLatch(1);
+        final Set<Thread> handlingThreads = Collections.synchronizedSet(new HashSet<Thread>());
+        AsyncAuditDispatcher dispatcher = new AsyncAuditDispatcher(new AsyncAuditDispatcher.Handler() {
+            public void handle(AuditEvent event) {
+                handlingThreads.add(Thread.currentThread());
+                if ("first".equals(event.getTemplate())) {
+                    consumerBlocked.countDown();
+                    try {
+                        releaseConsumer.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }, 1, AsyncAuditDispatcher.OverflowPolicy.CALLER_RUNS);
+        dispatcher.start();
+
+        dispatcher.dispatch(newEvent("first"));
+        consumerBlocked.await();
+        dispatcher.dispatch(newEvent("buffered-1"));
+        dispatcher.dispatch(newEvent("buffered-2"));
+        dispatcher.dispatch(newEvent("overflow"));
+        releaseConsumer.countDown();
+        dispatcher.stop();
+
+        assertTrue(handlingThreads.contains(Thread.currentThread()));
+        assertEquals(2, handlingThreads.size());
+        assertEquals(0, dispatcher.getDroppedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testConsumerSurvivesErrors() throws Exception {
+        final AtomicInteger handledCount = new AtomicInteger();
+        final Set<String> threadNames = Collections.synchronizedSet(new HashSet<String>());
+        AsyncAuditDispatcher dispatcher = new AsyncAuditDispatcher(new AsyncAuditDispatcher.Handler() {
+            public void handle(AuditEvent event) {
+                if ("poison".equals(event.getTemplate())) {
+                    throw new Error("handler failure");
+                }
+                threadNames.add(Thread.currentThread().getName());
+                handledCount.incrementAndGet();
+            }
+        }, 4, AsyncAuditDispatcher.OverflowPolicy.BLOCK);
+        dispatcher.start();
+
+        dispatcher.dispatch(newEvent("poison"));
+        for (int i = 0; i < 20; i++) {
+            dispatcher.dispatch(newEvent("event-" + i));
+        }
+        dispatcher.stop();
+
+        assertEquals(20, handledCount.get());
+        assertEquals(Collections.singleton("audit-dispatcher"), threadNames);
+        assertEquals(0, dispatcher.getPendingCount());
+    }
+}
@@ -16,7 +16,22 @@
 
 package fr.xebia.audit;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -35,6 +50,17 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 @ContextConfiguration(locations = "classpath:fr/xebia/audit/test-springContext.xml")
 public class AuditAspectTest {
 
+    private static class QueueAuditSink implements AuditSink {
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+
+        public void write(AuditEvent event, String message) {
+            messages.add(message);
+        }
+    }
+
+    @Autowired
+    private AuditAspect auditAspect;
+
     @Autowired
     private SimpleAuditedService simpleAuditedService;
 
@@ -72,4 +98,187 @@ public class AuditAspectTest {
 
     }
 
+    @Test
+    public void testParameterNamesInTemplate() throws Exception {
+        AuditAspect auditAspect = new AuditAspect();
+        Method method = SimpleAuditedService.class.getMethod("rename", SimpleAuditedService.Customer.class, String.class);
+        SimpleAuditedService.Customer customer = new SimpleAuditedService.Customer();
+        customer.setName("John Smith");
+
+        AuditEvent event = auditAspect.captureEvent(method, method.getAnnotation(Audited.class).message(), simpleAuditedService,
+                new Object[] { customer, "Johnny" }, customer, null, 0);
+        String message = auditAspect.buildMessage(event);
+
+        assertTrue(message, message.contains("rename(John Smith, Johnny) by ze-principal coming from 10.0.0.1"));
+    }
+
+    @Test
+    public void testPreScanCreatesPlanOnce() throws Exception {
+        AuditAspect auditAspect = new AuditAspect();
+        auditAspect.preScan(SimpleAuditedService.class);
+        Method method = SimpleAuditedService.class.getMethod("save", SimpleAuditedService.Customer.class);
+
+        AuditPlan plan = auditAspect.getPlan(method, null);
+
+        assertSame(plan, auditAspect.getPlan(method, method.getAnnotation(Audited.class)));
+        assertEquals(method.getAnnotation(Audited.class), plan.getAudited());
+    }
+
+    @Test
+    public void testSampledMethodAlwaysAuditsFailures() throws Exception {
+        Method method = SimpleAuditedService.class.getMethod("find", String.class);
+        long suppressedBefore = auditAspect.getSuppressedCount();
+
+        for (int i = 0; i < 100; i++) {
+            simpleAuditedService.find("John Smith");
+        }
+        for (int i = 0; i < 10; i++) {
+            try {
+                simpleAuditedService.find(null);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+
+        AuditPlan plan = auditAspect.getPlan(method, null);
+        assertEquals(75, plan.getSampledOutCount());
+        assertEquals(75, auditAspect.getSuppressedCount() - suppressedBefore);
+    }
+
+    @Test
+    public void testFutureIsAuditedOnCompletion() throws Exception {
+        QueueAuditSink sink = new QueueAuditSink();
+        AuditSink previousSink = auditAspect.getAuditSink();
+        auditAspect.setAuditSink(sink);
+        auditAspect.setAuditFutures(true);
+        try {
+            FutureTask<String> future = new FutureTask<String>(new Callable<String>() {
+                public String call() {
+                    return "done";
+                }
+            });
+
+            assertSame(future, simpleAuditedService.pending(future));
+            assertNull(sink.messages.poll(50, TimeUnit.MILLISECONDS));
+
+            SecurityContextHolder.clearContext();
+            future.run();
+
+            String message = sink.messages.poll(5, TimeUnit.SECONDS);
+            assertTrue(message, message.contains("pending(): done by ze-principal coming from 10.0.0.1"));
+        } finally {
+            auditAspect.setAuditFutures(false);
+            auditAspect.setAuditSink(previousSink);
+        }
+    }
+
+    @Test
+    public void testCompletionStageIsAuditedOnCompletion() throws Exception {
+        Class<?> completableFutureClass;
+        try {
+            completableFutureClass = Class.forName("java.util.concurrent.CompletableFuture");
+        } catch (ClassNotFoundException e) {
+            Assume.assumeNoException(e);
+            return;
+        }
+        QueueAuditSink sink = new QueueAuditSink();
+        AuditSink previousSink = auditAspect.getAuditSink();
+        auditAspect.setAuditSink(sink);
+        auditAspect.setAuditFutures(true);
+        try {
+            Object future = completableFutureClass.newInstance();
+
+            assertSame(future, simpleAuditedService.pending(future));
+            assertTrue(sink.messages.isEmpty());
+
+            completableFutureClass.getMethod("completeExceptionally", Throwable.class).invoke(future,
+                    new IllegalStateException("async failure"));
+
+            String message = sink.messages.poll(5, TimeUnit.SECONDS);
+            assertTrue(message, message.contains("pending():  threw 'java.lang.IllegalStateException: async failure' by ze-principal"));
+        } finally {
+            auditAspect.setAuditFutures(false);
+            auditAspect.setAuditSink(previousSink);
+        }
+    }
+
+    @Test
+    public void testNestedCallsAreCoalesced() throws Exception {
+        QueueAuditSink sink = new QueueAuditSink();
+        AuditSink previousSink = auditAspect.getAuditSink();
+        auditAspect.setAuditSink(sink);
+        auditAspect.setCoalesceNestedCalls(true);
+        try {
+            SimpleAuditedService.Customer valid = new SimpleAuditedService.Customer();
+            valid.setName("John Smith");
+            valid.setEmail("john.smith@xebia.fr");
+            SimpleAuditedService.Customer invalid = new SimpleAuditedService.Customer();
+            invalid.setName("Jane Doe");
+            invalid.setEmail("jane.doe");
+
+            simpleAuditedService.importCustomers(Arrays.asList(valid, invalid));
+
+            String message = sink.messages.poll(5, TimeUnit.SECONDS);
+            assertTrue(message, message.contains(" importCustomers(2): 1 with nested failure by ze-principal coming from 10.0.0.1 in "));
+            assertTrue(message, message.matches(".* ms \\[save\\(John Smith, john.smith@xebia.fr\\): 324325 in \\d+ ms, "
+                    + "save\\(Jane Doe, jane.doe\\):  threw 'java.lang.IllegalArgumentException: invalid email' in \\d+ ms\\]"));
+            assertNull(sink.messages.poll(50, TimeUnit.MILLISECONDS));
+        } finally {
+            auditAspect.setCoalesceNestedCalls(false);
+            auditAspect.setAuditSink(previousSink);
+        }
+    }
+
+    @Test
+    public void testNestedCallsBeyondMaxNestedEventsAreCounted() throws Exception {
+        QueueAuditSink sink = new QueueAuditSink();
+        AuditSink previousSink = auditAspect.getAuditSink();
+        auditAspect.setAuditSink(sink);
+        auditAspect.setCoalesceNestedCalls(true);
+        auditAspect.setMaxNestedEvents(1);
+        try {
+            SimpleAuditedService.Customer valid = new SimpleAuditedService.Customer();
+            valid.setName("John Smith");
+            valid.setEmail("john.smith@xebia.fr");
+            SimpleAuditedService.Customer invalid = new SimpleAuditedService.Customer();
+            invalid.setName("Jane Doe");
+            invalid.setEmail("jane.doe");
+
+            simpleAuditedService.importCustomers(Arrays.asList(valid, invalid, invalid));
+
+            String message = sink.messages.poll(5, TimeUnit.SECONDS);
+            assertTrue(message, message.contains(" importCustomers(3): 1 with nested failure by ze-principal coming from 10.0.0.1 in "));
+            assertTrue(message, message.matches(".* ms \\[save\\(John Smith, john.smith@xebia.fr\\): 324325 in \\d+ ms, ... and 2 more\\]"));
+        } finally {
+            auditAspect.setMaxNestedEvents(100);
+            auditAspect.setCoalesceNestedCalls(false);
+            auditAspect.setAuditSink(previousSink);
+        }
+    }
+
+    @Test
+    public void testFailingSinkDoesNotFailTheAuditedMethod() {
+        AuditSink previousSink = auditAspect.getAuditSink();
+        auditAspect.setAuditSink(new AuditSink() {
+            public void write(AuditEvent event, String message) {
+                throw new IllegalStateException("sink closed");
+            }
+        });
+        try {
+            SimpleAuditedService.Customer customer = new SimpleAuditedService.Customer();
+            customer.setName("John Smith");
+            customer.setEmail("john.smith@xebia.fr");
+            assertSame(customer, simpleAuditedService.save(customer));
+
+            customer.setEmail("john.smith");
+            try {
+                simpleAuditedService.save(customer);
+                fail("expected exception");
+            } catch (IllegalArgumentException e) {
+                // the exception of the audited method, not the one of the sink
+            }
+        } finally {
+            auditAspect.setAuditSink(previousSink);
+        }
+    }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class AuditDeduplicatorTest {
+
+    private static class ListAuditSink implements AuditSink {
+        final List<String> messages = new CopyOnWriteArrayList<String>();
+
+        public void write(AuditEvent event, String message) {
+            messages.add(message);
+        }
+    }
+
+    private static final AuditClock FIXED_CLOCK = new AuditClock() {
+        public long currentTimeMillis() {
+            return 1350000000000L;
+        }
+    };
+
+    private static AuditEvent event(long timestampInMillis) {
+        return new AuditEvent("ze-message", null, null, null, null, "ze-principal", null, timestampInMillis, 0);
+    }
+
+    private static boolean offer(AuditDeduplicator deduplicator, String key, long timestampInMillis, AuditSink sink) {
+        // the key is surrounded by a timestamp and a duration that differ
+        String message = timestampInMillis + " " + key + " in " + (timestampInMillis % 7) + " ms";
+        int keyStart = message.indexOf(' ') + 1;
+        return deduplicator.offer(event(timestampInMillis), message, keyStart, keyStart + key.length(), sink);
+    }
+
+    @Test
+    public void testIdenticalMessagesAreFoldedWithinWindow() {
+        AuditDeduplicator deduplicator = new AuditDeduplicator(1000, 1024);
+        deduplicator.setTimestampRenderer(new TimestampRenderer(FIXED_CLOCK, TimeZone.getTimeZone("UTC")));
+        ListAuditSink sink = new ListAuditSink();
+        long now = 1350000000000L;
+
+        assertTrue(offer(deduplicator, "save(John) threw 'boom' by ze-principal", now, sink));
+        assertFalse(offer(deduplicator, "save(John) threw 'boom' by ze-principal", now + 10, sink));
+        assertFalse(offer(deduplicator, "save(John) threw 'boom' by ze-principal", now + 250, sink));
+        assertTrue(offer(deduplicator, "save(Jane) threw 'boom' by ze-principal", now + 300, sink));
+        assertEquals(2, deduplicator.getFoldedCount());
+
+        deduplicator.sweep(now + 999);
+        assertTrue(sink.messages.isEmpty());
+
+        deduplicator.sweep(now + 1000);
+        assertEquals(1, sink.messages.size());
+        assertEquals("2012-10-12T00:00:00.250+0000 save(John) threw 'boom' by ze-principal "
+                + "(occurred 3 times from 2012-10-12T00:00:00.000+0000 to 2012-10-12T00:00:00.250+0000)", sink.messages.get(0));
+        assertEquals(1, deduplicator.getSize());
+
+        // a new window opens
+        assertTrue(offer(deduplicator, "save(John) threw 'boom' by ze-principal", now + 1500, sink));
+
+        // the occurrence after the window writes the summary of the window
+        assertFalse(offer(deduplicator, "save(Jane) threw 'boom' by ze-principal", now + 1200, sink));
+        assertTrue(offer(deduplicator, "save(Jane) threw 'boom' by ze-principal", now + 1400, sink));
+        assertEquals(2, sink.messages.size());
+        assertTrue(sink.messages.get(1), sink.messages.get(1).contains(" save(Jane) threw 'boom' by ze-principal (occurred 2 times "));
+    }
+
+    @Test
+    public void testMemoryIsBounded() {
+        AuditDeduplicator deduplicator = new AuditDeduplicator(60000, 64);
+        ListAuditSink sink = new ListAuditSink();
+        long now = 1350000000000L;
+
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(offer(deduplicator, "find(" + i + ")", now, sink));
+        }
+
+        assertTrue("size " + deduplicator.getSize(), deduplicator.getSize() <= 64);
+        assertEquals(10000 - deduplicator.getSize(), deduplicator.getEvictedCount());
+        // evicted messages that occurred once have no summary
+        assertTrue(sink.messages.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentIdenticalMessagesAreWrittenOnce() throws Exception {
+        final AuditDeduplicator deduplicator = new AuditDeduplicator(60000, 1024);
+        final ListAuditSink sink = new ListAuditSink();
+        final AtomicInteger written = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long now = 1350000000000L;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 1000; i++) {
+                        if (offer(deduplicator, "find(" + (i % 10) + ")", now + i, sink)) {
+                            written.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(10, written.get());
+        assertEquals(3990, deduplicator.getFoldedCount());
+
+        deduplicator.flush();
+
+        assertEquals(10, sink.messages.size());
+        assertTrue(sink.messages.get(0), sink.messages.get(0).contains("(occurred 400 times from "));
+    }
+
+    @Test
+    public void testAspectFoldsMessagesThatDifferByTheirDuration() throws Exception {
+        Method method = SimpleAuditedService.class.getMethod("find", String.class);
+        AuditAspect auditAspect = new AuditAspect();
+        ListAuditSink sink = new ListAuditSink();
+        auditAspect.setAuditSink(sink);
+        auditAspect.setDeduplicationWindowInMillis(60000);
+        auditAspect.afterPropertiesSet();
+        try {
+            for (int i = 0; i < 100; i++) {
+                auditAspect.emit(new AuditEvent(method, "find(#{args[0]})", null, new Object[] { "John" }, null,
+                        new IllegalStateException("boom"), "ze-principal", null, System.currentTimeMillis(), i * 1000000L));
+            }
+            assertEquals(1, sink.messages.size());
+        } finally {
+            auditAspect.destroy();
+        }
+
+        assertEquals(2, sink.messages.size());
+        assertTrue(sink.messages.get(1), sink.messages.get(1).contains(
+                " find(John) threw 'java.lang.IllegalStateException: boom' by ze-principal (occurred 100 times from "));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class AuditMessageBufferTest {
+
+    private static class LengthSummingSink implements CharSequenceAuditSink {
+        long totalLength;
+
+        public void write(AuditEvent event, CharSequence message) {
+            totalLength += message.length();
+        }
+
+        public void write(AuditEvent event, String message) {
+            throw new AssertionError("the rendering buffer must be handed over");
+        }
+    }
+
+    private AuditEvent renameEvent() throws Exception {
+        Method method = SimpleAuditedService.class.getMethod("rename", SimpleAuditedService.Customer.class, String.class);
+        SimpleAuditedService.Customer customer = new SimpleAuditedService.Customer();
+        customer.setName("John Smith");
+        return new AuditEvent(method, method.getAnnotation(Audited.class).message(), null, new Object[] { customer, "Johnny" },
+                customer, null, "ze-principal", "10.0.0.1", 1350000000123L, 2000000);
+    }
+
+    @Test
+    public void testSteadyStateRenderingDoesNotAllocate() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported() && threadMXBean.isThreadAllocatedMemoryEnabled());
+
+        AuditAspect auditAspect = new AuditAspect();
+        LengthSummingSink sink = new LengthSummingSink();
+        auditAspect.setAuditSink(sink);
+        AuditEvent event = renameEvent();
+        assertTrue(auditAspect.getPlan(event.getMethod(), null).isCompiled());
+
+        // warm up: plan creation, reflection inflation, JIT
+        for (int i = 0; i < 50000; i++) {
+            auditAspect.emit(event);
+        }
+
+        int iterations = 100000;
+        long threadId = Thread.currentThread().getId();
+        long bytesBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            auditAspect.emit(event);
+        }
+        long bytesPerEvent = (threadMXBean.getThreadAllocatedBytes(threadId) - bytesBefore) / iterations;
+
+        String message = auditAspect.buildMessage(event);
+        assertTrue(message, message.endsWith(" rename(John Smith, Johnny) by ze-principal coming from 10.0.0.1 in 2 ms"));
+        assertEquals(150000L * message.length(), sink.totalLength);
+        assertTrue("allocated " + bytesPerEvent + " bytes per event", bytesPerEvent < 16);
+    }
+
+    @Test
+    public void testNestedRenderingDoesNotCorruptTheOuterMessage() throws Exception {
+        final AuditAspect auditAspect = new AuditAspect();
+        final AuditEvent event = renameEvent();
+        final String expected = auditAspect.buildMessage(event);
+        final StringBuilder written = new StringBuilder();
+        auditAspect.setAuditSink(new CharSequenceAuditSink() {
+            public void write(AuditEvent e, CharSequence message) {
+                // a sink auditing its own activity renders on the same thread
+                Auditor.audit("nested");
+                assertEquals("nested", expected, auditAspect.buildMessage(event));
+                written.append(message);
+            }
+
+            public void write(AuditEvent e, String message) {
+                write(e, (CharSequence) message);
+            }
+        });
+
+        auditAspect.emit(event);
+
+        assertEquals(expected, written.toString());
+    }
+
+    @Test
+    public void testThrowableCausesCycle() {
+        IllegalStateException first = new IllegalStateException("first");
+        IllegalArgumentException second = new IllegalArgumentException("second");
+        first.initCause(second);
+        second.initCause(first);
+
+        StringBuilder sb = new StringBuilder();
+        AuditAspect.appendThrowableCauses(first, ", ", sb);
+
+        assertEquals("java.lang.IllegalStateException: first, java.lang.IllegalArgumentException: second", sb.toString());
+    }
+}
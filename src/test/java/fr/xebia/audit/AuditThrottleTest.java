@@ -0,0 +1,111 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class AuditThrottleTest {
+
+    private static final long SECOND = 1000L * 1000L * 1000L;
+
+    @Test
+    public void testSampling() {
+        AuditThrottle throttle = new AuditThrottle(0.1, 0, false);
+
+        int audited = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (throttle.tryAcquire(false, 0)) {
+                audited++;
+            }
+        }
+
+        assertEquals(100, audited);
+        assertEquals(900, throttle.getSampledOutCount());
+    }
+
+    @Test
+    public void testTokenBucketBurstAndRefill() {
+        AuditThrottle throttle = new AuditThrottle(1.0, 5, false);
+        long now = 123456789L;
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue("event " + i, throttle.tryAcquire(false, now));
+        }
+        assertFalse(throttle.tryAcquire(false, now));
+        assertFalse(throttle.tryAcquire(false, now + SECOND / 10));
+
+        // one token every 200ms
+        assertTrue(throttle.tryAcquire(false, now + SECOND / 5));
+        assertFalse(throttle.tryAcquire(false, now + SECOND / 5));
+
+        // the bucket is full again after one second of inactivity
+        for (int i = 0; i < 5; i++) {
+            assertTrue("event " + i, throttle.tryAcquire(false, now + 10 * SECOND));
+        }
+        assertEquals(3, throttle.getRateLimitedCount());
+    }
+
+    @Test
+    public void testFailuresBypassTheThrottle() {
+        AuditThrottle throttle = new AuditThrottle(0.0, 1, true);
+
+        assertFalse(throttle.tryAcquire(false, 0));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(throttle.tryAcquire(true, 0));
+        }
+        assertEquals(1, throttle.getSampledOutCount());
+    }
+
+    @Test
+    public void testConcurrentAcquireGrantsExactlyTheBurst() throws Exception {
+        final AuditThrottle throttle = new AuditThrottle(1.0, 100, false);
+        final AtomicInteger granted = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 1000; i++) {
+                        if (throttle.tryAcquire(false, 0)) {
+                            granted.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(100, granted.get());
+        assertEquals(3900, throttle.getRateLimitedCount());
+    }
+}
@@ -26,4 +26,19 @@ public class AuditorTest {
     public void test() throws Exception {
         Auditor.audit("This is my message");
     }
+
+    @Test
+    public void testFailingSinkIsIgnored() throws Exception {
+        AuditSink previousSink = Auditor.getAuditSink();
+        Auditor.setAuditSink(new AuditSink() {
+            public void write(AuditEvent event, String message) {
+                throw new IllegalStateException("sink closed");
+            }
+        });
+        try {
+            Auditor.audit("This is my message");
+        } finally {
+            Auditor.setAuditSink(previousSink);
+        }
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+import org.springframework.expression.Expression;
+import org.springframework.expression.common.TemplateParserContext;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+
+public class CompiledTemplateTest {
+
+    private final SpelExpressionParser expressionParser = new SpelExpressionParser();
+
+    private final Method renameMethod;
+
+    public CompiledTemplateTest() throws Exception {
+        renameMethod = SimpleAuditedService.class.getMethod("rename", SimpleAuditedService.Customer.class, String.class);
+    }
+
+    private Expression parse(String template) {
+        return expressionParser.parseExpression(template, new TemplateParserContext());
+    }
+
+    private SimpleAuditedService.Customer newCustomer(String name, String email) {
+        SimpleAuditedService.Customer customer = new SimpleAuditedService.Customer();
+        customer.setName(name);
+        customer.setEmail(email);
+        return customer;
+    }
+
+    private void assertSameAsSpel(String template, Object[] args, Object returned, Throwable throwned) {
+        String[] parameterNames = { "customer", "newName" };
+        AuditPlan compiledPlan = new AuditPlan(renameMethod, null, template, parse(template), null, parameterNames, true);
+        assertTrue("template should be compiled: " + template, compiledPlan.isCompiled());
+
+        AuditPlan spelPlan = new AuditPlan(renameMethod, null, template, parse(template), null, parameterNames, false);
+
+        AuditAspect.RootObject rootObject = new AuditAspect.RootObject(null, args, returned, throwned);
+        String expected;
+        try {
+            expected = spelPlan.evaluate(rootObject, args);
+        } catch (RuntimeException e) {
+            expected = e.toString();
+        }
+        String actual;
+        try {
+            actual = compiledPlan.evaluate(rootObject, args);
+        } catch (RuntimeException e) {
+            actual = e.toString();
+        }
+        assertEquals(template, expected, actual);
+
+        StringBuilder appended = new StringBuilder("> ");
+        try {
+            compiledPlan.appendTo(rootObject, args, appended);
+        } catch (RuntimeException e) {
+            appended.append(e.toString());
+        }
+        assertEquals(template, "> " + expected, appended.toString());
+    }
+
+    @Test
+    public void testSameResultsAsSpel() {
+        SimpleAuditedService.Customer customer = newCustomer("John Smith", "john.smith@xebia.fr");
+        Object[] args = { customer, "Johnny" };
+        IllegalArgumentException exception = new IllegalArgumentException("invalid email");
+
+        String[] templates = { "", "constant", "#{args[0]}", "#{args[1]}", "#{args[0].name}", "save(#{args[0].name}, #{args[0].email})",
+                "#{returned}", "#{returned?.id}", "ret=#{returned?.id}", "#{returned.id}", "#{throwned.message}", "#{throwned?.message}",
+                "#{#customer.email}", "rename(#{#customer.name}, #{#newName})", "#{args[5]}", "x #{args[0].unknown} y",
+                "#{ args[0].name }", "#{args[1].bytes.length}", "#{args[0].name.empty}" };
+        for (String template : templates) {
+            assertSameAsSpel(template, args, customer, null);
+            assertSameAsSpel(template, args, null, exception);
+        }
+    }
+
+    @Test
+    public void testUnsupportedTemplatesAreNotCompiled() {
+        String[] parameterNames = { "customer" };
+        assertNull(CompiledTemplate.compile("#{args[0].name.toUpperCase()}", parameterNames));
+        assertNull(CompiledTemplate.compile("#{args[0] + args[1]}", parameterNames));
+        assertNull(CompiledTemplate.compile("#{'literal'}", parameterNames));
+        assertNull(CompiledTemplate.compile("#{#unknown}", parameterNames));
+        assertNull(CompiledTemplate.compile("unterminated #{args[0]", parameterNames));
+        assertNotNull(CompiledTemplate.compile("save(#{args[0].name}, #{#customer?.email})", parameterNames));
+    }
+
+    @Test
+    public void testCompiledTemplateWithoutMethodMatchesSpel() {
+        String template = "save(#{args[0].name}, #{args[0].email}): #{returned?.id}";
+        SimpleAuditedService.Customer customer = newCustomer("John Smith", "john.smith@xebia.fr");
+        Object[] args = { customer };
+        AuditAspect.RootObject rootObject = new AuditAspect.RootObject(null, args, customer, null);
+        AuditPlan compiledPlan = new AuditPlan(null, null, template, parse(template), null, null, true);
+        AuditPlan spelPlan = new AuditPlan(null, null, template, parse(template), null, null, false);
+        assertTrue(compiledPlan.isCompiled());
+        assertFalse(spelPlan.isCompiled());
+
+        assertEquals(spelPlan.evaluate(rootObject, args), compiledPlan.evaluate(rootObject, args));
+    }
+}
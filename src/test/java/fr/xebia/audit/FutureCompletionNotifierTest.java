@@ -0,0 +1,97 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class FutureCompletionNotifierTest {
+
+    private static class RecordingCallback implements FutureCompletionNotifier.Callback {
+        final List<Object> values = new CopyOnWriteArrayList<Object>();
+
+        public void completed(Object value, Throwable throwable) {
+            values.add(value);
+        }
+    }
+
+    private static FutureTask<String> newFuture() {
+        return new FutureTask<String>(new Callable<String>() {
+            public String call() {
+                return "done";
+            }
+        });
+    }
+
+    @Test
+    public void testPendingFuturesAreBounded() throws Exception {
+        FutureCompletionNotifier notifier = new FutureCompletionNotifier();
+        notifier.setMaxPendingCount(1);
+        notifier.setMaxPendingAgeInMillis(60000);
+        try {
+            RecordingCallback callback = new RecordingCallback();
+            FutureTask<String> first = newFuture();
+            FutureTask<String> second = newFuture();
+            FutureTask<String> third = newFuture();
+
+            notifier.notifyOnCompletion(first, callback);
+            notifier.notifyOnCompletion(second, callback);
+
+            // too many pending futures: the second one is not awaited
+            assertEquals(1, notifier.getPendingCount());
+            assertEquals(1, callback.values.size());
+            assertSame(second, callback.values.get(0));
+
+            // too old: the first one is no longer awaited
+            notifier.poll(System.nanoTime() + TimeUnit.MINUTES.toNanos(2));
+            assertEquals(0, notifier.getPendingCount());
+            assertEquals(2, callback.values.size());
+            assertSame(first, callback.values.get(1));
+
+            notifier.notifyOnCompletion(third, callback);
+            third.run();
+            notifier.poll(System.nanoTime());
+            assertEquals(0, notifier.getPendingCount());
+            assertEquals("done", callback.values.get(2));
+        } finally {
+            notifier.stop();
+        }
+    }
+
+    @Test
+    public void testFuturesAreNotPolledAfterStop() throws Exception {
+        FutureCompletionNotifier notifier = new FutureCompletionNotifier();
+        notifier.stop();
+
+        RecordingCallback callback = new RecordingCallback();
+        FutureTask<String> future = newFuture();
+        notifier.notifyOnCompletion(future, callback);
+
+        assertEquals(0, notifier.getPendingCount());
+        assertEquals(1, callback.values.size());
+        assertSame(future, callback.values.get(0));
+        assertFalse(notifier.isRunning());
+    }
+}
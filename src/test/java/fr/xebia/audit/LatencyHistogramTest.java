@@ -0,0 +1,133 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverAllValues() {
+        long[] values = { 0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE };
+        for (long value : values) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue("value " + value, LatencyHistogram.bucketUpperBound(index) >= value);
+            if (index > 0) {
+                assertTrue("value " + value, LatencyHistogram.bucketUpperBound(index - 1) < value);
+            }
+        }
+        for (long value = 0; value < 100000; value++) {
+            int index = LatencyHistogram.bucketIndex(value);
+            long upperBound = LatencyHistogram.bucketUpperBound(index);
+            assertTrue("value " + value, upperBound >= value && upperBound - value <= value / LatencyHistogram.SUB_BUCKET_COUNT);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500, histogram.getMean());
+        assertWithin(500000, histogram.getPercentile(0.50));
+        assertWithin(900000, histogram.getPercentile(0.90));
+        assertWithin(990000, histogram.getPercentile(0.99));
+        assertEquals(1000000, histogram.getPercentile(1.0));
+
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.99));
+    }
+
+    private void assertWithin(long expected, long actual) {
+        assertTrue("expected " + expected + " but was " + actual, actual >= expected
+                && actual - expected <= expected / LatencyHistogram.SUB_BUCKET_COUNT);
+    }
+
+    @Test
+    public void testStatisticsMBean() throws Exception {
+        Method method = SimpleAuditedService.class.getMethod("find", String.class);
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        AuditAspect auditAspect = new AuditAspect();
+        auditAspect.setExportStatistics(true);
+        auditAspect.setMbeanServer(mbeanServer);
+
+        AuditedMethodStatistics statistics = auditAspect.getPlan(method, null).getStatistics();
+        ObjectName objectName = new ObjectName("fr.xebia.audit:type=AuditedMethod,name="
+                + ObjectName.quote("fr.xebia.audit.SimpleAuditedService.find(java.lang.String)"));
+        try {
+            statistics.record(2000000, false);
+            statistics.record(3000000, true);
+
+            assertEquals(Long.valueOf(1), mbeanServer.getAttribute(objectName, "SuccessCount"));
+            assertEquals(Long.valueOf(1), mbeanServer.getAttribute(objectName, "FailureCount"));
+            assertEquals(Long.valueOf(3000), mbeanServer.getAttribute(objectName, "MaxInMicros"));
+
+            mbeanServer.invoke(objectName, "reset", null, null);
+
+            assertEquals(0, statistics.getInvocationCount());
+        } finally {
+            auditAspect.destroy();
+        }
+        assertTrue(!mbeanServer.isRegistered(objectName));
+    }
+
+    @Test
+    public void testStatisticsMBeanOfAnotherAspectIsKept() throws Exception {
+        Method method = SimpleAuditedService.class.getMethod("find", String.class);
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        AuditAspect auditAspect = new AuditAspect();
+        auditAspect.setExportStatistics(true);
+        auditAspect.setMbeanServer(mbeanServer);
+        AuditAspect otherAuditAspect = new AuditAspect();
+        otherAuditAspect.setExportStatistics(true);
+        otherAuditAspect.setMbeanServer(mbeanServer);
+
+        ObjectName objectName = new ObjectName("fr.xebia.audit:type=AuditedMethod,name="
+                + ObjectName.quote("fr.xebia.audit.SimpleAuditedService.find(java.lang.String)"));
+        ObjectName otherObjectName = new ObjectName(objectName + ",instance=2");
+        try {
+            auditAspect.getPlan(method, null).getStatistics().record(2000000, false);
+            otherAuditAspect.getPlan(method, null);
+
+            assertEquals(Long.valueOf(1), mbeanServer.getAttribute(objectName, "SuccessCount"));
+            assertEquals(Long.valueOf(0), mbeanServer.getAttribute(otherObjectName, "SuccessCount"));
+
+            otherAuditAspect.destroy();
+
+            assertTrue(mbeanServer.isRegistered(objectName));
+            assertTrue(!mbeanServer.isRegistered(otherObjectName));
+        } finally {
+            otherAuditAspect.destroy();
+            auditAspect.destroy();
+        }
+        assertTrue(!mbeanServer.isRegistered(objectName));
+    }
+}
@@ -16,6 +16,8 @@
 
 package fr.xebia.audit;
 
+import java.util.List;
+
 /**
  * @author David Galichet
  */
@@ -31,6 +33,39 @@ public class SimpleAuditedService {
         }
     }
 
+    @Audited(message = "rename(#{#customer.name}, #{#newName})")
+    public Customer rename(Customer customer, String newName) {
+        customer.setName(newName);
+        return customer;
+    }
+
+    @Audited(message = "importCustomers(#{args[0].size()}): #{returned}")
+    public int importCustomers(List<Customer> customers) {
+        int imported = 0;
+        for (Customer customer : customers) {
+            try {
+                save(customer);
+                imported++;
+            } catch (IllegalArgumentException e) {
+                // skip the invalid customers
+            }
+        }
+        return imported;
+    }
+
+    @Audited(message = "pending(): #{returned}")
+    public Object pending(Object future) {
+        return future;
+    }
+
+    @Audited(message = "find(#{args[0]})", sampleRate = 0.25)
+    public String find(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("null name");
+        }
+        return name;
+    }
+
     public static class Customer {
         private Long id;
         private String name;
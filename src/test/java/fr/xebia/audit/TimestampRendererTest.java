@@ -0,0 +1,60 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class TimestampRendererTest {
+
+    @Test
+    public void testSameOutputAsSimpleDateFormat() throws Exception {
+        TimeZone timeZone = TimeZone.getTimeZone("Europe/Paris");
+        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+        simpleDateFormat.setTimeZone(timeZone);
+        TimestampRenderer timestampRenderer = new TimestampRenderer(AuditClock.SYSTEM, timeZone);
+
+        // around the 2012-03-25 daylight saving time change in Paris
+        long dstChange = simpleDateFormat.parse("2012-03-25T03:00:00.000+0200").getTime();
+        long[] timestamps = { 0, 1, 999, 1000, -1, -999, -1001, dstChange - 1, dstChange, dstChange + 1, 1350000000123L };
+        for (long timestamp : timestamps) {
+            assertEquals("timestamp " + timestamp, simpleDateFormat.format(new Date(timestamp)), timestampRenderer.render(timestamp));
+        }
+        for (long timestamp = dstChange - 5000; timestamp < dstChange + 5000; timestamp += 7) {
+            assertEquals("timestamp " + timestamp, simpleDateFormat.format(new Date(timestamp)), timestampRenderer.render(timestamp));
+        }
+    }
+
+    @Test
+    public void testAppendNowUsesClock() {
+        AuditClock clock = new AuditClock() {
+            public long currentTimeMillis() {
+                return 1350000000123L;
+            }
+        };
+        TimestampRenderer timestampRenderer = new TimestampRenderer(clock, TimeZone.getTimeZone("UTC"));
+
+        StringBuilder sb = new StringBuilder("at ");
+        timestampRenderer.appendNow(sb);
+
+        assertEquals("at 2012-10-12T00:00:00.123+0000", sb.toString());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.Method;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.xebia.audit.AuditEvent;
+import fr.xebia.audit.journal.AuditJournalEntry;
+
+public class AuditArchiveTest {
+
+    private static final String[] PRINCIPALS = { "alice", "bob", "carol", null };
+
+    private static final long T0 = 1350000000000L;
+
+    private File directory;
+
+    @Before
+    public void before() throws Exception {
+        directory = File.createTempFile("audit-archive", "");
+        directory.delete();
+    }
+
+    @After
+    public void after() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private AuditArchive newArchive() {
+        AuditArchive archive = new AuditArchive();
+        archive.setDirectory(directory);
+        archive.setSegmentSize(32 * 1024);
+        archive.setBlockSize(2 * 1024);
+        return archive;
+    }
+
+    private void write(AuditArchive archive, int from, int to) throws Exception {
+        Method method = String.class.getMethod("length");
+        for (int i = from; i < to; i++) {
+            String principal = PRINCIPALS[i % PRINCIPALS.length];
+            archive.write(new AuditEvent(method, "template", null, null, null, i % 10 == 0 ? new IllegalStateException() : null,
+                    principal, "10.0.0." + (i % 256), T0 + i * 1000L, i), "event-" + i + " by " + principal);
+        }
+    }
+
+    @Test
+    public void testQueryByTimeRangeAndPrincipal() throws Exception {
+        AuditArchive archive = newArchive();
+        archive.afterPropertiesSet();
+        write(archive, 0, 4000);
+        archive.destroy();
+
+        assertEquals(4000, archive.getWrittenCount());
+        assertTrue("sealed " + archive.getSealedCount(), archive.getSealedCount() > 3);
+        assertEquals(0, AuditArchiveFormat.listSegments(directory, "audit-", AuditArchiveFormat.ACTIVE_SUFFIX).length);
+
+        AuditArchiveReader reader = new AuditArchiveReader(directory, "audit-");
+        AuditArchiveCursor all = reader.query(Long.MIN_VALUE, Long.MAX_VALUE);
+        int count = 0;
+        while (all.read() != null) {
+            count++;
+        }
+        long totalBlocks = all.getDecompressedBlockCount();
+        all.close();
+        assertEquals(4000, count);
+
+        // bob between events 1000 and 2000, bounds included
+        AuditArchiveCursor cursor = reader.query(T0 + 1000 * 1000L, T0 + 2000 * 1000L, "bob");
+        try {
+            for (int i = 1001; i <= 2000; i += PRINCIPALS.length) {
+                AuditJournalEntry entry = cursor.read();
+                assertEquals("event-" + i + " by bob", entry.getMessage());
+                assertEquals("bob", entry.getPrincipal());
+                assertEquals(T0 + i * 1000L, entry.getTimestampInMillis());
+                assertEquals(i % 10 == 0, entry.isFailure());
+                assertEquals("java.lang.String.length", entry.getMethod());
+                assertEquals("10.0.0." + (i % 256), entry.getRemoteAddress());
+            }
+            assertNull(cursor.read());
+            assertTrue(cursor.getDecompressedBlockCount() + " of " + totalBlocks + " blocks",
+                    cursor.getDecompressedBlockCount() * 3 < totalBlocks);
+        } finally {
+            cursor.close();
+        }
+
+        cursor = reader.query(T0, T0 + 10000 * 1000L, "dave");
+        assertNull(cursor.read());
+        assertEquals(0, cursor.getDecompressedBlockCount());
+        cursor.close();
+    }
+
+    @Test
+    public void testActiveSegmentIsQueriedAndSealedOnReopen() throws Exception {
+        AuditArchive archive = newArchive();
+        archive.setSegmentSize(Long.MAX_VALUE);
+        archive.open();
+        write(archive, 0, 100);
+        archive.flush();
+
+        AuditArchiveReader reader = new AuditArchiveReader(directory, "audit-");
+        AuditArchiveCursor cursor = reader.query(T0 + 10 * 1000L, T0 + 19 * 1000L, "carol");
+        assertEquals("event-10 by carol", cursor.read().getMessage());
+        assertEquals("event-14 by carol", cursor.read().getMessage());
+        assertEquals("event-18 by carol", cursor.read().getMessage());
+        assertNull(cursor.read());
+        cursor.close();
+
+        // simulate a crash: the active segment is left as is
+        AuditArchive reopened = newArchive();
+        reopened.open();
+        write(reopened, 100, 110);
+        reopened.close();
+
+        assertEquals(2, reopened.getSealedCount());
+        cursor = reader.query(T0 + 95 * 1000L, T0 + 104 * 1000L, null);
+        for (int i = 95; i <= 104; i++) {
+            assertEquals("event-" + i + " by " + PRINCIPALS[i % PRINCIPALS.length], cursor.read().getMessage());
+        }
+        assertNull(cursor.read());
+        cursor.close();
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.context.support.GenericApplicationContext;
+
+import fr.xebia.audit.AuditAspect;
+import fr.xebia.audit.AuditEvent;
+import fr.xebia.audit.AuditSink;
+
+/**
+ * The classes of these tests are compiled with <code>javac</code> at runtime:
+ * the classes of this project are woven by the AspectJ compiler.
+ */
+public class IndexedAuditProxyCreatorTest {
+
+    private static final String AUDITED_SERVICE = "package sample;\n" //
+            + "public class AuditedService {\n" //
+            + "    @fr.xebia.audit.Audited(message = \"transfer(#{args[0]})\")\n" //
+            + "    public String transfer(String account) { return \"done\"; }\n" //
+            + "    public String find() { return \"found\"; }\n" //
+            + "    public static class Inner {\n" //
+            + "        @fr.xebia.audit.Audited(message = \"inner()\")\n" //
+            + "        public void inner() { }\n" //
+            + "    }\n" //
+            + "}\n";
+
+    private static final String OTHER_AUDITED_SERVICE = "package sample;\n" //
+            + "public class OtherAuditedService {\n" //
+            + "    @fr.xebia.audit.Audited(message = \"other()\")\n" //
+            + "    public void other() { }\n" //
+            + "}\n";
+
+    private static final String ACCOUNT_SERVICE = "package sample;\n" //
+            + "public interface AccountService {\n" //
+            + "    String open(String account);\n" //
+            + "}\n";
+
+    private static final String SAVINGS_ACCOUNT_SERVICE = "package sample;\n" //
+            + "public class SavingsAccountService implements AccountService {\n" //
+            + "    @fr.xebia.audit.Audited(message = \"openSavings(#{args[0]})\")\n" //
+            + "    public String open(String account) { return \"savings\"; }\n" //
+            + "}\n";
+
+    private static final String CHECKING_ACCOUNT_SERVICE = "package sample;\n" //
+            + "public class CheckingAccountService implements AccountService {\n" //
+            + "    @fr.xebia.audit.Audited(message = \"openChecking(#{args[0]})\")\n" //
+            + "    public String open(String account) { return \"checking\"; }\n" //
+            + "}\n";
+
+    private static final String PLAIN_SERVICE = "package sample;\n" //
+            + "public class PlainService {\n" //
+            + "    public String find() { return \"found\"; }\n" //
+            + "}\n";
+
+    private File directory;
+
+    private void compile(String className, String source) throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assume.assumeNotNull(compiler);
+
+        File sourceFile = new File(directory, "src/" + className.replace('.', '/') + ".java");
+        sourceFile.getParentFile().mkdirs();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(sourceFile), "UTF-8");
+        try {
+            writer.write(source);
+        } finally {
+            writer.close();
+        }
+        File classes = new File(directory, "classes");
+        classes.mkdirs();
+
+        String classPath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+        try {
+            Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjects(sourceFile);
+            List<String> options = Arrays.asList("-d", classes.getPath(), "-classpath", classes.getPath() + File.pathSeparator
+                    + classPath);
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, null, options, null, units);
+            task.setProcessors(Arrays.asList(new AuditedIndexProcessor()));
+            assertTrue("compilation of " + className, task.call());
+        } finally {
+            fileManager.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Before
+    public void before() throws Exception {
+        directory = File.createTempFile("audited-index", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void after() {
+        delete(directory);
+    }
+
+    @Test
+    public void testIndexIsWrittenAndMergedOnIncrementalCompilation() throws Exception {
+        compile("sample.AuditedService", AUDITED_SERVICE);
+        compile("sample.PlainService", PLAIN_SERVICE);
+        compile("sample.OtherAuditedService", OTHER_AUDITED_SERVICE);
+
+        URLClassLoader classLoader = new URLClassLoader(new URL[] { new File(directory, "classes").toURI().toURL() }, null);
+        AuditedClassIndex index = AuditedClassIndex.load(classLoader);
+        assertEquals(new HashSet<String>(Arrays.asList("sample.AuditedService", "sample.AuditedService$Inner",
+                "sample.OtherAuditedService")), index.getClassNames());
+    }
+
+    @Test
+    public void testOnlyIndexedBeansAreProxied() throws Exception {
+        compile("sample.AuditedService", AUDITED_SERVICE);
+        compile("sample.PlainService", PLAIN_SERVICE);
+        ClassLoader classLoader = new URLClassLoader(new URL[] { new File(directory, "classes").toURI().toURL() },
+                getClass().getClassLoader());
+
+        final List<String> messages = new ArrayList<String>();
+        AuditAspect auditAspect = new AuditAspect();
+        auditAspect.setAuditSink(new AuditSink() {
+            public void write(AuditEvent event, String message) {
+                messages.add(message);
+            }
+        });
+        auditAspect.afterPropertiesSet();
+
+        GenericApplicationContext context = new GenericApplicationContext();
+        context.setClassLoader(classLoader);
+        context.getBeanFactory().registerSingleton("auditAspect", auditAspect);
+        RootBeanDefinition proxyCreator = new RootBeanDefinition(IndexedAuditProxyCreator.class);
+        proxyCreator.getPropertyValues().addPropertyValue("auditAspect", auditAspect);
+        context.registerBeanDefinition("proxyCreator", proxyCreator);
+        context.registerBeanDefinition("auditedService", new RootBeanDefinition(classLoader.loadClass("sample.AuditedService")));
+        context.registerBeanDefinition("plainService", new RootBeanDefinition(classLoader.loadClass("sample.PlainService")));
+        context.refresh();
+        try {
+            Object auditedService = context.getBean("auditedService");
+            Object plainService = context.getBean("plainService");
+            assertTrue(AopUtils.isAopProxy(auditedService));
+            assertFalse(AopUtils.isAopProxy(plainService));
+            assertNotNull(context.getBean(IndexedAuditProxyCreator.class).getIndex());
+
+            assertEquals("done", auditedService.getClass().getMethod("transfer", String.class).invoke(auditedService, "acc-1"));
+            assertEquals("found", auditedService.getClass().getMethod("find").invoke(auditedService));
+            assertEquals(1, messages.size());
+            assertTrue(messages.get(0), messages.get(0).contains("transfer(acc-1)"));
+        } finally {
+            context.close();
+            auditAspect.destroy();
+        }
+    }
+
+    @Test
+    public void testImplementationsOfTheSameInterfaceHaveTheirOwnPlan() throws Exception {
+        compile("sample.AccountService", ACCOUNT_SERVICE);
+        compile("sample.SavingsAccountService", SAVINGS_ACCOUNT_SERVICE);
+        compile("sample.CheckingAccountService", CHECKING_ACCOUNT_SERVICE);
+        ClassLoader classLoader = new URLClassLoader(new URL[] { new File(directory, "classes").toURI().toURL() },
+                getClass().getClassLoader());
+
+        final List<String> messages = new ArrayList<String>();
+        AuditAspect auditAspect = new AuditAspect();
+        auditAspect.setAuditSink(new AuditSink() {
+            public void write(AuditEvent event, String message) {
+                messages.add(message);
+            }
+        });
+        auditAspect.afterPropertiesSet();
+
+        GenericApplicationContext context = new GenericApplicationContext();
+        context.setClassLoader(classLoader);
+        context.getBeanFactory().registerSingleton("auditAspect", auditAspect);
+        RootBeanDefinition proxyCreator = new RootBeanDefinition(IndexedAuditProxyCreator.class);
+        proxyCreator.getPropertyValues().addPropertyValue("auditAspect", auditAspect);
+        context.registerBeanDefinition("proxyCreator", proxyCreator);
+        context.registerBeanDefinition("savingsAccountService",
+                new RootBeanDefinition(classLoader.loadClass("sample.SavingsAccountService")));
+        context.registerBeanDefinition("checkingAccountService",
+                new RootBeanDefinition(classLoader.loadClass("sample.CheckingAccountService")));
+        context.refresh();
+        try {
+            Method open = classLoader.loadClass("sample.AccountService").getMethod("open", String.class);
+            Object savingsAccountService = context.getBean("savingsAccountService");
+            Object checkingAccountService = context.getBean("checkingAccountService");
+            assertTrue(AopUtils.isJdkDynamicProxy(savingsAccountService));
+            assertTrue(AopUtils.isJdkDynamicProxy(checkingAccountService));
+
+            assertEquals("savings", open.invoke(savingsAccountService, "acc-1"));
+            assertEquals("checking", open.invoke(checkingAccountService, "acc-2"));
+            assertEquals(2, messages.size());
+            assertTrue(messages.get(0), messages.get(0).contains("openSavings(acc-1)"));
+            assertTrue(messages.get(1), messages.get(1).contains("openChecking(acc-2)"));
+        } finally {
+            context.close();
+            auditAspect.destroy();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.jdbc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import fr.xebia.audit.AuditEvent;
+
+public class JdbcAuditSinkTest {
+
+    private SingleConnectionDataSource dataSource;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private JdbcAuditSink sink;
+
+    @Before
+    public void before() throws Exception {
+        dataSource = new SingleConnectionDataSource("jdbc:h2:mem:audit-sink-db", "sa", "", false);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+
+        sink = new JdbcAuditSink();
+        sink.setDataSource(dataSource);
+        sink.setBatchSize(10);
+        sink.setFlushIntervalInMillis(60000);
+        sink.setInitialBackoffInMillis(1);
+        sink.setMaxBackoffInMillis(2);
+    }
+
+    @After
+    public void after() throws Exception {
+        sink.destroy();
+        dataSource.destroy();
+    }
+
+    private void createTable() throws Exception {
+        Connection connection = dataSource.getConnection();
+        connection.createStatement().execute(
+                "create table audit_events(event_timestamp timestamp, principal varchar(256), remote_address varchar(64), "
+                        + "method varchar(512), duration_in_nanos bigint, failure int, message varchar(4000))");
+    }
+
+    @Test
+    public void testBatchInsertOnSizeThreshold() throws Exception {
+        createTable();
+        sink.afterPropertiesSet();
+
+        for (int i = 0; i < 25; i++) {
+            sink.write(new AuditEvent("message " + i, null, null, null, i % 2 == 0 ? null : new RuntimeException(), "ze-principal",
+                    "10.0.0.1", 1350000000000L + i, 1000), "message " + i);
+        }
+        // two full batches are inserted by the background thread
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sink.getWrittenCount() < 20 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(20, sink.getWrittenCount());
+        assertEquals(5, sink.getPendingCount());
+
+        sink.flush();
+
+        assertEquals(25, jdbcTemplate.queryForInt("select count(*) from audit_events"));
+        assertEquals(12, jdbcTemplate.queryForInt("select count(*) from audit_events where failure = 1"));
+        Map<String, Object> row = jdbcTemplate.queryForMap("select * from audit_events where message = 'message 3'");
+        assertEquals("ze-principal", row.get("PRINCIPAL"));
+        assertEquals("10.0.0.1", row.get("REMOTE_ADDRESS"));
+        assertEquals(1000L, ((Number) row.get("DURATION_IN_NANOS")).longValue());
+        assertEquals(0, sink.getPendingCount());
+        assertEquals(0, sink.getDroppedCount());
+    }
+
+    @Test
+    public void testFailedBatchIsDroppedAfterRetries() throws Exception {
+        // no audit_events table
+        sink.setMaxRetries(2);
+        sink.afterPropertiesSet();
+
+        for (int i = 0; i < 3; i++) {
+            sink.write(new AuditEvent("message " + i, null, null, null, null, "ze-principal", null, 1350000000000L, 1000), "message " + i);
+        }
+        sink.flush();
+
+        assertEquals(3, sink.getDroppedCount());
+        assertEquals(0, sink.getWrittenCount());
+        assertEquals(0, sink.getPendingCount());
+
+        createTable();
+        sink.write(new AuditEvent("message", null, null, null, null, "ze-principal", null, 1350000000000L, 1000), "message");
+        sink.flush();
+
+        assertEquals(1, sink.getWrittenCount());
+        assertEquals(1, jdbcTemplate.queryForInt("select count(*) from audit_events"));
+    }
+
+    @Test
+    public void testEventsDroppedWhenTooManyPending() throws Exception {
+        createTable();
+        sink.setMaxPendingEvents(5);
+        sink.setBatchSize(100);
+        sink.afterPropertiesSet();
+
+        for (int i = 0; i < 8; i++) {
+            sink.write(new AuditEvent("message " + i, null, null, null, null, "ze-principal", null, 1350000000000L, 1000), "message " + i);
+        }
+
+        assertEquals(5, sink.getPendingCount());
+        assertEquals(3, sink.getDroppedCount());
+
+        sink.destroy();
+
+        assertEquals(5, jdbcTemplate.queryForInt("select count(*) from audit_events"));
+    }
+
+    @Test
+    public void testEventsDroppedAfterDestroy() throws Exception {
+        createTable();
+        sink.afterPropertiesSet();
+        sink.destroy();
+
+        sink.write(new AuditEvent("message", null, null, null, null, "ze-principal", null, 1350000000000L, 1000), "message");
+
+        assertEquals(0, sink.getPendingCount());
+        assertEquals(1, sink.getDroppedCount());
+    }
+
+    @Test
+    public void testUnexpectedExceptionDropsTheBatch() throws Exception {
+        sink.setJdbcTemplate(new JdbcTemplate(dataSource) {
+            @Override
+            public int[] batchUpdate(String sql, BatchPreparedStatementSetter pss) {
+                throw new IllegalStateException("not a database failure");
+            }
+        });
+        sink.afterPropertiesSet();
+
+        for (int i = 0; i < 3; i++) {
+            sink.write(new AuditEvent("message " + i, null, null, null, null, "ze-principal", null, 1350000000000L, 1000), "message " + i);
+        }
+        sink.flush();
+
+        assertEquals(3, sink.getDroppedCount());
+        assertEquals(0, sink.getPendingCount());
+    }
+}
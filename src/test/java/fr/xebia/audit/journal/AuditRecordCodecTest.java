@@ -0,0 +1,73 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class AuditRecordCodecTest {
+
+    @Test
+    public void testEventWithMethodId() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(1350000000000L);
+        out.writeLong(2000);
+        out.writeByte(0);
+        out.writeInt(7);
+        out.writeInt(-1);
+        out.writeInt(-1);
+        out.writeInt(2);
+        out.write("ok".getBytes("UTF-8"));
+        out.close();
+
+        AuditJournalEntry entry = AuditRecordCodec.readEvent(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                Collections.singletonMap(Integer.valueOf(7), "fr.xebia.Service.save"));
+        assertEquals("fr.xebia.Service.save", entry.getMethod());
+        assertNull(entry.getPrincipal());
+        assertEquals("ok", entry.getMessage());
+    }
+
+    @Test
+    public void testEventWithMethodName() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int size = AuditRecordCodec.writeEvent(out, 1350000000000L, 2000, true, "fr.xebia.Service.save", "pr\u00efncipal", null,
+                "save(John)");
+        out.close();
+        assertEquals(bytes.size(), size);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(size - 4, in.readInt());
+        AuditJournalEntry entry = AuditRecordCodec.readEvent(in, null);
+        assertEquals(1350000000000L, entry.getTimestampInMillis());
+        assertEquals(2000, entry.getDurationInNanos());
+        assertTrue(entry.isFailure());
+        assertEquals("fr.xebia.Service.save", entry.getMethod());
+        assertEquals("pr\u00efncipal", entry.getPrincipal());
+        assertNull(entry.getRemoteAddress());
+        assertEquals("save(John)", entry.getMessage());
+    }
+}
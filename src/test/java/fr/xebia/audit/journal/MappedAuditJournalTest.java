@@ -0,0 +1,136 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.Method;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.xebia.audit.AuditEvent;
+
+public class MappedAuditJournalTest {
+
+    private File directory;
+
+    @Before
+    public void before() throws Exception {
+        directory = File.createTempFile("audit-journal", "");
+        directory.delete();
+    }
+
+    @After
+    public void after() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testWriteRolloverAndRead() throws Exception {
+        Method method = String.class.getMethod("length");
+
+        MappedAuditJournal journal = new MappedAuditJournal();
+        journal.setDirectory(directory);
+        journal.setSegmentSize(4096);
+        journal.afterPropertiesSet();
+        int count = 200;
+        for (int i = 0; i < count; i++) {
+            boolean failure = i % 10 == 0;
+            AuditEvent event = new AuditEvent(i % 2 == 0 ? method : null, "template", null, null, null,
+                    failure ? new IllegalStateException() : null, i % 3 == 0 ? null : "user-" + i, "10.0.0." + (i % 256), 1000L + i,
+                    i * 1000L);
+            journal.write(event, "message-" + i + " é");
+        }
+        journal.destroy();
+
+        assertTrue("segments " + journal.getSegmentIndex(), journal.getSegmentIndex() > 1);
+        assertEquals(count, journal.getWrittenCount());
+
+        AuditJournalReader reader = new AuditJournalReader(directory, "audit-");
+        try {
+            for (int i = 0; i < count; i++) {
+                AuditJournalEntry entry = reader.read();
+                assertEquals("message-" + i + " é", entry.getMessage());
+                assertEquals(1000L + i, entry.getTimestampInMillis());
+                assertEquals(i * 1000L, entry.getDurationInNanos());
+                assertEquals(i % 10 == 0, entry.isFailure());
+                assertEquals(i % 3 == 0 ? null : "user-" + i, entry.getPrincipal());
+                assertEquals("10.0.0." + (i % 256), entry.getRemoteAddress());
+                assertEquals(i % 2 == 0 ? "java.lang.String.length" : null, entry.getMethod());
+            }
+            assertNull(reader.read());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testReopenAppendsNewSegmentAndRejectsOversizedEvents() throws Exception {
+        MappedAuditJournal journal = new MappedAuditJournal();
+        journal.setDirectory(directory);
+        journal.setSegmentSize(1024);
+        journal.open();
+        journal.write(new AuditEvent("t", null, null, null, null, "first", null, 1, 0), "first");
+        journal.write(new AuditEvent("t", null, null, null, null, "big", null, 2, 0), new String(new char[2000]));
+        journal.close();
+        assertEquals(1, journal.getRejectedCount());
+
+        journal.open();
+        journal.write(new AuditEvent("t", null, null, null, null, "second", null, 3, 0), "second");
+        journal.close();
+        assertEquals(2, journal.getSegmentIndex());
+
+        AuditJournalReader reader = new AuditJournalReader(directory, "audit-");
+        assertEquals("first", reader.read().getMessage());
+        assertEquals("second", reader.read().getMessage());
+        assertNull(reader.read());
+        reader.close();
+        assertEquals(2, journal.getWrittenCount());
+    }
+
+    @Test
+    public void testCharSequenceIsEncodedLikeStringGetBytes() throws Exception {
+        String[] messages = { "ascii", "caf\u00e9 \u20ac", "emoji \ud83d\ude00", "unpaired \ud83d high", "unpaired \ude00 low", "end \ud83d" };
+        MappedAuditJournal journal = new MappedAuditJournal();
+        journal.setDirectory(directory);
+        journal.setSegmentSize(4096);
+        journal.open();
+        for (String message : messages) {
+            journal.write(new AuditEvent("t", null, null, null, null, "pr\u00efncipal", null, 1, 0), new StringBuilder(message));
+        }
+        journal.close();
+
+        AuditJournalReader reader = new AuditJournalReader(directory, "audit-");
+        for (String message : messages) {
+            AuditJournalEntry entry = reader.read();
+            assertEquals(new String(message.getBytes("UTF-8"), "UTF-8"), entry.getMessage());
+            assertEquals("pr\u00efncipal", entry.getPrincipal());
+        }
+        assertNull(reader.read());
+        reader.close();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.audit.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.authentication.WebAuthenticationDetails;
+
+import fr.xebia.audit.AuditContext;
+import fr.xebia.audit.AuditContextHolder;
+
+public class AuditContextFilterTest {
+
+    private static void authenticate(String principal, String remoteAddress) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr(remoteAddress);
+        UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken(principal, "ze-credentials");
+        authentication.setDetails(new WebAuthenticationDetails(request));
+        SecurityContextHolder.getContext().setAuthentication(authentication);
+    }
+
+    @After
+    public void after() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testContextIsSharedWithinRequest() throws Exception {
+        final AtomicInteger invocations = new AtomicInteger();
+
+        new AuditContextFilter().doFilter(new MockHttpServletRequest(), new MockHttpServletResponse(), new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+                invocations.incrementAndGet();
+                assertTrue(AuditContextHolder.isInRequest());
+
+                AuditContext anonymous = AuditContextHolder.getContext();
+                assertEquals(" by anonymous", anonymous.getSuffix());
+                assertSame(anonymous, AuditContextHolder.getContext());
+
+                // login during the request
+                authenticate("ze-principal", "10.0.0.1");
+                AuditContext authenticated = AuditContextHolder.getContext();
+                assertEquals(" by ze-principal coming from 10.0.0.1", authenticated.getSuffix());
+                assertSame(authenticated, AuditContextHolder.getContext());
+
+                // nested dispatch of the same request
+                assertFalse(AuditContextHolder.beginRequest());
+                assertSame(authenticated, AuditContextHolder.getContext());
+            }
+        });
+
+        assertEquals(1, invocations.get());
+        assertFalse(AuditContextHolder.isInRequest());
+    }
+
+    @Test
+    public void testContextIsRebuiltOutsideOfRequest() {
+        authenticate("ze-principal", "10.0.0.1");
+
+        AuditContext context = AuditContextHolder.getContext();
+
+        assertEquals("ze-principal", context.getPrincipal());
+        assertEquals("10.0.0.1", context.getRemoteAddress());
+        assertNotSame(context, AuditContextHolder.getContext());
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.providers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.util.Collections;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.LockedException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.GrantedAuthorityImpl;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.security.web.authentication.WebAuthenticationDetails;
+
+import fr.xebia.springframework.security.core.providers.AuthenticationStatistics.Outcome;
+import fr.xebia.springframework.security.core.providers.AuthenticationStatistics.Stage;
+import fr.xebia.springframework.security.core.userdetails.ExtendedUser;
+import fr.xebia.springframework.security.core.userdetails.jdbc.ExtendedJdbcUserDetailsManager;
+
+public class AuthenticationStatisticsTest {
+
+    private static UsernamePasswordAuthenticationToken newAuthentication(String username, String password, String remoteAddr) {
+        UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken(username, password);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr(remoteAddr);
+        authentication.setDetails(new WebAuthenticationDetails(request));
+        return authentication;
+    }
+
+    private static void authenticateAndFail(ExtendedDaoAuthenticationProvider provider, String username, String password,
+            String remoteAddr, Class<? extends AuthenticationException> expectedException) {
+        try {
+            provider.authenticate(newAuthentication(username, password, remoteAddr));
+            fail("expected exception");
+        } catch (AuthenticationException e) {
+            assertEquals(expectedException, e.getClass());
+        }
+    }
+
+    @Test
+    public void testExtraColumnsQueryIsTimed() throws Exception {
+        SingleConnectionDataSource dataSource = new SingleConnectionDataSource("jdbc:h2:mem:authentication-statistics-db", "sa", "",
+                true);
+        try {
+            Connection connection = dataSource.getConnection();
+            connection.createStatement().execute(
+                    "create table users(username varchar(256), password varchar(256), enabled int, allowedRemoteAddresses varchar(256), comments varchar(256))");
+            connection.createStatement().execute("create table authorities(username varchar(256), authority varchar(256))");
+
+            AuthenticationStatistics statistics = new AuthenticationStatistics();
+            ExtendedJdbcUserDetailsManager userDetailsManager = new ExtendedJdbcUserDetailsManager();
+            userDetailsManager.setDataSource(dataSource);
+            userDetailsManager.setStatistics(statistics);
+            userDetailsManager.createUser(new ExtendedUser("john", "password", true, true, true, true, Collections
+                    .<GrantedAuthority> singletonList(new GrantedAuthorityImpl("ROLE_USER"))));
+            ExtendedDaoAuthenticationProvider provider = new ExtendedDaoAuthenticationProvider();
+            provider.setUserDetailsService(userDetailsManager);
+            provider.setStatistics(statistics);
+
+            provider.authenticate(newAuthentication("john", "password", "10.0.0.1"));
+
+            assertEquals(1, statistics.getSuccessCount());
+            assertEquals(1, statistics.getStage(Stage.USER_LOAD).getCount());
+            assertEquals(1, statistics.getStage(Stage.EXTRA_COLUMNS_QUERY).getCount());
+            assertTrue(statistics.getStage(Stage.EXTRA_COLUMNS_QUERY).getHistogram().getMax() <= statistics.getStage(Stage.USER_LOAD)
+                    .getHistogram().getMax());
+        } finally {
+            dataSource.destroy();
+        }
+    }
+
+    @Test
+    public void testMBeans() throws Exception {
+        MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+        AuthenticationStatistics statistics = new AuthenticationStatistics();
+        statistics.setName("back-office");
+        statistics.setMbeanServer(mbeanServer);
+        statistics.afterPropertiesSet();
+
+        ObjectName objectName = new ObjectName("fr.xebia.springframework.security:type=Authentication,name=\"back-office\"");
+        ObjectName stageObjectName = new ObjectName(
+                "fr.xebia.springframework.security:type=AuthenticationStage,authentication=\"back-office\",name=passwordVerification");
+        try {
+            statistics.record(Outcome.SUCCESS);
+            statistics.record(Stage.PASSWORD_VERIFICATION, 2000000);
+
+            assertEquals(Long.valueOf(1), mbeanServer.getAttribute(objectName, "SuccessCount"));
+            assertEquals(Long.valueOf(2000), mbeanServer.getAttribute(stageObjectName, "MaxInMicros"));
+
+            mbeanServer.setAttribute(objectName, new Attribute("Enabled", Boolean.FALSE));
+            assertFalse(statistics.isEnabled());
+
+            mbeanServer.invoke(objectName, "reset", null, null);
+            assertEquals(0, statistics.getSuccessCount());
+            assertEquals(0, statistics.getStage(Stage.PASSWORD_VERIFICATION).getCount());
+        } finally {
+            statistics.destroy();
+        }
+        assertFalse(mbeanServer.isRegistered(objectName));
+        assertFalse(mbeanServer.isRegistered(stageObjectName));
+    }
+
+    @Test
+    public void testMBeansOfOtherStatisticsAreKept() throws Exception {
+        MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+        AuthenticationStatistics statistics = new AuthenticationStatistics();
+        statistics.setMbeanServer(mbeanServer);
+        statistics.afterPropertiesSet();
+        AuthenticationStatistics otherStatistics = new AuthenticationStatistics();
+        otherStatistics.setMbeanServer(mbeanServer);
+        otherStatistics.afterPropertiesSet();
+
+        ObjectName objectName = new ObjectName("fr.xebia.springframework.security:type=Authentication,name=\"default\"");
+        ObjectName otherObjectName = new ObjectName(objectName + ",instance=2");
+        ObjectName otherStageObjectName = new ObjectName(
+                "fr.xebia.springframework.security:type=AuthenticationStage,authentication=\"default\",name=passwordVerification,instance=2");
+        try {
+            statistics.record(Outcome.SUCCESS);
+
+            assertEquals(Long.valueOf(1), mbeanServer.getAttribute(objectName, "SuccessCount"));
+            assertEquals(Long.valueOf(0), mbeanServer.getAttribute(otherObjectName, "SuccessCount"));
+            assertTrue(mbeanServer.isRegistered(otherStageObjectName));
+
+            otherStatistics.destroy();
+
+            assertTrue(mbeanServer.isRegistered(objectName));
+            assertFalse(mbeanServer.isRegistered(otherObjectName));
+            assertFalse(mbeanServer.isRegistered(otherStageObjectName));
+        } finally {
+            otherStatistics.destroy();
+            statistics.destroy();
+        }
+        assertFalse(mbeanServer.isRegistered(objectName));
+    }
+
+    @Test
+    public void testStagesAndOutcomes() {
+        ExtendedDaoAuthenticationProvider provider = new ExtendedDaoAuthenticationProvider();
+        provider.setUserDetailsService(new UserDetailsService() {
+            public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException, DataAccessException {
+                if (username.startsWith("unknown")) {
+                    throw new UsernameNotFoundException(username);
+                }
+                ExtendedUser user = new ExtendedUser(username, "password", true, true, true, !username.startsWith("locked"),
+                        Collections.<GrantedAuthority> emptyList());
+                user.setAllowedRemoteAddresses("10.0.0.0/8");
+                return user;
+            }
+        });
+        AuthenticationStatistics statistics = new AuthenticationStatistics();
+        provider.setStatistics(statistics);
+
+        provider.authenticate(newAuthentication("john", "password", "10.0.0.1"));
+        authenticateAndFail(provider, "john", "wrong-password", "10.0.0.1", BadCredentialsException.class);
+        authenticateAndFail(provider, "john", "password", "192.168.0.1", BadCredentialsException.class);
+        // hidden behind a bad credentials failure but counted as not found
+        authenticateAndFail(provider, "unknown", "password", "10.0.0.1", BadCredentialsException.class);
+        authenticateAndFail(provider, "locked", "password", "10.0.0.1", LockedException.class);
+
+        assertEquals(1, statistics.getSuccessCount());
+        assertEquals(1, statistics.getBadCredentialsCount());
+        assertEquals(1, statistics.getRemoteAddressDeniedCount());
+        assertEquals(1, statistics.getUserNotFoundCount());
+        assertEquals(1, statistics.getOtherFailureCount());
+        assertEquals(5, statistics.getStage(Stage.TOTAL).getCount());
+        assertEquals(5, statistics.getStage(Stage.USER_LOAD).getCount());
+        assertEquals(3, statistics.getStage(Stage.REMOTE_ADDRESS_CHECK).getCount());
+        assertEquals(2, statistics.getStage(Stage.PASSWORD_VERIFICATION).getCount());
+        assertEquals(0, statistics.getStage(Stage.EXTRA_COLUMNS_QUERY).getCount());
+
+        // switched off at runtime: nothing is recorded
+        statistics.setEnabled(false);
+        provider.authenticate(newAuthentication("john", "password", "10.0.0.1"));
+        authenticateAndFail(provider, "unknown", "password", "10.0.0.1", BadCredentialsException.class);
+        assertEquals(1, statistics.getSuccessCount());
+        assertEquals(1, statistics.getUserNotFoundCount());
+        assertEquals(5, statistics.getStage(Stage.TOTAL).getCount());
+
+        statistics.setEnabled(true);
+        provider.setLoginThrottle(new LoginThrottle(60000, 1, 100, 64));
+        authenticateAndFail(provider, "john", "wrong-password", "10.0.0.2", BadCredentialsException.class);
+        authenticateAndFail(provider, "john", "password", "10.0.0.2", LoginThrottledException.class);
+        assertEquals(2, statistics.getBadCredentialsCount());
+        assertEquals(1, statistics.getThrottledCount());
+    }
+}
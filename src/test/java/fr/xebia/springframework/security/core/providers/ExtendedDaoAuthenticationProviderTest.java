@@ -15,22 +15,45 @@
  */
 package fr.xebia.springframework.security.core.providers;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import org.junit.Test;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.LockedException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.authentication.encoding.PlaintextPasswordEncoder;
+import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.web.authentication.WebAuthenticationDetails;
 
 import fr.xebia.springframework.security.core.userdetails.ExtendedUser;
 
 public class ExtendedDaoAuthenticationProviderTest {
 
+    /**
+     * Counts the password verifications.
+     */
+    private static class CountingPasswordEncoder extends PlaintextPasswordEncoder {
+        final AtomicInteger verificationCount = new AtomicInteger();
+
+        @Override
+        public boolean isPasswordValid(String encPass, String rawPass, Object salt) {
+            verificationCount.incrementAndGet();
+            return super.isPasswordValid(encPass, rawPass, salt);
+        }
+    }
+
     @Test
     public void testAdditionalAuthenticationChecksGranted() {
         String allowedRemoteAddresses = "10\\..*";
@@ -53,6 +76,146 @@ public class ExtendedDaoAuthenticationProviderTest {
         }
     }
 
+    @Test
+    public void testAdditionalAuthenticationChecksWithNetworksAndPatterns() {
+        String allowedRemoteAddresses = "10.0.0.0/8, 2001:db8::/32, 192\\.168\\.1\\..*";
+
+        testAdditionalchecks(allowedRemoteAddresses, "10.1.2.3");
+        testAdditionalchecks(allowedRemoteAddresses, "2001:db8:0:1:0:0:0:42");
+        testAdditionalchecks(allowedRemoteAddresses, "192.168.1.42");
+        for (String remoteAddr : new String[] { "11.0.0.1", "2001:db9::1", "192.168.2.1" }) {
+            try {
+                testAdditionalchecks(allowedRemoteAddresses, remoteAddr);
+                fail("expected exception for " + remoteAddr);
+            } catch (BadCredentialsException e) {
+                // ok
+            }
+        }
+    }
+
+    @Test
+    public void testAdditionalAuthenticationChecksWithNetworksOnly() {
+        testAdditionalchecks("10.0.0.0/8", "10.0.0.1");
+        try {
+            testAdditionalchecks("10.0.0.0/8", "9.0.0.1");
+            fail("expected exception");
+        } catch (BadCredentialsException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testChecksBeforePassword() {
+        CountingPasswordEncoder passwordEncoder = new CountingPasswordEncoder();
+        ExtendedDaoAuthenticationProvider provider = new ExtendedDaoAuthenticationProvider();
+        provider.setPasswordEncoder(passwordEncoder);
+        provider.setChecksBeforePassword(Collections.<AuthenticationCheck> singletonList(new AuthenticationCheck() {
+            public void check(UserDetails userDetails, UsernamePasswordAuthenticationToken authentication)
+                    throws AuthenticationException {
+                if ("blocked-user".equals(userDetails.getUsername())) {
+                    throw new LockedException("Blocked");
+                }
+            }
+        }));
+
+        try {
+            provider.additionalAuthenticationChecks(newUser("blocked-user", null), newAuthentication("wrong-password", "10.0.0.1"));
+            fail("expected exception");
+        } catch (LockedException e) {
+            // ok
+        }
+        assertEquals(0, passwordEncoder.verificationCount.get());
+
+        provider.additionalAuthenticationChecks(newUser("test-user", null), newAuthentication("test-password", "10.0.0.1"));
+        assertEquals(1, passwordEncoder.verificationCount.get());
+    }
+
+    @Test
+    public void testOverriddenPatternMatchingIsInvoked() {
+        final AtomicInteger matchCount = new AtomicInteger();
+        ExtendedDaoAuthenticationProvider provider = new ExtendedDaoAuthenticationProvider() {
+            @Override
+            protected boolean matchesOneAddress(String ipAddress, List<Pattern> allowedIpAddresses) {
+                matchCount.incrementAndGet();
+                return ipAddress.startsWith("9.") || super.matchesOneAddress(ipAddress, allowedIpAddresses);
+            }
+        };
+        provider.setDecisionCache(new RemoteAddressDecisionCache(100));
+        ExtendedUser user = newUser("test-user", "10\\..*, 11\\..*");
+
+        provider.additionalAuthenticationChecks(user, newAuthentication("test-password", "9.0.0.1"));
+        provider.additionalAuthenticationChecks(user, newAuthentication("test-password", "10.0.0.1"));
+        try {
+            provider.additionalAuthenticationChecks(user, newAuthentication("test-password", "8.0.0.1"));
+            fail("expected exception");
+        } catch (BadCredentialsException e) {
+            // ok
+        }
+        assertEquals(3, matchCount.get());
+        assertTrue(ExtendedDaoAuthenticationProvider.isPatternMatchingOverridden(provider.getClass()));
+        assertFalse(ExtendedDaoAuthenticationProvider.isPatternMatchingOverridden(ExtendedDaoAuthenticationProvider.class));
+    }
+
+    @Test
+    public void testRemoteAddressCheckedAfterPassword() {
+        CountingPasswordEncoder passwordEncoder = new CountingPasswordEncoder();
+        ExtendedDaoAuthenticationProvider provider = new ExtendedDaoAuthenticationProvider();
+        provider.setPasswordEncoder(passwordEncoder);
+        provider.setRemoteAddressCheckedBeforePassword(false);
+        ExtendedUser user = newUser("test-user", "10\\..*");
+
+        try {
+            provider.additionalAuthenticationChecks(user, newAuthentication("test-password", "9.0.0.1"));
+            fail("expected exception");
+        } catch (BadCredentialsException e) {
+            assertEquals("Access denied from IP : 9.0.0.1", e.getMessage());
+        }
+        assertEquals(1, passwordEncoder.verificationCount.get());
+    }
+
+    @Test
+    public void testRemoteAddressCheckedBeforePassword() {
+        CountingPasswordEncoder passwordEncoder = new CountingPasswordEncoder();
+        ExtendedDaoAuthenticationProvider provider = new ExtendedDaoAuthenticationProvider();
+        provider.setPasswordEncoder(passwordEncoder);
+        ExtendedUser user = newUser("test-user", "10\\..*");
+
+        // same exception and message for a forbidden address as for a wrong
+        // password
+        String wrongPasswordMessage = null;
+        try {
+            provider.additionalAuthenticationChecks(user, newAuthentication("wrong-password", "10.0.0.1"));
+            fail("expected exception");
+        } catch (BadCredentialsException e) {
+            wrongPasswordMessage = e.getMessage();
+        }
+        assertEquals(1, passwordEncoder.verificationCount.get());
+        for (String password : new String[] { "wrong-password", "test-password" }) {
+            try {
+                provider.additionalAuthenticationChecks(user, newAuthentication(password, "9.0.0.1"));
+                fail("expected exception");
+            } catch (BadCredentialsException e) {
+                assertEquals(wrongPasswordMessage, e.getMessage());
+            }
+        }
+        assertEquals(1, passwordEncoder.verificationCount.get());
+    }
+
+    private UsernamePasswordAuthenticationToken newAuthentication(String password, String remoteAddr) {
+        UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken("test-user", password);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr(remoteAddr);
+        authentication.setDetails(new WebAuthenticationDetails(request));
+        return authentication;
+    }
+
+    private ExtendedUser newUser(String username, String allowedRemoteAddresses) {
+        ExtendedUser extendedUser = new ExtendedUser(username, "test-password", true, true, true, true,
+                Collections.<GrantedAuthority> emptyList());
+        extendedUser.setAllowedRemoteAddresses(allowedRemoteAddresses);
+        return extendedUser;
+    }
+
     private void testAdditionalchecks(String allowedRemoteAddresses, String remoteAddr) {
         ExtendedDaoAuthenticationProvider daoAuthenticationProvider = new ExtendedDaoAuthenticationProvider();
 
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.providers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.ProviderManager;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.security.web.authentication.WebAuthenticationDetails;
+
+import fr.xebia.springframework.security.core.userdetails.ExtendedUser;
+
+public class LoginThrottleTest {
+
+    private static UsernamePasswordAuthenticationToken newAuthentication(String username, String password, String remoteAddr) {
+        UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken(username, password);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr(remoteAddr);
+        authentication.setDetails(new WebAuthenticationDetails(request));
+        return authentication;
+    }
+
+    @Test
+    public void testAddressSprayingStaysBounded() {
+        LoginThrottle throttle = new LoginThrottle(60000, 5, 1000, 1024);
+        long now = 1000000;
+        // a brute forcing address
+        for (int i = 0; i < 5; i++) {
+            throttle.recordFailure("admin", "6.6.6.6", now);
+        }
+        // one failure from each of a million spoofed addresses
+        for (int i = 0; i < 1000000; i++) {
+            throttle.recordFailure("user-" + (i & 127), "10." + (i >>> 16) + "." + ((i >>> 8) & 0xff) + "." + (i & 0xff), now);
+        }
+        assertTrue(throttle.getTrackedAddressCount() <= 1024);
+        assertTrue(throttle.getEvictedAddressCount() > 0);
+        // the most failing address is never evicted by the less failing ones
+        try {
+            throttle.checkAllowed("john", "6.6.6.6", now);
+            fail("expected exception");
+        } catch (LoginThrottledException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testConcurrentFailuresAreAllCounted() throws Exception {
+        final LoginThrottle throttle = new LoginThrottle(60000, 40000, 1000000, 64);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 9999; j++) {
+                        throttle.recordFailure("user-" + j, "10.0.0.1", 1000000);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, throttle.getTrackedAddressCount());
+        throttle.checkAllowed("john", "10.0.0.1", 1000000);
+        throttle.recordFailure("john", "10.0.0.1", 1000000);
+        throttle.recordFailure("john", "10.0.0.1", 1000000);
+        throttle.recordFailure("john", "10.0.0.1", 1000000);
+        throttle.recordFailure("john", "10.0.0.1", 1000000);
+        try {
+            throttle.checkAllowed("john", "10.0.0.1", 1000000);
+            fail("expected exception");
+        } catch (LoginThrottledException e) {
+            assertEquals("Too many failed logins from IP : 10.0.0.1", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testProviderRejectsBeforeLoadingTheUser() {
+        final AtomicInteger loadCount = new AtomicInteger();
+        ExtendedDaoAuthenticationProvider provider = new ExtendedDaoAuthenticationProvider();
+        provider.setUserDetailsService(new UserDetailsService() {
+            public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException, DataAccessException {
+                loadCount.incrementAndGet();
+                return new ExtendedUser(username, "password", true, true, true, true, Collections.<GrantedAuthority> emptyList());
+            }
+        });
+        LoginThrottle throttle = new LoginThrottle(60000, 10, 3, 1024);
+        provider.setLoginThrottle(throttle);
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                provider.authenticate(newAuthentication("john", "wrong-password", "10.0.0.1"));
+                fail("expected exception");
+            } catch (BadCredentialsException e) {
+                // ok
+            }
+        }
+        assertEquals(3, loadCount.get());
+        try {
+            provider.authenticate(newAuthentication("john", "password", "10.0.0.2"));
+            fail("expected exception");
+        } catch (LoginThrottledException e) {
+            // ok
+        }
+        assertEquals(3, loadCount.get());
+        assertEquals(1, throttle.getThrottledCount());
+
+        // other users are not throttled, and a success resets their failures
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 2; j++) {
+                try {
+                    provider.authenticate(newAuthentication("jane", "wrong-password", "10.0.0.3"));
+                    fail("expected exception");
+                } catch (BadCredentialsException e) {
+                    // ok
+                }
+            }
+            provider.authenticate(newAuthentication("jane", "password", "10.0.0.3"));
+        }
+        assertEquals(12, loadCount.get());
+    }
+
+    @Test
+    public void testProviderManagerStopsOnThrottledLogin() {
+        final AtomicInteger loadCount = new AtomicInteger();
+        UserDetailsService userDetailsService = new UserDetailsService() {
+            public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException, DataAccessException {
+                loadCount.incrementAndGet();
+                return new ExtendedUser(username, "password", true, true, true, true, Collections.<GrantedAuthority> emptyList());
+            }
+        };
+        ExtendedDaoAuthenticationProvider throttledProvider = new ExtendedDaoAuthenticationProvider();
+        throttledProvider.setUserDetailsService(userDetailsService);
+        throttledProvider.setLoginThrottle(new LoginThrottle(60000, 10, 1, 1024));
+        DaoAuthenticationProvider otherProvider = new DaoAuthenticationProvider();
+        otherProvider.setUserDetailsService(userDetailsService);
+        ProviderManager providerManager = new ProviderManager(Arrays.<AuthenticationProvider> asList(throttledProvider,
+                otherProvider));
+
+        try {
+            providerManager.authenticate(newAuthentication("john", "wrong-password", "10.0.0.1"));
+            fail("expected exception");
+        } catch (BadCredentialsException e) {
+            // ok
+        }
+        assertEquals(2, loadCount.get());
+        try {
+            providerManager.authenticate(newAuthentication("john", "password", "10.0.0.1"));
+            fail("expected exception");
+        } catch (LoginThrottledException e) {
+            // ok
+        }
+        assertEquals(2, loadCount.get());
+    }
+
+    @Test
+    public void testSlidingWindow() {
+        LoginThrottle throttle = new LoginThrottle(60000, 1000, 10, 1024);
+        long windowStart = 60000 * 1000;
+        for (int i = 0; i < 10; i++) {
+            throttle.recordFailure("john", "10.0.0.1", windowStart + 50000);
+        }
+        try {
+            throttle.checkAllowed("john", "10.0.0.2", windowStart + 59999);
+            fail("expected exception");
+        } catch (LoginThrottledException e) {
+            // ok
+        }
+        // the previous window still weighs 3/4 of its count: 7 failures
+        throttle.checkAllowed("john", "10.0.0.2", windowStart + 75000);
+        for (int i = 0; i < 3; i++) {
+            throttle.recordFailure("john", "10.0.0.1", windowStart + 75000);
+        }
+        try {
+            throttle.checkAllowed("john", "10.0.0.2", windowStart + 75000);
+            fail("expected exception");
+        } catch (LoginThrottledException e) {
+            // ok
+        }
+        // two windows later, everything is forgotten
+        throttle.checkAllowed("john", "10.0.0.2", windowStart + 180000);
+
+        throttle.recordSuccess("john");
+        throttle.checkAllowed("john", "10.0.0.2", windowStart + 75000);
+    }
+}
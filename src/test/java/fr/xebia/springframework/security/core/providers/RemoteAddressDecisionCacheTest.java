@@ -0,0 +1,121 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.providers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import org.springframework.security.core.GrantedAuthority;
+
+import fr.xebia.springframework.security.core.userdetails.ExtendedUser;
+
+public class RemoteAddressDecisionCacheTest {
+
+    @Test
+    public void testAllowListChangeInvalidatesDecisions() {
+        ExtendedDaoAuthenticationProvider provider = new ExtendedDaoAuthenticationProvider();
+        RemoteAddressDecisionCache cache = new RemoteAddressDecisionCache(100);
+        provider.setDecisionCache(cache);
+        ExtendedUser user = new ExtendedUser("api-client", "password", true, true, true, true, Collections.<GrantedAuthority> emptyList());
+        user.setAllowedRemoteAddresses("10\\.0\\..*, 192.168.1.0/24");
+
+        assertTrue(provider.matchesOneAddress("10.0.0.1", user));
+        assertTrue(provider.matchesOneAddress("10.0.0.1", user));
+        assertFalse(provider.matchesOneAddress("10.1.0.1", user));
+        assertFalse(provider.matchesOneAddress("10.1.0.1", user));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        user.setAllowedRemoteAddresses("10\\.1\\..*");
+        assertFalse(provider.matchesOneAddress("10.0.0.1", user));
+        assertTrue(provider.matchesOneAddress("10.1.0.1", user));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+
+        // not interned, the patterns may change: not cached
+        user.setAllowedRemoteAddresses(Collections.<Pattern> emptyList());
+        assertTrue(provider.matchesOneAddress("10.0.0.1", user));
+        assertEquals(4, cache.getMissCount());
+        assertEquals(4, cache.getSize());
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final RemoteAddressDecisionCache cache = new RemoteAddressDecisionCache(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger wrongDecisions = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 20000; j++) {
+                        String remoteAddress = "10.0.0." + (j % 200);
+                        boolean expected = j % 200 < 100;
+                        Boolean decision = cache.get("user-" + j % 3, 1, remoteAddress);
+                        if (decision == null) {
+                            cache.put("user-" + j % 3, 1, remoteAddress, expected);
+                        } else if (decision.booleanValue() != expected) {
+                            wrongDecisions.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, wrongDecisions.get());
+        assertEquals(threads.length * 20000, cache.getHitCount() + cache.getMissCount());
+        assertTrue(cache.getSize() <= 64);
+    }
+
+    @Test
+    public void testSizeBasedEviction() {
+        RemoteAddressDecisionCache cache = new RemoteAddressDecisionCache(RemoteAddressDecisionCache.STRIPE_COUNT * 4);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("john", 1, "10.0." + i / 256 + "." + i % 256, true);
+        }
+        assertTrue(cache.getSize() <= cache.getMaxEntries());
+        assertEquals(1000 - cache.getSize(), cache.getEvictedCount());
+        assertNull(cache.get("john", 1, "10.0.0.0"));
+        assertEquals(Boolean.TRUE, cache.get("john", 1, "10.0.3.231"));
+
+        // the key is the whole (username, version, address) triple
+        assertNull(cache.get("jane", 1, "10.0.3.231"));
+        assertNull(cache.get("john", 2, "10.0.3.231"));
+
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.providers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.authentication.encoding.PlaintextPasswordEncoder;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.GrantedAuthorityImpl;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import fr.xebia.springframework.security.core.userdetails.ExtendedUser;
+import fr.xebia.springframework.security.core.userdetails.jdbc.ExtendedJdbcUserDetailsManager;
+
+public class VerifiedCredentialsCacheTest {
+
+    /**
+     * Counts the password verifications.
+     */
+    private static class CountingPasswordEncoder extends PlaintextPasswordEncoder {
+        final AtomicInteger verificationCount = new AtomicInteger();
+
+        @Override
+        public boolean isPasswordValid(String encPass, String rawPass, Object salt) {
+            verificationCount.incrementAndGet();
+            return super.isPasswordValid(encPass, rawPass, salt);
+        }
+    }
+
+    private SingleConnectionDataSource dataSource;
+
+    @After
+    public void after() {
+        SecurityContextHolder.clearContext();
+        if (dataSource != null) {
+            dataSource.destroy();
+        }
+    }
+
+    @Test
+    public void testCredentialsVerifiedOnce() {
+        CountingPasswordEncoder passwordEncoder = new CountingPasswordEncoder();
+        ExtendedDaoAuthenticationProvider provider = new ExtendedDaoAuthenticationProvider();
+        provider.setPasswordEncoder(passwordEncoder);
+        VerifiedCredentialsCache cache = new VerifiedCredentialsCache(60000, 100);
+        provider.setVerifiedCredentialsCache(cache);
+        ExtendedUser user = new ExtendedUser("api-client", "secret", true, true, true, true, Collections.<GrantedAuthority> emptyList());
+
+        for (int i = 0; i < 10; i++) {
+            provider.additionalAuthenticationChecks(user, new UsernamePasswordAuthenticationToken("api-client", "secret"));
+        }
+        assertEquals(1, passwordEncoder.verificationCount.get());
+        assertEquals(9, cache.getHitCount());
+
+        // a wrong password is verified, and rejected, every time
+        for (int i = 0; i < 2; i++) {
+            try {
+                provider.additionalAuthenticationChecks(user, new UsernamePasswordAuthenticationToken("api-client", "guess"));
+                fail("expected exception");
+            } catch (BadCredentialsException e) {
+                // ok
+            }
+        }
+        assertEquals(3, passwordEncoder.verificationCount.get());
+
+        // the password changed elsewhere: the entry no longer matches
+        ExtendedUser reloaded = new ExtendedUser("api-client", "new-secret", true, true, true, true,
+                Collections.<GrantedAuthority> emptyList());
+        try {
+            provider.additionalAuthenticationChecks(reloaded, new UsernamePasswordAuthenticationToken("api-client", "secret"));
+            fail("expected exception");
+        } catch (BadCredentialsException e) {
+            // ok
+        }
+        assertEquals(4, passwordEncoder.verificationCount.get());
+    }
+
+    @Test
+    public void testExpirationAndEviction() {
+        VerifiedCredentialsCache cache = new VerifiedCredentialsCache(1000, VerifiedCredentialsCache.STRIPE_COUNT);
+        long now = System.nanoTime();
+        cache.put("john", "{encoded}", "secret", now);
+
+        assertTrue(cache.contains("john", "{encoded}", "secret", now + TimeUnit.MILLISECONDS.toNanos(999)));
+        assertFalse(cache.contains("jane", "{encoded}", "secret", now));
+        assertFalse(cache.contains("john", "{encoded}", "Secret", now));
+        assertFalse(cache.contains("john", "{encoded}", "secret", now + TimeUnit.MILLISECONDS.toNanos(1000)));
+        assertEquals(0, cache.getSize());
+
+        for (int i = 0; i < 1000; i++) {
+            cache.put("user-" + i, "{encoded}", "secret", now);
+        }
+        assertTrue(cache.getSize() <= cache.getMaxEntries());
+        assertEquals(1000 - cache.getSize(), cache.getEvictedCount());
+    }
+
+    @Test
+    public void testUserDetailsManagerInvalidatesEntries() throws Exception {
+        dataSource = new SingleConnectionDataSource("jdbc:h2:mem:verified-credentials-db", "sa", "", true);
+        Connection connection = dataSource.getConnection();
+        connection.createStatement().execute(
+                "create table users(username varchar(256), password varchar(256), enabled int, allowedRemoteAddresses varchar(256), comments varchar(256))");
+        connection.createStatement().execute("create table authorities(username varchar(256), authority varchar(256))");
+
+        VerifiedCredentialsCache cache = new VerifiedCredentialsCache(60000, 100);
+        ExtendedJdbcUserDetailsManager userDetailsManager = new ExtendedJdbcUserDetailsManager();
+        userDetailsManager.setDataSource(dataSource);
+        userDetailsManager.setVerifiedCredentialsCache(cache);
+        ExtendedUser user = new ExtendedUser("api-client", "secret", true, true, true, true,
+                Collections.<GrantedAuthority> singletonList(new GrantedAuthorityImpl("ROLE_API")));
+        userDetailsManager.createUser(user);
+
+        cache.put("api-client", "secret", "secret");
+        userDetailsManager.updateUser(user);
+        assertFalse(cache.contains("api-client", "secret", "secret"));
+
+        cache.put("api-client", "secret", "secret");
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("api-client", "secret"));
+        userDetailsManager.changePassword("secret", "new-secret");
+        assertFalse(cache.contains("api-client", "secret", "secret"));
+
+        cache.put("api-client", "new-secret", "new-secret");
+        userDetailsManager.deleteUser("api-client");
+        assertFalse(cache.contains("api-client", "new-secret", "new-secret"));
+    }
+}
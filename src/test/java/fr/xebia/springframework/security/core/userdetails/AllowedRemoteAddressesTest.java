@@ -0,0 +1,311 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.userdetails;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.junit.Test;
+import org.springframework.security.core.GrantedAuthority;
+
+public class AllowedRemoteAddressesTest {
+
+    private static final String[] CORPORATE_ALLOW_LISTS = {
+            "127\\.0\\.0\\.1, 10\\.0\\..*, 10\\.1\\.[0-9]+\\..*, 192\\.168\\.1\\..*, 81\\.252\\.12\\..*",
+            "127\\.0\\.0\\.1, 10\\.0\\..*, 10\\.1\\.[0-9]+\\..*, 192\\.168\\.1\\..*, 172\\.16\\.4\\.12",
+            "127\\.0\\.0\\.1;10\\.0\\..*;192\\.168\\.1\\..*;172.16.0.0/12;2001:db8::/32",
+            "10\\.0\\..*" };
+
+    private static final String ADDRESS_CHARACTERS = "0123456789.:abcdefABCDEF";
+
+    private static final String[] ATOMS = { "\\.", ".", ":", "[0-9]", "[a-f0-9]", "[^.]", "\\d", "\\w", "a", "F", "0", "1", "2",
+            "5", "(?i)a", "(?i:b)", "\\b", "^", "$" };
+
+    /**
+     * Bounded quantifiers of the groups, to avoid catastrophic backtracking.
+     */
+    private static final String[] GROUP_QUANTIFIERS = { "", "", "?", "{2}", "??", "?+" };
+
+    private static final String[] QUANTIFIERS = { "", "", "", "*", "+", "?", "{2}", "*?", "+?", "*+", "?+" };
+
+    /**
+     * Unmergeable constructs: back references, quotations, named groups,
+     * comments mode.
+     */
+    private static final String[] UNMERGEABLE_ATOMS = { "([0-9])\\1", "\\Q1.\\E", "\\Q.*", "(?<octet>[0-9]+)\\k<octet>",
+            "(?x)1 # comment" };
+
+    private static final int USER_COUNT = 20000;
+
+    private static String randomAddress(Random random) {
+        switch (random.nextInt(4)) {
+        case 0:
+            return random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(3) + "." + random.nextInt(256);
+        case 1:
+            return Integer.toHexString(random.nextInt(0x10000)) + "::" + Integer.toHexString(random.nextInt(16));
+        default:
+            StringBuilder address = new StringBuilder();
+            for (int i = random.nextInt(12); i > 0; i--) {
+                address.append(ADDRESS_CHARACTERS.charAt(random.nextInt(ADDRESS_CHARACTERS.length())));
+            }
+            return address.toString();
+        }
+    }
+
+    private static String randomRegex(Random random, int depth) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = random.nextInt(5); i > 0; i--) {
+            int kind = random.nextInt(10);
+            if (kind == 0 && depth < 2) {
+                regex.append(random.nextBoolean() ? "(" : "(?:").append(randomRegex(random, depth + 1));
+                regex.append('|').append(randomRegex(random, depth + 1)).append(')');
+                regex.append(GROUP_QUANTIFIERS[random.nextInt(GROUP_QUANTIFIERS.length)]);
+            } else if (kind == 1 && depth < 2) {
+                regex.append('(').append(randomRegex(random, depth + 1)).append(')');
+                regex.append(GROUP_QUANTIFIERS[random.nextInt(GROUP_QUANTIFIERS.length)]);
+            } else if (kind == 2 && random.nextInt(10) == 0) {
+                regex.append(UNMERGEABLE_ATOMS[random.nextInt(UNMERGEABLE_ATOMS.length)]);
+            } else {
+                regex.append(ATOMS[random.nextInt(ATOMS.length)]);
+                regex.append(QUANTIFIERS[random.nextInt(QUANTIFIERS.length)]);
+            }
+        }
+        return regex.toString();
+    }
+
+    private static ExtendedUser newUser(int i) {
+        return new ExtendedUser("user-" + i, "password", true, true, true, true, Collections.<GrantedAuthority> emptyList());
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(20);
+            used = Math.min(used, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+
+    @Test
+    public void testAllowListsAndPatternsAreShared() {
+        ExtendedUser john = newUser(1);
+        // distinct String instances, as read from a database
+        john.setAllowedRemoteAddresses(new String(CORPORATE_ALLOW_LISTS[0]));
+        ExtendedUser jane = newUser(2);
+        jane.setAllowedRemoteAddresses(new String(CORPORATE_ALLOW_LISTS[0]));
+        ExtendedUser bob = newUser(3);
+        bob.setAllowedRemoteAddresses(CORPORATE_ALLOW_LISTS[1]);
+
+        assertSame(john.getCompiledAllowedRemoteAddresses(), jane.getCompiledAllowedRemoteAddresses());
+        assertSame(john.getAllowedRemoteAddressesPatterns(), jane.getAllowedRemoteAddressesPatterns());
+        assertNotSame(john.getCompiledAllowedRemoteAddresses(), bob.getCompiledAllowedRemoteAddresses());
+        for (int i = 0; i < 4; i++) {
+            assertSame(john.getAllowedRemoteAddressesPatterns().get(i), bob.getAllowedRemoteAddressesPatterns().get(i));
+        }
+        assertEquals("127\\.0\\.0\\.1,10\\.0\\..*,10\\.1\\.[0-9]+\\..*,192\\.168\\.1\\..*,81\\.252\\.12\\..*",
+                john.getAllowedRemoteAddresses());
+
+        // reloading a user compiles nothing
+        long compiledCount = AllowedRemoteAddresses.getCompiledCount();
+        ExtendedUser reloaded = newUser(1);
+        reloaded.setAllowedRemoteAddresses(new String(CORPORATE_ALLOW_LISTS[0]));
+        assertSame(john.getCompiledAllowedRemoteAddresses(), reloaded.getCompiledAllowedRemoteAddresses());
+        assertEquals(compiledCount, AllowedRemoteAddresses.getCompiledCount());
+    }
+
+    @Test
+    public void testChangedPatternsArePersisted() {
+        ExtendedUser john = newUser(1);
+        john.getAllowedRemoteAddressesPatterns().add(Pattern.compile("10\\..*"));
+        assertEquals("10\\..*", john.getAllowedRemoteAddresses());
+
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        ExtendedUser jane = newUser(2);
+        jane.setAllowedRemoteAddresses(patterns);
+        patterns.add(Pattern.compile("192\\.168\\..*"));
+        patterns.add(Pattern.compile("127\\.0\\.0\\.1"));
+        assertEquals("192\\.168\\..*,127\\.0\\.0\\.1", jane.getAllowedRemoteAddresses());
+
+        ExtendedUser bob = newUser(3);
+        bob.setAllowedRemoteAddresses("10.0.0.0/8, 192\\.168\\..*");
+        try {
+            bob.getAllowedRemoteAddressesPatterns().add(Pattern.compile("127\\.0\\.0\\.1"));
+            fail("the patterns of a compiled allow-list are shared");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertEquals("10.0.0.0/8,192\\.168\\..*", bob.getAllowedRemoteAddresses());
+    }
+
+    @Test
+    public void testCorporateAllowListsAreMerged() {
+        List<Pattern> unmerged = new ArrayList<Pattern>();
+        assertNotNull(AllowedRemoteAddresses.merge(AllowedRemoteAddresses.compile(CORPORATE_ALLOW_LISTS[0]).getPatterns(), unmerged));
+        assertTrue(unmerged.isEmpty());
+
+        for (String regex : UNMERGEABLE_ATOMS) {
+            assertFalse(regex, AllowedRemoteAddresses.isMergeable(Pattern.compile(regex)));
+        }
+        assertFalse(AllowedRemoteAddresses.isMergeable(Pattern.compile("10\\..*", Pattern.CASE_INSENSITIVE)));
+        assertTrue(AllowedRemoteAddresses.isMergeable(Pattern.compile("\\\\1(?i)a(?<=a)(?<!b)")));
+
+        // a single mergeable pattern is not worth merging
+        unmerged.clear();
+        assertNull(AllowedRemoteAddresses.merge(Arrays.asList(Pattern.compile("10\\..*"), Pattern.compile("(.)\\1")), unmerged));
+        assertEquals(2, unmerged.size());
+    }
+
+    @Test
+    public void testEmptyAndBlankAllowLists() {
+        assertSame(AllowedRemoteAddresses.NONE, AllowedRemoteAddresses.compile(null));
+        assertSame(AllowedRemoteAddresses.NONE, AllowedRemoteAddresses.compile(""));
+        // a blank entry is an empty regular expression, as before
+        AllowedRemoteAddresses blank = AllowedRemoteAddresses.compile(" ");
+        assertEquals(1, blank.getPatterns().size());
+        assertEquals("", blank.getPatterns().get(0).pattern());
+    }
+
+    @Test
+    public void testHeapFootprintOfLargeUserPopulation() throws Exception {
+        long before = usedHeap();
+        ExtendedUser[] users = new ExtendedUser[USER_COUNT];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = newUser(i);
+            users[i].setAllowedRemoteAddresses(new String(CORPORATE_ALLOW_LISTS[i % CORPORATE_ALLOW_LISTS.length]));
+        }
+        long internedFootprint = usedHeap() - before;
+
+        Map<Object, Boolean> distinctPatterns = new IdentityHashMap<Object, Boolean>();
+        for (ExtendedUser user : users) {
+            for (Pattern pattern : user.getAllowedRemoteAddressesPatterns()) {
+                distinctPatterns.put(pattern, Boolean.TRUE);
+            }
+        }
+        assertEquals(6, distinctPatterns.size());
+        users = null;
+
+        // as before interning: each user compiles its own patterns
+        before = usedHeap();
+        ExtendedUser[] baselineUsers = new ExtendedUser[USER_COUNT];
+        for (int i = 0; i < baselineUsers.length; i++) {
+            baselineUsers[i] = newUser(i);
+            List<Pattern> patterns = new ArrayList<Pattern>();
+            for (String regex : CORPORATE_ALLOW_LISTS[i % CORPORATE_ALLOW_LISTS.length].split("[,;]")) {
+                patterns.add(Pattern.compile(regex.trim()));
+            }
+            baselineUsers[i].setAllowedRemoteAddresses(patterns);
+        }
+        long baselineFootprint = usedHeap() - before;
+        assertEquals(USER_COUNT, baselineUsers.length);
+
+        assertTrue("interned " + internedFootprint / USER_COUNT + " bytes per user, not interned " + baselineFootprint
+                / USER_COUNT + " bytes per user", internedFootprint * 3 < baselineFootprint);
+    }
+
+    /**
+     * Property: for any allow-list and any remote address, the merged
+     * allow-list allows the address if and only if one of its patterns
+     * matches it, as evaluated one after the other before merging.
+     */
+    @Test
+    public void testMergedPatternsMatchLikeEachPattern() {
+        Random random = new Random(19);
+        int mergedCount = 0;
+        for (int i = 0; i < 3000; i++) {
+            List<Pattern> patterns = new ArrayList<Pattern>();
+            StringBuilder allowList = new StringBuilder();
+            for (int j = 1 + random.nextInt(8); j > 0; j--) {
+                String regex = randomRegex(random, 0);
+                try {
+                    patterns.add(Pattern.compile(regex));
+                } catch (PatternSyntaxException e) {
+                    continue;
+                }
+                allowList.append(patterns.size() == 1 ? "" : ";").append(regex);
+            }
+            if (allowList.length() == 0 || allowList.toString().trim().length() != allowList.length()) {
+                continue;
+            }
+            AllowedRemoteAddresses allowedRemoteAddresses = AllowedRemoteAddresses.compile(allowList.toString());
+            assertEquals(allowList.toString(), patterns.size(), allowedRemoteAddresses.getPatterns().size());
+            if (AllowedRemoteAddresses.merge(patterns, new ArrayList<Pattern>()) != null) {
+                mergedCount++;
+            }
+
+            for (int j = 0; j < 50; j++) {
+                String address = randomAddress(random);
+                boolean expected = false;
+                for (Pattern pattern : patterns) {
+                    expected |= pattern.matcher(address).matches();
+                }
+                assertEquals("'" + allowList + "' with '" + address + "'", expected, allowedRemoteAddresses.allows(address));
+            }
+        }
+        assertTrue("merged " + mergedCount, mergedCount > 1000);
+    }
+
+    @Test
+    public void testSerializedAllowListIsInterned() throws Exception {
+        ExtendedUser john = newUser(1);
+        john.setAllowedRemoteAddresses(CORPORATE_ALLOW_LISTS[2]);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(john);
+        out.close();
+        ExtendedUser deserialized = (ExtendedUser) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertSame(john.getCompiledAllowedRemoteAddresses(), deserialized.getCompiledAllowedRemoteAddresses());
+        assertSame(john.getAllowedRemoteAddressesPatterns(), deserialized.getAllowedRemoteAddressesPatterns());
+        assertTrue(deserialized.getAllowedRemoteNetworks().matches("172.20.1.1"));
+    }
+
+    @Test
+    public void testUnusedAllowListsAreReleased() throws Exception {
+        ExtendedUser john = newUser(1);
+        john.setAllowedRemoteAddresses(new String("10\\.99\\.0\\..*, 10\\.99\\.1\\..*"));
+        int internedCount = AllowedRemoteAddresses.getInternedCount();
+        john = null;
+
+        for (int i = 0; i < 50 && AllowedRemoteAddresses.getInternedCount() >= internedCount; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(AllowedRemoteAddresses.getInternedCount() < internedCount);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2008-2012 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.springframework.security.core.userdetails;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CidrTrieTest {
+
+    @Test
+    public void testIpv4() {
+        CidrTrie trie = CidrTrie.compile(Arrays.asList("10.0.0.0/8", "192.168.1.0/24", "172.16.4.12/32", "192.168.2.16/28"));
+
+        assertTrue(trie.matches("10.0.0.1"));
+        assertTrue(trie.matches("10.255.255.255"));
+        assertTrue(trie.matches("192.168.1.42"));
+        assertTrue(trie.matches("172.16.4.12"));
+        assertTrue(trie.matches("192.168.2.31"));
+        assertTrue(trie.matches("::ffff:10.1.2.3"));
+
+        assertFalse(trie.matches("11.0.0.1"));
+        assertFalse(trie.matches("192.168.2.15"));
+        assertFalse(trie.matches("192.168.2.32"));
+        assertFalse(trie.matches("172.16.4.13"));
+        assertFalse(trie.matches("10.0.0"));
+        assertFalse(trie.matches("localhost"));
+        assertFalse(trie.matches("::1"));
+    }
+
+    @Test
+    public void testIpv6() {
+        CidrTrie trie = CidrTrie.compile(Arrays.asList("2001:db8::/32", "::1/128", "fe80::/10"));
+
+        assertTrue(trie.matches("2001:db8:0:1:0:0:0:42"));
+        assertTrue(trie.matches("2001:0DB8::"));
+        assertTrue(trie.matches("0:0:0:0:0:0:0:1"));
+        assertTrue(trie.matches("::1"));
+        assertTrue(trie.matches("fe80::1%eth0"));
+        assertTrue(trie.matches("febf:ffff::"));
+
+        assertFalse(trie.matches("2001:db9::1"));
+        assertFalse(trie.matches("fec0::1"));
+        assertFalse(trie.matches("::2"));
+        assertFalse(trie.matches("127.0.0.1"));
+    }
+
+    @Test
+    public void testInvalidNetworks() {
+        for (String cidr : new String[] { "10.0.0.0", "10.0.0.0/33", "10.0.0/8", "::1/129", "10.0.0.0/", "10\\..*/8", "a/8" }) {
+            assertFalse(cidr, CidrTrie.isCidr(cidr));
+            try {
+                CidrTrie.compile(Collections.singletonList(cidr));
+                fail(cidr);
+            } catch (IllegalArgumentException e) {
+                // ok
+            }
+        }
+        assertTrue(CidrTrie.isCidr("0.0.0.0/0"));
+        assertTrue(CidrTrie.compile(Collections.singletonList("0.0.0.0/0")).matches("1.2.3.4"));
+    }
+
+    @Test
+    public void testParseAddressLikeInetAddress() throws Exception {
+        String[] addresses = { "0.0.0.0", "255.255.255.255", "::", "::1", "1::", "1:2:3:4:5:6:7:8", "1::8", "1:2::7:8",
+                "::ffff:1.2.3.4", "::1.2.3.4", "1:2:3:4:5:6:1.2.3.4", "abcd:ef01::2345:6789" };
+        for (String address : addresses) {
+            byte[] expected = InetAddress.getByName(address).getAddress();
+            if (expected.length == 4 && address.indexOf(':') != -1) {
+                // InetAddress converts IPv4-mapped addresses
+                byte[] mapped = new byte[16];
+                mapped[10] = (byte) 0xff;
+                mapped[11] = (byte) 0xff;
+                System.arraycopy(expected, 0, mapped, 12, 4);
+                expected = mapped;
+            }
+            assertArrayEquals(address, expected, CidrTrie.parseAddress(address));
+        }
+        for (String address : new String[] { "", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1..2.3", ":", ":1", "1:", "1:::2", "1::2::3",
+                "1:2:3:4:5:6:7:8:9", "1::2:3:4:5:6:7:8", "12345::", "g::", "1.2.3.4::", "example.com" }) {
+            assertNull(address, CidrTrie.parseAddress(address));
+        }
+    }
+
+    @Test
+    public void testRandomNetworksMatchLikeMasks() {
+        Random random = new Random(42);
+        int[] networks = new int[64];
+        int[] prefixLengths = new int[networks.length];
+        String[] cidrs = new String[networks.length];
+        for (int i = 0; i < networks.length; i++) {
+            prefixLengths[i] = 8 + random.nextInt(25);
+            networks[i] = random.nextInt() & mask(prefixLengths[i]);
+            cidrs[i] = toString(networks[i]) + "/" + prefixLengths[i];
+        }
+        CidrTrie trie = CidrTrie.compile(Arrays.asList(cidrs));
+        assertEquals(Arrays.asList(cidrs), trie.getCidrs());
+
+        for (int i = 0; i < 100000; i++) {
+            // half of the addresses close to a network
+            int address = random.nextBoolean() ? random.nextInt() : networks[random.nextInt(networks.length)] ^ random.nextInt(1 << 12);
+            boolean expected = false;
+            for (int j = 0; j < networks.length && !expected; j++) {
+                expected = (address & mask(prefixLengths[j])) == networks[j];
+            }
+            assertEquals(toString(address), expected, trie.matches(toString(address)));
+        }
+    }
+
+    private static int mask(int prefixLength) {
+        return prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+    }
+
+    private static String toString(int address) {
+        return (address >>> 24) + "." + ((address >>> 16) & 0xff) + "." + ((address >>> 8) & 0xff) + "." + (address & 0xff);
+    }
+}
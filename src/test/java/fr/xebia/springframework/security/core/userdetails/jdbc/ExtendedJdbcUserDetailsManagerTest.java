@@ -16,6 +16,7 @@
 package fr.xebia.springframework.security.core.userdetails.jdbc;
 
 import fr.xebia.springframework.security.core.userdetails.ExtendedUser;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
@@ -23,6 +24,7 @@ import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.GrantedAuthorityImpl;
 import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.test.jdbc.SimpleJdbcTestUtils;
 
 import java.sql.Connection;
@@ -30,6 +32,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 public class ExtendedJdbcUserDetailsManagerTest {
 
@@ -37,6 +40,12 @@ public class ExtendedJdbcUserDetailsManagerTest {
 
     protected SimpleJdbcTemplate simpleJdbcTemplate;
 
+    @After
+    public void after() throws Exception {
+        simpleJdbcTemplate.update("drop table users");
+        simpleJdbcTemplate.update("drop table authorities");
+    }
+
     @Before
     public void before() throws Exception {
         SingleConnectionDataSource dataSource = new SingleConnectionDataSource("jdbc:h2:mem:jmx-demo-db", "sa", "", false);
@@ -110,4 +119,45 @@ public class ExtendedJdbcUserDetailsManagerTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testLoadUserInSingleQuery() throws Exception {
+        List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
+        authorities.add(new GrantedAuthorityImpl("ROLE_USER"));
+        authorities.add(new GrantedAuthorityImpl("ROLE_ADMIN"));
+        ExtendedUser user = new ExtendedUser("test-user", "test-password", false, true, true, true, authorities);
+        user.setComments("my first comment");
+        user.setAllowedRemoteAddresses("10\\..*");
+        userDetailsManager.createUser(user);
+        simpleJdbcTemplate.update("insert into users values('no-authority', 'password', 1, null, null)");
+
+        ExtendedUser expected = (ExtendedUser) userDetailsManager.loadUserByUsername("test-user");
+        userDetailsManager.setLoadUserInSingleQuery(true);
+        ExtendedUser actual = (ExtendedUser) userDetailsManager.loadUserByUsername("test-user");
+
+        assertEquals(expected.getUsername(), actual.getUsername());
+        assertEquals(expected.getPassword(), actual.getPassword());
+        assertEquals(expected.isEnabled(), actual.isEnabled());
+        assertEquals(expected.getAllowedRemoteAddresses(), actual.getAllowedRemoteAddresses());
+        assertEquals(expected.getComments(), actual.getComments());
+        assertEquals(expected.getAuthorities(), actual.getAuthorities());
+
+        // the stored username is returned unless the username is not the primary key
+        simpleJdbcTemplate.update("update users set username = 'Test-User' where username = 'test-user'");
+        simpleJdbcTemplate.update("update authorities set username = 'Test-User' where username = 'test-user'");
+        userDetailsManager.setSelectUserWithAuthoritiesAndExtraColumns("SELECT u.username, u.password, u.enabled, "
+                + "u.allowedRemoteAddresses, u.comments, a.authority FROM users u LEFT OUTER JOIN authorities a "
+                + "ON a.username = u.username WHERE lower(u.username) = lower(?)");
+        assertEquals("Test-User", userDetailsManager.loadUserByUsername("test-user").getUsername());
+        userDetailsManager.setUsernameBasedPrimaryKey(false);
+        assertEquals("test-user", userDetailsManager.loadUserByUsername("test-user").getUsername());
+
+        for (String username : new String[] { "no-authority", "unknown-user" }) {
+            try {
+                userDetailsManager.loadUserByUsername(username);
+                fail("expected exception");
+            } catch (UsernameNotFoundException e) {
+                // ok
+            }
+        }
+    }
+}